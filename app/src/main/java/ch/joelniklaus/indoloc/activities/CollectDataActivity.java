@@ -8,6 +8,7 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.Log;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
@@ -16,20 +17,29 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.apache.commons.lang3.SerializationUtils;
-
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import ch.joelniklaus.indoloc.R;
 import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
 import ch.joelniklaus.indoloc.exceptions.InvalidRoomException;
+import ch.joelniklaus.indoloc.helpers.BackgroundTrainer;
+import ch.joelniklaus.indoloc.helpers.ChangeDetector;
+import ch.joelniklaus.indoloc.helpers.CompiledForest;
+import ch.joelniklaus.indoloc.helpers.DataPointJournal;
+import ch.joelniklaus.indoloc.helpers.DataPointPool;
+import ch.joelniklaus.indoloc.helpers.EnsemblePredictor;
 import ch.joelniklaus.indoloc.helpers.FileHelper;
+import ch.joelniklaus.indoloc.helpers.FlatLinearNNSearch;
+import ch.joelniklaus.indoloc.helpers.InferencePipeline;
+import ch.joelniklaus.indoloc.helpers.InstanceBuilder;
 import ch.joelniklaus.indoloc.helpers.LocationHelper;
+import ch.joelniklaus.indoloc.helpers.ModelStore;
 import ch.joelniklaus.indoloc.helpers.SensorHelper;
 import ch.joelniklaus.indoloc.helpers.WekaHelper;
 import ch.joelniklaus.indoloc.helpers.WifiHelper;
 import ch.joelniklaus.indoloc.models.DataPoint;
-import ch.joelniklaus.indoloc.models.LocationData;
 import ch.joelniklaus.indoloc.models.RSSData;
 import ch.joelniklaus.indoloc.models.SensorData;
 import weka.classifiers.Classifier;
@@ -57,22 +67,29 @@ import weka.core.Instances;
 /**
  * The activity which controls the data collection and also live testing of several trained classifiers based on the collected data.
  */
-public class CollectDataActivity extends AppCompatActivity implements SensorEventListener {
+public class CollectDataActivity extends AppCompatActivity implements SensorEventListener, InferencePipeline.Listener, BackgroundTrainer.Listener {
 
     public static final int LOCATION_PERMISSION = 100;
     public static final int STORAGE_PERMISSION = 200;
 
+    /**
+     * The number of scans aggregated into additional attributes of the arff files (see FeatureWindow), 0 for no aggregates.
+     */
+    public static final int FEATURE_WINDOW_SIZE = 0;
+
     //private TextView scanText, rss1Text, rss2Text, rss3Text, rss4Text, rss5Text, rss6Text, rss7Text, rss8Text, magneticYText, magneticZText;
     private TextView scanValue, rss1Value, rss2Value, rss3Value, rss4Value, rss5Value, rss6Value, rss7Value, rss8Value, magneticYValue, magneticZValue, predictNBValue, predictKNNValue, predictSVMValue, predictRFValue, predictBaggingValue, predictBoostingValue, predictMLPValue;
     private Button startButton, liveTestButton;
     private EditText roomEditText;
 
-    private ArrayList<DataPoint> dataPoints = new ArrayList<>();
+    private DataPointJournal dataPointJournal;
+    // the current and the previous data point
+    private DataPointPool dataPointPool;
     private DataPoint currentDataPoint;
     private final ArrayList<String> predictions = new ArrayList<>(NUMBER_OF_CLASSIFIERS);
     private final ArrayList<Classifier> classifiers = new ArrayList<>(NUMBER_OF_CLASSIFIERS);
 
-    private Instances test = null;
+    private InstanceBuilder instanceBuilder = null;
 
     private int scanNumber = 0;
     private boolean registering = false, predicting = false;
@@ -86,6 +103,11 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
     private final WifiHelper wifiHelper = new WifiHelper(this);
     private final LocationHelper locationHelper = new LocationHelper(this);
 
+    private final InferencePipeline inferencePipeline = new InferencePipeline(this);
+    private final ChangeDetector changeDetector = new ChangeDetector();
+    private EnsemblePredictor ensemblePredictor;
+    private final BackgroundTrainer backgroundTrainer = new BackgroundTrainer(this);
+
 
     /**
      * Is called when the user first starts the app. Sets up all the helpers,
@@ -101,6 +123,8 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
         sensorHelper.setUp();
 
         wifiHelper.setUp();
+        // the number of access points depends on the site
+        dataPointPool = new DataPointPool(2, wifiHelper.getNumberOfAccessPoints());
 
         if (Build.VERSION.SDK_INT > 22) {
             locationHelper.setUp();
@@ -110,6 +134,9 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
 
         setUpTextViews();
 
+        // the classifiers are only trained again if the train set has changed
+        backgroundTrainer.setModelStore(new ModelStore(new File(getFilesDir(), "models")));
+
         initPrediction();
     }
 
@@ -127,7 +154,7 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
         if (Build.VERSION.SDK_INT > 22)
             locationHelper.registerListeners();
 
-        // loads the collected datapoints  last time again (backup if something fails)
+        // opens the journal of the datapoints collected last time again (backup if something fails)
         loadDataPoints();
     }
 
@@ -146,46 +173,65 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
         if (Build.VERSION.SDK_INT > 22)
             locationHelper.unRegisterListeners();
 
-        // saves the collected datapoints (backup if something fails)
+        // syncs the journal of the collected datapoints (backup if something fails)
         saveDataPoints();
     }
 
+    /**
+     * Is called when the app is closed. Stops the background prediction and the wifi scanning.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        backgroundTrainer.cancel();
+        inferencePipeline.shutDown();
+        wifiHelper.shutDown();
+        if (ensemblePredictor != null)
+            ensemblePredictor.shutDown();
+    }
+
     /**
      * Is called when a value of a sensor changes. Records all the data and saves it to the list of collected data points.
+     * The prediction itself runs in the background, so this method only hands over the current data point.
      *
      * @param event
      */
     @Override
     public void onSensorChanged(SensorEvent event) {
-        DataPoint previousDataPoint = null;
-        if (currentDataPoint != null)
-            previousDataPoint = SerializationUtils.clone(currentDataPoint);
+        // the pool hands out a different data point than last time, so the previous one does not change
+        DataPoint previousDataPoint = currentDataPoint;
 
 
         /*
         // IDEA: At start of each collection phase save magnetic base value
-        if (dataPoints.isEmpty()) {
+        if (dataPointJournal.isEmpty()) {
             magneticYBaseValue = magneticValues[0];
             magneticZBaseValue = magneticValues[1];
         }
         */
 
-        String room = roomEditText.getText().toString();
-        RSSData rssData = wifiHelper.readWifiData(getIntent());
-        SensorData sensorData = sensorHelper.readSensorData(event);
-        LocationData locationData = new LocationData(0, 0);
-        if (Build.VERSION.SDK_INT > 22)
-            locationData = locationHelper.readLocationData();
-
-        // build the current datapoint with all the collected data
-        currentDataPoint = new DataPoint(room, sensorData, rssData, locationData);
+        // fill the current datapoint with all the collected data
+        DataPoint dataPoint = dataPointPool.next();
+        dataPoint.setRoom(roomEditText.getText().toString());
+        wifiHelper.readWifiData(dataPoint.getRssData());
+        sensorHelper.readSensorData(event, dataPoint.getSensorData());
+        if (Build.VERSION.SDK_INT <= 22 || !locationHelper.readLocationData(dataPoint.getLocationData()))
+            dataPoint.getLocationData().set(0, 0);
+        currentDataPoint = dataPoint;
 
         // Only collect datapoint which is different from the previous one
         if (!currentDataPoint.equals(previousDataPoint)) {
             saveDataPoint();
-            predict();
+            // the aggregates of the prediction cover the same data points as the ones of the training set
+            if (predicting)
+                inferencePipeline.add(currentDataPoint);
         }
 
+        // Only predict again if the fingerprint has moved noticeably (or the last prediction is too old)
+        if (predicting && changeDetector.accept(currentDataPoint, System.nanoTime()))
+            predict();
+
         // update the gui
         setTextViewValues();
     }
@@ -194,6 +240,69 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
     public void onAccuracyChanged(Sensor sensor, int i) {
     }
 
+    /**
+     * Is called on the ui thread when the inference pipeline has classified a data point.
+     *
+     * @param predictions
+     */
+    @Override
+    public void onPredictions(ArrayList<String> predictions) {
+        if (!predicting)
+            return;
+        // keep the last prediction of the classifiers which were too slow this time
+        for (int i = 0; i < predictions.size() && i < NUMBER_OF_CLASSIFIERS; i++)
+            if (predictions.get(i) != null)
+                this.predictions.set(i, predictions.get(i));
+    }
+
+    /**
+     * Is called on the ui thread when one classifier has been trained in the background. From now on it is used for the prediction.
+     *
+     * @param index
+     * @param classifier
+     * @param trainTimeMilliS
+     * @param finished
+     * @param total
+     */
+    @Override
+    public void onModelTrained(int index, Classifier classifier, long trainTimeMilliS, int finished, int total) {
+        // the untrained classifiers in the list stay as templates for the next training
+        if (ensemblePredictor != null)
+            ensemblePredictor.setClassifier(index, classifier);
+        alert(classifier.getClass().getSimpleName() + " successfully trained or loaded in " + trainTimeMilliS + "ms (" + finished + "/" + total + ")");
+    }
+
+    /**
+     * Is called on the ui thread when one classifier could not be trained. It is not used for the prediction.
+     *
+     * @param index
+     * @param message
+     * @param finished
+     * @param total
+     */
+    @Override
+    public void onModelFailed(int index, String message, int finished, int total) {
+        alert("Could not train " + classifiers.get(index).getClass().getSimpleName() + ": " + message + " (" + finished + "/" + total + ")");
+    }
+
+    /**
+     * Is called on the ui thread when all the classifiers have been trained.
+     */
+    @Override
+    public void onTrainingFinished() {
+        alert("Models successfully trained!");
+    }
+
+    /**
+     * Is called on the ui thread when the inference pipeline could not classify a data point.
+     *
+     * @param message
+     */
+    @Override
+    public void onError(String message) {
+        alert(message);
+    }
+
     /**
      * Shows a dialog to the user which requests the location and the storage permission.
      */
@@ -304,6 +413,17 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
         roomEditText = (EditText) findViewById(R.id.editRoom);
     }
 
+    /**
+     * Shows the rss value of the access point with the given index, if the site has that many access points.
+     *
+     * @param textView
+     * @param rssData
+     * @param index
+     */
+    private void setRssText(TextView textView, RSSData rssData, int index) {
+        textView.setText(index < rssData.size() ? Integer.toString(rssData.getValue(index)) : "");
+    }
+
     /**
      * Updates the content of the text views with the current values.
      */
@@ -313,14 +433,14 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
         magneticZValue.setText(Float.toString(sensorData.getMagneticZProcessedOld()));
 
         RSSData rssData = currentDataPoint.getRssData();
-        rss1Value.setText(rssData.getValues().get(0).toString());
-        rss2Value.setText(rssData.getValues().get(1).toString());
-        rss3Value.setText(rssData.getValues().get(2).toString());
-        rss4Value.setText(rssData.getValues().get(3).toString());
-        rss5Value.setText(rssData.getValues().get(4).toString());
-        rss6Value.setText(rssData.getValues().get(5).toString());
-        rss7Value.setText(rssData.getValues().get(6).toString());
-        rss8Value.setText(rssData.getValues().get(7).toString());
+        setRssText(rss1Value, rssData, 0);
+        setRssText(rss2Value, rssData, 1);
+        setRssText(rss3Value, rssData, 2);
+        setRssText(rss4Value, rssData, 3);
+        setRssText(rss5Value, rssData, 4);
+        setRssText(rss6Value, rssData, 5);
+        setRssText(rss7Value, rssData, 6);
+        setRssText(rss8Value, rssData, 7);
 
         predictNBValue.setText(predictions.get(0));
         predictKNNValue.setText(predictions.get(1));
@@ -339,29 +459,37 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
             predictions.add("NO PREDICTION YET");
 
         classifiers.add(new NaiveBayes());
-        classifiers.add(new IBk());
+        IBk iBk = new IBk();
+        iBk.setNearestNeighbourSearchAlgorithm(new FlatLinearNNSearch());
+        classifiers.add(iBk);
         classifiers.add(new LibSVM());
-        classifiers.add(new RandomForest());
+        classifiers.add(new CompiledForest(new RandomForest()));
         classifiers.add(new Bagging());
         classifiers.add(new LogitBoost());
         classifiers.add(new MultilayerPerceptron());
     }
 
     /**
-     * Saves the until now collected data points to a temporary file. This is a security measure to aid data recovery if anything goes wrong.
+     * Syncs the journal of the until now collected data points and closes it.
+     * The data points are already written to the journal when they are collected, so the journal itself is the copy
+     * which aids data recovery if anything goes wrong and nothing has to be written again here.
      */
     private void saveDataPoints() {
-        if (!dataPoints.isEmpty()) {
-            fileHelper.saveDataPoints(dataPoints);
-            createArffFile("temp.arff");
+        if (dataPointJournal == null)
+            return;
+        try {
+            dataPointJournal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            alert("Could not save DataPoints");
         }
     }
 
     /**
-     * Loads the temporarily saved data points again. Belongs to data security system which prevents data loss.
+     * Opens the journal of the collected data points again. Belongs to data security system which prevents data loss.
      */
     private void loadDataPoints() {
-        dataPoints = fileHelper.loadDataPoints();
+        dataPointJournal = fileHelper.openDataPointJournal();
     }
 
     /**
@@ -386,47 +514,46 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
                 // Start registering
                 registering = true;
             } else {
-                startButton.setText("START COLLECTING");
-                // Stop registering
-                registering = false;
+                stopCollecting();
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Stops the data collecting mode.
+     */
+    private void stopCollecting() {
+        startButton.setText("START COLLECTING");
+        // Stop registering
+        registering = false;
+    }
+
     /**
      * Saves the collected values as a data point to the list of data points.
      */
     private void saveDataPoint() {
-        if (registering) {
-            scanValue.setText(Integer.toString(scanNumber++));
-            this.dataPoints.add(currentDataPoint);
+        if (registering && dataPointJournal != null) {
+            try {
+                dataPointJournal.append(currentDataPoint);
+                scanValue.setText(Integer.toString(scanNumber++));
+            } catch (IOException e) {
+                e.printStackTrace();
+                // otherwise every following data point fails as well
+                stopCollecting();
+                alert("Stopped collecting: " + e.getMessage());
+            }
         }
     }
 
     /**
      * Predicts the room resp. landmark based on the trained classifiers and the current data point.
+     * The prediction is done by the inference pipeline in the background, the results arrive in onPredictions.
      */
     public void predict() {
-        if (predicting) {
-            Instances data;
-            try {
-                // make a dataset with only one instance (the one at the moment)
-                data = WekaHelper.convertToSingleInstance(test, currentDataPoint);
-            } catch (InvalidRoomException e) {
-                e.printStackTrace();
-                alert("Could not create single instance. Probably you entered an invalid room!");
-                return;
-            }
-            try {
-                for (int i = 0; i < NUMBER_OF_CLASSIFIERS; i++)
-                    predictions.set(i, WekaHelper.predictInstance(classifiers.get(i), data));
-            } catch (Exception e) {
-                e.printStackTrace();
-                alert(e.getMessage());
-            }
-        }
+        if (predicting)
+            inferencePipeline.submit(currentDataPoint);
     }
 
     /**
@@ -455,31 +582,30 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
 
                 alert("Creating Test File ... ");
                 try {
-                    test = WekaHelper.convertToSingleInstance(train, currentDataPoint);
+                    // keeps only the header of the train set, checks if the room is valid
+                    instanceBuilder = new InstanceBuilder(train, FEATURE_WINDOW_SIZE);
+                    instanceBuilder.checkRoom(currentDataPoint);
                 } catch (InvalidRoomException e) {
                     e.printStackTrace();
                     alert("Could not create single instance. Probably you entered an invalid room!");
                     return;
                 }
 
-                // Build Classifiers
+                // the classifiers are evaluated in parallel, slow ones are dropped automatically
+                ensemblePredictor = new EnsemblePredictor(classifiers);
+                // no classifier can predict before it is trained
+                for (int i = 0; i < NUMBER_OF_CLASSIFIERS; i++)
+                    ensemblePredictor.setReady(i, false);
+                inferencePipeline.setModels(instanceBuilder, ensemblePredictor);
+
+                // Build Classifiers in the background (or load them if the train set has not changed), the prediction starts with the ones trained first
                 alert("Training Models ...");
-                for (Classifier classifier : classifiers) {
-                    alert("Training " + classifier.getClass().getSimpleName() + " ...");
-                    try {
-                        // trains the ml models
-                        classifier.buildClassifier(train);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        alert("Could not train classifier!");
-                    }
-                    alert(classifier.getClass().getSimpleName() + " successfully trained!");
-                }
-                alert("Models successfully trained!");
+                backgroundTrainer.train(classifiers, train);
 
                 liveTestButton.setText("STOP LIVE TEST");
 
-                // Start predicting
+                // Start predicting, the first data point is predicted in any case
+                changeDetector.reset();
                 predicting = true;
 
             } else {
@@ -487,6 +613,21 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
 
                 // Stop predicting
                 predicting = false;
+                backgroundTrainer.cancel();
+
+                Log.i(getClass().getName(), inferencePipeline.getQueueLatency() + ", " + inferencePipeline.getInstanceLatency()
+                        + ", " + inferencePipeline.getClassifyLatency() + ", " + inferencePipeline.getTotalLatency()
+                        + ", coalesced: " + inferencePipeline.getCoalescedCount());
+                Log.i(getClass().getName(), "change detector: " + changeDetector);
+
+                inferencePipeline.setModels(null, null);
+                if (ensemblePredictor != null) {
+                    for (int i = 0; i < ensemblePredictor.getNumberOfModels(); i++)
+                        Log.i(getClass().getName(), ensemblePredictor.getLatency(i) + ", live: " + ensemblePredictor.isLive(i)
+                                + ", misses: " + ensemblePredictor.getMisses(i));
+                    ensemblePredictor.shutDown();
+                    ensemblePredictor = null;
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -520,17 +661,19 @@ public class CollectDataActivity extends AppCompatActivity implements SensorEven
      * @param filePath
      */
     private void createArffFile(String filePath) {
-        if (dataPoints.isEmpty()) {
+        if (dataPointJournal == null || dataPointJournal.isEmpty()) {
             alert("Please collect some Datapoints first!");
             return;
         }
-        Instances data =  WekaHelper.buildInstances(dataPoints);
 
         try {
+            // built directly from the journal without creating the data points again
+            Instances data = dataPointJournal.toInstances(FEATURE_WINDOW_SIZE);
+
             //fileHelper.saveArffToInternalStorage(data, filePath);
             fileHelper.saveArffToExternalStorage(data, filePath);
 
-            this.dataPoints = new ArrayList<>();
+            dataPointJournal.clear();
             // resets the scan number for the next data collection.
             this.scanNumber = 0;
             alert("Saved data points to " + filePath);
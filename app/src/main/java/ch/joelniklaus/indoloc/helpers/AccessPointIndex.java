@@ -0,0 +1,230 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps the access points of a site to the slots of the rss values (one slot per rss attribute in the arff files).
+ * Access points are matched by their BSSID first and then by their SSID, so a site can use either of them.
+ * <p>
+ * The index is loaded from a site config with one access point per line (the name is the rest of the line,
+ * so SSIDs may contain spaces). Optionally the config starts with the number of slots and the dynamic flag:
+ * <pre>
+ * # comment
+ * slots 256
+ * dynamic
+ * 0 bssid 38:10:d5:0e:1f:25
+ * 1 ssid Phone not found
+ * </pre>
+ * A dynamic index adds every unknown BSSID to the next free slot until all the slots are used,
+ * so large buildings do not have to be configured by hand. The slots have to stay the same for
+ * a training set, so a dynamic index is saved again in the same format (see save).
+ * Not thread safe, once scanning has started the index must only be used by the scan thread.
+ */
+public class AccessPointIndex {
+
+    public static final int NO_SLOT = -1;
+
+    private final int numberOfSlots;
+    private final boolean dynamic;
+    private final HashMap<String, Integer> slotsByBssid = new HashMap<>();
+    private final HashMap<String, Integer> slotsBySsid = new HashMap<>();
+    private int nextFreeSlot = 0;
+
+    public AccessPointIndex(int numberOfSlots) {
+        this(numberOfSlots, false);
+    }
+
+    /**
+     * @param numberOfSlots
+     * @param dynamic       if true unknown BSSIDs are added to the index by getOrAddSlot
+     */
+    public AccessPointIndex(int numberOfSlots, boolean dynamic) {
+        this.numberOfSlots = numberOfSlots;
+        this.dynamic = dynamic;
+    }
+
+    /**
+     * Loads the site config from the given stream and closes it.
+     *
+     * @param in
+     * @param numberOfSlots used if the config does not specify the number of slots
+     * @return
+     * @throws IOException if the config is malformed
+     */
+    public static AccessPointIndex load(InputStream in, int numberOfSlots) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+        try {
+            return parse(reader, numberOfSlots);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses a site config line by line.
+     *
+     * @param reader
+     * @param numberOfSlots used if the config does not specify the number of slots
+     * @return
+     * @throws IOException if the config is malformed
+     */
+    public static AccessPointIndex parse(BufferedReader reader, int numberOfSlots) throws IOException {
+        AccessPointIndex index = null;
+        boolean dynamic = false;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] parts = line.split("\\s+", 3);
+            if (index == null && parts[0].equals("slots") && parts.length == 2) {
+                numberOfSlots = parseInt(parts[1], lineNumber);
+                continue;
+            }
+            if (index == null && parts[0].equals("dynamic") && parts.length == 1) {
+                dynamic = true;
+                continue;
+            }
+            if (index == null)
+                index = new AccessPointIndex(numberOfSlots, dynamic);
+            if (parts.length != 3)
+                throw new IOException("Line " + lineNumber + ": expected <slot> <bssid|ssid> <name> but got '" + line + "'");
+            int slot = parseInt(parts[0], lineNumber);
+            if (slot < 0 || slot >= numberOfSlots)
+                throw new IOException("Line " + lineNumber + ": slot " + slot + " is not between 0 and " + (numberOfSlots - 1));
+            if (parts[1].equals("bssid"))
+                index.putBssid(parts[2], slot);
+            else if (parts[1].equals("ssid"))
+                index.putSsid(parts[2], slot);
+            else
+                throw new IOException("Line " + lineNumber + ": unknown key type '" + parts[1] + "'");
+        }
+        return index != null ? index : new AccessPointIndex(numberOfSlots, dynamic);
+    }
+
+    private static int parseInt(String value, int lineNumber) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + lineNumber + ": invalid number '" + value + "'");
+        }
+    }
+
+    /**
+     * Writes the index in the format read by parse.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void save(Writer writer) throws IOException {
+        writer.write("slots " + numberOfSlots + "\n");
+        if (dynamic)
+            writer.write("dynamic\n");
+        for (Map.Entry<String, Integer> entry : sortBySlot(slotsByBssid))
+            writer.write(entry.getValue() + " bssid " + entry.getKey() + "\n");
+        for (Map.Entry<String, Integer> entry : sortBySlot(slotsBySsid))
+            writer.write(entry.getValue() + " ssid " + entry.getKey() + "\n");
+        writer.flush();
+    }
+
+    private static ArrayList<Map.Entry<String, Integer>> sortBySlot(HashMap<String, Integer> slots) {
+        ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<>(slots.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> first, Map.Entry<String, Integer> second) {
+                return first.getValue().compareTo(second.getValue());
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * @param bssid the MAC address of the access point, is stored in lower case like Android reports it
+     * @param slot
+     */
+    public void putBssid(String bssid, int slot) {
+        slotsByBssid.put(bssid.toLowerCase(Locale.US), slot);
+        nextFreeSlot = Math.max(nextFreeSlot, slot + 1);
+    }
+
+    /**
+     * @param ssid the network name, all access points of the network are mapped to the same slot
+     * @param slot
+     */
+    public void putSsid(String ssid, int slot) {
+        slotsBySsid.put(ssid, slot);
+        nextFreeSlot = Math.max(nextFreeSlot, slot + 1);
+    }
+
+    /**
+     * Gets the slot of the access point with the given BSSID and SSID.
+     *
+     * @param bssid in lower case
+     * @param ssid
+     * @return the slot or NO_SLOT if the access point does not belong to the site
+     */
+    public int getSlot(String bssid, String ssid) {
+        Integer slot = null;
+        if (bssid != null && !slotsByBssid.isEmpty())
+            slot = slotsByBssid.get(bssid);
+        if (slot == null && ssid != null)
+            slot = slotsBySsid.get(ssid);
+        return slot == null ? NO_SLOT : slot;
+    }
+
+    /**
+     * Gets the slot of the access point like getSlot. If the index is dynamic an unknown access point
+     * is added to the next free slot.
+     *
+     * @param bssid in lower case
+     * @param ssid
+     * @return the slot or NO_SLOT if the access point is unknown and cannot be added
+     */
+    public int getOrAddSlot(String bssid, String ssid) {
+        int slot = getSlot(bssid, ssid);
+        if (slot != NO_SLOT || !dynamic || bssid == null || nextFreeSlot >= numberOfSlots)
+            return slot;
+        slot = nextFreeSlot;
+        putBssid(bssid, slot);
+        return slot;
+    }
+
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    /**
+     * Gets the number of slots which are used by at least one access point (or lie before one which is).
+     *
+     * @return
+     */
+    public int getNumberOfUsedSlots() {
+        return nextFreeSlot;
+    }
+
+    public int getNumberOfSlots() {
+        return numberOfSlots;
+    }
+
+    /**
+     * Gets the number of access points in the index.
+     *
+     * @return
+     */
+    public int size() {
+        return slotsByBssid.size() + slotsBySsid.size();
+    }
+}
@@ -0,0 +1,271 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Writes instances to an arff file row by row.
+ * <p>
+ * In contrast to writing Instances.toString() the whole file is never held in memory at once:
+ * the header is written first and every row is formatted into one reusable line buffer and then handed to a buffered writer.
+ * The rows are written in the same format as Weka does, so the files can be loaded with the usual loaders.
+ * <p>
+ * In append mode the rows are added to an existing file, which allows to save the data points continuously while collecting.
+ * The header is only written if the file does not exist yet, so the caller has to make sure that the header matches the file.
+ * Not thread safe.
+ */
+public class ArffStreamWriter implements Closeable {
+
+    /**
+     * The number of decimal places Weka uses for numeric values.
+     */
+    public static final int AFTER_DECIMAL_POINT = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final double SCALE = 1e6;
+    // larger values are formatted by Weka, so the scaled value stays exact enough
+    private static final double MAX_FAST_VALUE = 1e9;
+
+    private final Instances header;
+    private final CountingOutputStream out;
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(256);
+    private final long startTime = System.nanoTime();
+    private long rowsWritten = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a new file (or overwrites an existing one) and writes the header.
+     *
+     * @param file
+     * @param header the instances which define the header, the rows are not written
+     * @throws IOException
+     */
+    public ArffStreamWriter(File file, Instances header) throws IOException {
+        this(file, header, false);
+    }
+
+    /**
+     * @param file
+     * @param header the instances which define the header, the rows are not written
+     * @param append if true the rows are appended to the file if it already exists
+     * @throws IOException
+     */
+    public ArffStreamWriter(File file, Instances header, boolean append) throws IOException {
+        this.header = header;
+        boolean existing = append && file.length() > 0;
+        boolean newLineMissing = existing && !endsWithNewLine(file);
+
+        out = new CountingOutputStream(new FileOutputStream(file, existing));
+        writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")), BUFFER_SIZE);
+
+        if (!existing)
+            // the header of an empty dataset ends with the @data line
+            writer.write(new Instances(header, 0).toString());
+        else if (newLineMissing)
+            // files written with Instances.toString() do not end with a new line
+            writer.write('\n');
+    }
+
+    /**
+     * Writes all the rows of the given instances.
+     *
+     * @param instances
+     * @throws IOException
+     */
+    public void writeInstances(Instances instances) throws IOException {
+        for (Instance instance : instances)
+            writeInstance(instance);
+    }
+
+    /**
+     * Writes one row.
+     *
+     * @param instance
+     * @throws IOException
+     */
+    public void writeInstance(Instance instance) throws IOException {
+        if (closed)
+            throw new IOException("The writer has already been closed");
+        line.setLength(0);
+        if (instance instanceof DenseInstance)
+            appendDenseInstance(instance);
+        else
+            // sparse instances are written in their own format
+            line.append(instance.toString());
+        line.append('\n');
+        writer.append(line);
+        rowsWritten++;
+    }
+
+    /**
+     * Formats a dense instance the same way as Instance.toString() does, but without creating a string for every numeric value.
+     *
+     * @param instance
+     */
+    private void appendDenseInstance(Instance instance) {
+        for (int i = 0; i < instance.numAttributes(); i++) {
+            if (i > 0)
+                line.append(',');
+            Attribute attribute = header.attribute(i);
+            if (attribute.isNumeric() && !instance.isMissing(i))
+                appendNumber(line, instance.value(i));
+            else
+                line.append(instance.toString(i, AFTER_DECIMAL_POINT));
+        }
+        if (instance.weight() != 1.0) {
+            line.append(",{");
+            appendNumber(line, instance.weight());
+            line.append('}');
+        }
+    }
+
+    /**
+     * Appends the value with at most six decimal places and without trailing zeros.
+     * Gives the same result as Utils.doubleToString(value, 6). Values which cannot be formatted exactly
+     * with long arithmetic (very large values or values close to a rounding tie) are formatted by Weka.
+     *
+     * @param builder
+     * @param value
+     */
+    static void appendNumber(StringBuilder builder, double value) {
+        if (value == (long) value && Math.abs(value) < MAX_FAST_VALUE && !isNegativeZero(value)) {
+            builder.append((long) value);
+            return;
+        }
+        double scaled = Math.abs(value) * SCALE;
+        double floor = Math.floor(scaled);
+        if (Math.abs(value) >= MAX_FAST_VALUE || Double.isNaN(value) || Math.abs(scaled - floor - 0.5) < 1e-3) {
+            builder.append(Utils.doubleToString(value, AFTER_DECIMAL_POINT));
+            return;
+        }
+        long rounded = (long) (scaled - floor < 0.5 ? floor : floor + 1);
+        if (value < 0 || isNegativeZero(value))
+            // Weka keeps the sign even if the value is rounded to zero
+            builder.append('-');
+        builder.append(rounded / (long) SCALE);
+        long fraction = rounded % (long) SCALE;
+        if (fraction == 0)
+            return;
+        builder.append('.');
+        int digits = AFTER_DECIMAL_POINT;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        // leading zeros of the fraction
+        for (long limit = pow10(digits - 1); limit > fraction; limit /= 10)
+            builder.append('0');
+        builder.append(fraction);
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++)
+            result *= 10;
+        return result;
+    }
+
+    private static boolean isNegativeZero(double value) {
+        return value == 0.0 && Double.doubleToRawLongBits(value) != 0L;
+    }
+
+    private static boolean endsWithNewLine(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.seek(file.length() - 1);
+            return randomAccessFile.read() == '\n';
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Writes the buffered rows to the file.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        writer.close();
+    }
+
+    /**
+     * Gets the number of rows written by this writer.
+     *
+     * @return
+     */
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    /**
+     * Gets the number of bytes which reached the file so far. Buffered rows are only counted after a flush.
+     *
+     * @return
+     */
+    public long getBytesWritten() {
+        return out.count;
+    }
+
+    /**
+     * Gets the throughput since the writer has been opened.
+     *
+     * @return
+     */
+    public double getBytesPerSecond() {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed == 0 ? 0 : out.count * 1e9 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return rowsWritten + " rows, " + getBytesWritten() + " bytes, "
+                + Math.round(getBytesPerSecond() / 1024) + " KiB/s";
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.functions.LibSVM;
+import weka.classifiers.functions.Logistic;
+import weka.classifiers.functions.MultilayerPerceptron;
+import weka.classifiers.functions.SMO;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.meta.LogitBoost;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instances;
+
+/**
+ * Trains several classifiers concurrently on worker threads.
+ * <p>
+ * Every classifier is trained on a fresh copy of itself, so the classifiers passed in are never modified and can
+ * still be used while the training runs. The classifiers share the training data, only the ones which may change
+ * the data they are trained with get their own copy. Every trained classifier is handed to the
+ * listener as soon as it is ready, so the prediction can start with the fastest classifiers.
+ * A running training can be cancelled, the results of a cancelled training are never delivered.
+ * Cancelling does not stop a classifier which is being built, its result is only discarded.
+ * If a model store is set, a classifier which has already been trained with the same data and options
+ * is loaded from the store instead of being trained again, and every newly trained classifier is saved to it.
+ */
+public class BackgroundTrainer {
+
+    /**
+     * Receives the progress of the training. Is always called on the ui thread.
+     */
+    public interface Listener {
+        void onModelTrained(int index, Classifier classifier, long trainTimeMilliS, int finished, int total);
+
+        void onModelFailed(int index, String message, int finished, int total);
+
+        void onTrainingFinished();
+    }
+
+    /**
+     * The classifiers which copy the training data before changing it (e.g. deleting the rows with a missing class),
+     * so they can all be trained with the same data at the same time. Only the exact classes are listed,
+     * a subclass may change the data itself.
+     */
+    private static final Class<?>[] COPYING_CLASSIFIERS = {NaiveBayes.class, IBk.class, LibSVM.class, Logistic.class, SMO.class,
+            MultilayerPerceptron.class, Bagging.class, LogitBoost.class, RandomForest.class, RandomTree.class};
+
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private ExecutorService executor;
+    private final ArrayList<Future<?>> futures = new ArrayList<>();
+    private volatile int generation = 0;
+    private volatile ModelStore modelStore;
+
+    public BackgroundTrainer(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the store the trained classifiers are cached in. Applies to the trainings started afterwards.
+     *
+     * @param modelStore null to always train the classifiers
+     */
+    public void setModelStore(ModelStore modelStore) {
+        this.modelStore = modelStore;
+    }
+
+    /**
+     * Starts to train all the given classifiers with the given data. Cancels a training which is still running.
+     *
+     * @param classifiers the untrained classifiers with their options set
+     * @param train
+     */
+    public synchronized void train(List<Classifier> classifiers, final Instances train) {
+        cancel();
+
+        final int currentGeneration = generation;
+        final int total = classifiers.size();
+        // only accessed on the ui thread, so the callbacks see the classifiers in the order they are delivered
+        final int[] finished = {0};
+        final ModelStore modelStore = this.modelStore;
+        // the hash of the training data is computed by the first worker which needs it
+        final String[] dataHash = {null};
+
+        int threads = Math.max(1, Math.min(total, Runtime.getRuntime().availableProcessors()));
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BackgroundTrainer-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        for (int i = 0; i < total; i++) {
+            final int index = i;
+            final Classifier template = classifiers.get(i);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Timer timer = new Timer();
+                    try {
+                        String key = null;
+                        if (modelStore != null) {
+                            synchronized (dataHash) {
+                                if (dataHash[0] == null)
+                                    dataHash[0] = ModelStore.hashData(train);
+                            }
+                            key = ModelStore.getKey(dataHash[0], template);
+                            Classifier stored = modelStore.load(key);
+                            if (stored != null) {
+                                publish(currentGeneration, index, stored, timer.timeElapsed(), null, finished, total);
+                                return;
+                            }
+                        }
+
+                        if (currentGeneration != generation)
+                            return;
+                        Classifier classifier = AbstractClassifier.makeCopy(template);
+                        classifier.buildClassifier(copiesTrainingData(template) ? train : new Instances(train));
+                        if (modelStore != null && currentGeneration == generation) try {
+                            modelStore.save(key, classifier);
+                        } catch (Exception e) {
+                            // the classifier can still be used, it is only trained again next time
+                            e.printStackTrace();
+                        }
+                        publish(currentGeneration, index, classifier, timer.timeElapsed(), null, finished, total);
+                    } catch (Exception e) {
+                        if (currentGeneration != generation)
+                            return;
+                        e.printStackTrace();
+                        publish(currentGeneration, index, null, timer.timeElapsed(), e.getMessage(), finished, total);
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Cancels the running training. Classifiers which are trained afterwards are not delivered anymore.
+     * The classifiers which have not been started are not trained at all, the ones being built are finished
+     * in the background and discarded.
+     */
+    public synchronized void cancel() {
+        generation++;
+        for (Future<?> future : futures)
+            future.cancel(true);
+        futures.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Checks if there are classifiers which are still being trained.
+     *
+     * @return
+     */
+    public synchronized boolean isRunning() {
+        return executor != null && !executor.isTerminated();
+    }
+
+    /**
+     * Checks if the classifier copies the training data before changing it, so it does not need a copy of its own.
+     *
+     * @param classifier
+     * @return
+     */
+    private static boolean copiesTrainingData(Classifier classifier) {
+        if (classifier instanceof CompiledForest)
+            return copiesTrainingData(((CompiledForest) classifier).getClassifier());
+        for (Class<?> copying : COPYING_CLASSIFIERS)
+            if (classifier.getClass() == copying)
+                return true;
+        return false;
+    }
+
+    /**
+     * Hands the result of one classifier over to the listener on the ui thread.
+     *
+     * @param currentGeneration the training the result belongs to
+     * @param index
+     * @param classifier        the trained classifier or null if the training failed
+     * @param trainTimeMilliS
+     * @param message           the error message if the training failed
+     * @param finished
+     * @param total
+     */
+    private void publish(final int currentGeneration, final int index, final Classifier classifier, final long trainTimeMilliS,
+                         final String message, final int[] finished, final int total) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (currentGeneration != generation)
+                    return;
+                finished[0]++;
+                if (classifier != null)
+                    listener.onModelTrained(index, classifier, trainTimeMilliS, finished[0], total);
+                else
+                    listener.onModelFailed(index, message, finished[0], total);
+                if (finished[0] == total)
+                    listener.onTrainingFinished();
+            }
+        });
+    }
+}
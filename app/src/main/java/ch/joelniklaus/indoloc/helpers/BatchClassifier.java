@@ -0,0 +1,200 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.SingleClassifierEnhancer;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.BatchPredictor;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Adds batch prediction (see BatchPredictor) to any classifier, so Evaluation.evaluateModel and WekaHelper.testBatch
+ * classify a whole test set at once.
+ * <p>
+ * The instances are split into chunks which are classified in parallel. Classifiers which only read their model
+ * while classifying (e.g. random forests and naive bayes) are shared by all the threads. All the others
+ * (e.g. IBk, Logistic, SMO and MultilayerPerceptron keep intermediate results in fields) are copied once per thread
+ * after the training, so the copies and their buffers are reused for all the following batches.
+ * Within a chunk, the batch prediction of the wrapped classifier is used if it has a more efficient one (e.g. CompiledForest).
+ * One batch is classified at a time.
+ */
+public class BatchClassifier extends SingleClassifierEnhancer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Smaller batches are classified on the calling thread.
+     */
+    public static final int MIN_CHUNK_SIZE = 64;
+
+    private static final HashSet<String> THREAD_SAFE_CLASSIFIERS = new HashSet<>();
+
+    static {
+        THREAD_SAFE_CLASSIFIERS.add(RandomForest.class.getName());
+        THREAD_SAFE_CLASSIFIERS.add(RandomTree.class.getName());
+        THREAD_SAFE_CLASSIFIERS.add(CompiledForest.class.getName());
+    }
+
+    private static ExecutorService executor;
+
+    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+    private transient Classifier[] copies;
+
+    public BatchClassifier() {
+    }
+
+    /**
+     * @param classifier the classifier to train, or an already trained classifier
+     */
+    public BatchClassifier(Classifier classifier) {
+        m_Classifier = classifier;
+    }
+
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        m_Classifier.buildClassifier(data);
+        synchronized (this) {
+            copies = null;
+        }
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+        return m_Classifier.distributionForInstance(instance);
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    /**
+     * Classifies all the given instances in parallel chunks.
+     *
+     * @param instances
+     * @return the class distribution of every instance
+     * @throws Exception
+     */
+    @Override
+    public synchronized double[][] distributionsForInstances(final Instances instances) throws Exception {
+        ExecutorService executor = getExecutor();
+        int chunks = Math.max(1, Math.min(numberOfThreads, instances.numInstances() / MIN_CHUNK_SIZE));
+        if (chunks == 1)
+            return classifyChunk(m_Classifier, instances, 0, instances.numInstances());
+
+        final Classifier[] classifiers = getCopies(chunks);
+        final double[][] distributions = new double[instances.numInstances()][];
+        List<Callable<Void>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            final int start = (int) ((long) instances.numInstances() * c / chunks);
+            final int end = (int) ((long) instances.numInstances() * (c + 1) / chunks);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    double[][] result = classifyChunk(classifiers[chunk], instances, start, end);
+                    System.arraycopy(result, 0, distributions, start, result.length);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks))
+                future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+        return distributions;
+    }
+
+    private static double[][] classifyChunk(Classifier classifier, Instances instances, int start, int end) throws Exception {
+        if (classifier instanceof BatchPredictor && ((BatchPredictor) classifier).implementsMoreEfficientBatchPrediction())
+            return ((BatchPredictor) classifier).distributionsForInstances(new Instances(instances, start, end - start));
+        double[][] distributions = new double[end - start][];
+        for (int i = start; i < end; i++)
+            distributions[i - start] = classifier.distributionForInstance(instances.instance(i));
+        return distributions;
+    }
+
+    /**
+     * Gets a classifier for every chunk. Only thread safe classifiers are shared, all the others are copied once.
+     *
+     * @param chunks
+     * @return
+     * @throws Exception
+     */
+    private Classifier[] getCopies(int chunks) throws Exception {
+        if (copies == null)
+            copies = new Classifier[]{m_Classifier};
+        if (copies.length < chunks) {
+            Classifier[] grown = new Classifier[chunks];
+            System.arraycopy(copies, 0, grown, 0, copies.length);
+            for (int i = copies.length; i < chunks; i++)
+                grown[i] = isThreadSafe(m_Classifier) ? m_Classifier : AbstractClassifier.makeCopy(m_Classifier);
+            copies = grown;
+        }
+        return copies;
+    }
+
+    /**
+     * Checks if the trained classifier can classify instances on several threads at the same time.
+     *
+     * @param classifier
+     * @return
+     */
+    static boolean isThreadSafe(Classifier classifier) {
+        // naive bayes only modifies its discretization filter while classifying
+        if (classifier.getClass() == NaiveBayes.class)
+            return !((NaiveBayes) classifier).getUseSupervisedDiscretization();
+        return THREAD_SAFE_CLASSIFIERS.contains(classifier.getClass().getName());
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            // the threads are shared by all the batch classifiers and end when they are idle
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger number = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BatchClassifier-" + number.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @param numberOfThreads the maximum number of chunks classified in parallel, defaults to the number of processors
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchClassifier of " + m_Classifier.toString();
+    }
+}
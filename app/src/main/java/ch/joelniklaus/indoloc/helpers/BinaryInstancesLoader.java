@@ -0,0 +1,249 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.SparseInstance;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.ArffLoader;
+import weka.core.converters.BatchConverter;
+
+/**
+ * Loads instances saved by the BinaryInstancesSaver.
+ * <p>
+ * Files are memory mapped and the values of every row are copied with one bulk read from the mapped file
+ * into the array used by the instance, so nothing has to be parsed except the small arff header.
+ * Streams (e.g. from the assets) are read into memory first.
+ * <p>
+ * The file format (big endian):
+ * <ul>
+ * <li>magic number, version</li>
+ * <li>length of the header and the arff header (up to the @data line) in UTF-8, padded to a multiple of 8 bytes</li>
+ * <li>number of instances, number of attributes, flags (1 if the weights are stored, 2 if the rows are sparse), reserved</li>
+ * <li>dense rows: the values as doubles row by row (row major, so every row can be read in one go)</li>
+ * <li>sparse rows: the start of every row and the total number of values as ints,
+ * the attribute indices as ints and the values as doubles (each part padded to a multiple of 8 bytes)</li>
+ * <li>the weights as doubles if the flag is set</li>
+ * </ul>
+ * Sparse rows are loaded as sparse instances which keep the arrays read from the file.
+ */
+public class BinaryInstancesLoader extends AbstractFileLoader implements BatchConverter {
+
+    public static final String FILE_EXTENSION = ".bin";
+
+    static final int MAGIC = 0x57424931; // "WBI1"
+    static final int VERSION = 1;
+    static final int FLAG_WEIGHTS = 1;
+    static final int FLAG_SPARSE = 2;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private transient ByteBuffer buffer;
+    private transient int dataStart;
+
+    public String globalInfo() {
+        return "Loads instances from a binary file written by the BinaryInstancesSaver.";
+    }
+
+    @Override
+    public String getFileExtension() {
+        return FILE_EXTENSION;
+    }
+
+    @Override
+    public String[] getFileExtensions() {
+        return new String[]{FILE_EXTENSION};
+    }
+
+    @Override
+    public String getFileDescription() {
+        return "Binary instance files";
+    }
+
+    @Override
+    public void reset() throws IOException {
+        m_structure = null;
+        buffer = null;
+        setRetrieval(NONE);
+    }
+
+    /**
+     * Memory maps the file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    @Override
+    public void setSource(File file) throws IOException {
+        reset();
+        if (file == null)
+            throw new IOException("Source file object is null!");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // the mapping stays valid after the file has been closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+        m_sourceFile = file;
+        m_File = file.getPath();
+    }
+
+    /**
+     * Reads the whole stream into memory.
+     *
+     * @param in
+     * @throws IOException
+     */
+    @Override
+    public void setSource(InputStream in) throws IOException {
+        reset();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] bytes = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(bytes)) != -1)
+            out.write(bytes, 0, read);
+        in.close();
+        buffer = ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Override
+    public Instances getStructure() throws IOException {
+        if (buffer == null)
+            throw new IOException("No source has been specified");
+        if (m_structure == null) {
+            ByteBuffer header = buffer.duplicate();
+            if (header.remaining() < 12 || header.getInt() != MAGIC)
+                throw new IOException("Not a binary instances file");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version);
+            byte[] bytes = new byte[header.getInt()];
+            header.get(bytes);
+            m_structure = new ArffLoader.ArffReader(new StringReader(new String(bytes, UTF_8)), 0).getStructure();
+            dataStart = align(header.position());
+        }
+        return new Instances(m_structure, 0);
+    }
+
+    @Override
+    public Instances getDataSet() throws IOException {
+        Instances structure = getStructure();
+        setRetrieval(BATCH);
+
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataStart);
+        int numberOfInstances = data.getInt();
+        int numberOfAttributes = data.getInt();
+        int flags = data.getInt();
+        data.getInt();
+        if (numberOfAttributes != structure.numAttributes())
+            throw new IOException("The number of attributes does not match the header");
+
+        if ((flags & FLAG_SPARSE) != 0)
+            return getSparseDataSet(structure, data.slice(), numberOfInstances, (flags & FLAG_WEIGHTS) != 0);
+
+        DoubleBuffer values = data.slice().asDoubleBuffer();
+        if (values.remaining() < (long) numberOfInstances * numberOfAttributes
+                + ((flags & FLAG_WEIGHTS) != 0 ? numberOfInstances : 0))
+            throw new IOException("The file is truncated");
+        double[] weights = null;
+        if ((flags & FLAG_WEIGHTS) != 0) {
+            weights = new double[numberOfInstances];
+            DoubleBuffer weightValues = values.duplicate();
+            weightValues.position(numberOfInstances * numberOfAttributes);
+            weightValues.get(weights);
+        }
+
+        DirectInstances instances = new DirectInstances(structure, numberOfInstances);
+        for (int i = 0; i < numberOfInstances; i++) {
+            double[] row = new double[numberOfAttributes];
+            values.get(row);
+            instances.addWithoutCopy(new DenseInstance(weights == null ? 1.0 : weights[i], row));
+        }
+        return instances;
+    }
+
+    /**
+     * Reads the sparse rows. Every part is read with one bulk read.
+     *
+     * @param structure
+     * @param data              starting after the counts
+     * @param numberOfInstances
+     * @param weighted
+     * @return
+     * @throws IOException
+     */
+    private Instances getSparseDataSet(Instances structure, ByteBuffer data, int numberOfInstances, boolean weighted) throws IOException {
+        int[] rowStarts = new int[numberOfInstances + 1];
+        int position = align(4 * rowStarts.length);
+        if (data.remaining() < position)
+            throw new IOException("The file is truncated");
+        data.asIntBuffer().get(rowStarts);
+        int numberOfValues = rowStarts[numberOfInstances];
+        int valuesPosition = position + align(4 * numberOfValues);
+        if (numberOfValues < 0 || data.remaining() < (long) valuesPosition + 8L * numberOfValues + (weighted ? 8L * numberOfInstances : 0))
+            throw new IOException("The file is truncated");
+
+        int[] indices = new int[numberOfValues];
+        ((ByteBuffer) data.duplicate().position(position)).asIntBuffer().get(indices);
+        double[] values = new double[numberOfValues];
+        ByteBuffer valueBytes = (ByteBuffer) data.duplicate().position(valuesPosition);
+        valueBytes.asDoubleBuffer().get(values);
+        double[] weights = null;
+        if (weighted) {
+            weights = new double[numberOfInstances];
+            ((ByteBuffer) valueBytes.position(valuesPosition + 8 * numberOfValues)).asDoubleBuffer().get(weights);
+        }
+
+        int numberOfAttributes = structure.numAttributes();
+        DirectInstances instances = new DirectInstances(structure, numberOfInstances);
+        for (int i = 0; i < numberOfInstances; i++) {
+            int start = rowStarts[i];
+            int length = rowStarts[i + 1] - start;
+            if (length < 0)
+                throw new IOException("Invalid row " + i);
+            int[] rowIndices = new int[length];
+            double[] rowValues = new double[length];
+            System.arraycopy(indices, start, rowIndices, 0, length);
+            System.arraycopy(values, start, rowValues, 0, length);
+            instances.addWithoutCopy(new SparseInstance(weights == null ? 1.0 : weights[i], rowValues, rowIndices, numberOfAttributes));
+        }
+        return instances;
+    }
+
+    /**
+     * Not supported, the instances can only be loaded at once.
+     */
+    @Override
+    public Instance getNextInstance(Instances structure) throws IOException {
+        throw new IOException("BinaryInstancesLoader can't read data sets incrementally.");
+    }
+
+    @Override
+    public String getRevision() {
+        return RevisionUtils.extract("$Revision: 1 $");
+    }
+
+    /**
+     * Rounds the position up to the next multiple of 8 bytes, so the doubles are aligned.
+     *
+     * @param position
+     * @return
+     */
+    static int align(int position) {
+        return (position + 7) & ~7;
+    }
+}
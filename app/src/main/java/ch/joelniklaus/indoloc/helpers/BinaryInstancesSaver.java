@@ -0,0 +1,215 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.SparseInstance;
+import weka.core.converters.AbstractFileSaver;
+import weka.core.converters.BatchConverter;
+
+/**
+ * Saves instances in the binary format read by the BinaryInstancesLoader.
+ * Only numeric, nominal and date attributes are supported, because all the values are stored as doubles.
+ */
+public class BinaryInstancesSaver extends AbstractFileSaver implements BatchConverter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private transient OutputStream output;
+
+    public BinaryInstancesSaver() {
+        resetOptions();
+    }
+
+    public String globalInfo() {
+        return "Saves instances to a binary file which can be loaded without parsing.";
+    }
+
+    @Override
+    public String getFileDescription() {
+        return "Binary instance files";
+    }
+
+    @Override
+    public void resetOptions() {
+        super.resetOptions();
+        setFileExtension(BinaryInstancesLoader.FILE_EXTENSION);
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        Capabilities result = super.getCapabilities();
+
+        result.enable(Capability.NOMINAL_ATTRIBUTES);
+        result.enable(Capability.NUMERIC_ATTRIBUTES);
+        result.enable(Capability.DATE_ATTRIBUTES);
+        result.enable(Capability.MISSING_VALUES);
+
+        result.enable(Capability.NOMINAL_CLASS);
+        result.enable(Capability.NUMERIC_CLASS);
+        result.enable(Capability.DATE_CLASS);
+        result.enable(Capability.MISSING_CLASS_VALUES);
+        result.enable(Capability.NO_CLASS);
+
+        return result;
+    }
+
+    @Override
+    public void resetWriter() {
+        super.resetWriter();
+        output = null;
+    }
+
+    @Override
+    public void setDestination(File file) throws IOException {
+        setDestination(new FileOutputStream(file));
+    }
+
+    @Override
+    public void setDestination(OutputStream output) throws IOException {
+        this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+    }
+
+    @Override
+    public void writeBatch() throws IOException {
+        Instances instances = getInstances();
+        if (instances == null)
+            throw new IOException("No instances to save");
+        if (getRetrieval() == INCREMENTAL)
+            throw new IOException("Batch and incremental saving cannot be mixed.");
+        if (output == null) {
+            if (retrieveFile() == null)
+                throw new IOException("No destination has been specified");
+            setDestination(retrieveFile());
+        }
+        setRetrieval(BATCH);
+        setWriteMode(WRITE);
+
+        try {
+            write(instances, output);
+        } finally {
+            output.close();
+            setWriteMode(WAIT);
+            resetWriter();
+            setWriteMode(CANCEL);
+        }
+    }
+
+    /**
+     * Writes the header and then the values row by row through a reusable buffer.
+     * The rows are written sparse if all of them are sparse instances.
+     *
+     * @param instances
+     * @param output
+     * @throws IOException
+     */
+    private static void write(Instances instances, OutputStream output) throws IOException {
+        byte[] header = new Instances(instances, 0).toString().getBytes(BinaryInstancesLoader.UTF_8);
+        boolean weighted = false;
+        boolean sparse = instances.numInstances() > 0;
+        for (Instance instance : instances) {
+            weighted |= instance.weight() != 1.0;
+            sparse &= instance instanceof SparseInstance;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.putInt(BinaryInstancesLoader.MAGIC);
+        buffer.putInt(BinaryInstancesLoader.VERSION);
+        buffer.putInt(header.length);
+        output.write(buffer.array(), 0, buffer.position());
+        output.write(header);
+        int position = buffer.position() + header.length;
+        buffer.clear();
+        for (int i = position; i < BinaryInstancesLoader.align(position); i++)
+            buffer.put((byte) 0);
+
+        buffer.putInt(instances.numInstances());
+        buffer.putInt(instances.numAttributes());
+        buffer.putInt((weighted ? BinaryInstancesLoader.FLAG_WEIGHTS : 0) | (sparse ? BinaryInstancesLoader.FLAG_SPARSE : 0));
+        buffer.putInt(0);
+        if (sparse)
+            writeSparseRows(instances, buffer, output);
+        else
+            for (Instance instance : instances)
+                for (int i = 0; i < instances.numAttributes(); i++)
+                    putDouble(buffer, instance.value(i), output);
+        if (weighted)
+            for (Instance instance : instances)
+                putDouble(buffer, instance.weight(), output);
+        output.write(buffer.array(), 0, buffer.position());
+        output.flush();
+    }
+
+    /**
+     * Writes the row starts, the attribute indices and the values of the sparse rows, each part padded to 8 bytes.
+     *
+     * @param instances
+     * @param buffer
+     * @param output
+     * @throws IOException
+     */
+    private static void writeSparseRows(Instances instances, ByteBuffer buffer, OutputStream output) throws IOException {
+        int start = 0;
+        putInt(buffer, start, output);
+        for (Instance instance : instances) {
+            start += instance.numValues();
+            putInt(buffer, start, output);
+        }
+        if ((instances.numInstances() + 1) % 2 != 0)
+            putInt(buffer, 0, output);
+
+        for (Instance instance : instances)
+            for (int i = 0; i < instance.numValues(); i++)
+                putInt(buffer, instance.index(i), output);
+        if (start % 2 != 0)
+            putInt(buffer, 0, output);
+
+        for (Instance instance : instances)
+            for (int i = 0; i < instance.numValues(); i++)
+                putDouble(buffer, instance.valueSparse(i), output);
+    }
+
+    private static void putInt(ByteBuffer buffer, int value, OutputStream output) throws IOException {
+        if (buffer.remaining() < 4) {
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        buffer.putInt(value);
+    }
+
+    private static void putDouble(ByteBuffer buffer, double value, OutputStream output) throws IOException {
+        if (buffer.remaining() < 8) {
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Saves the instances to the given file.
+     *
+     * @param instances
+     * @param file
+     * @throws IOException
+     */
+    public static void save(Instances instances, File file) throws IOException {
+        BinaryInstancesSaver saver = new BinaryInstancesSaver();
+        saver.setInstances(instances);
+        saver.setDestination(file);
+        saver.writeBatch();
+    }
+
+    @Override
+    public String getRevision() {
+        return RevisionUtils.extract("$Revision: 1 $");
+    }
+}
@@ -0,0 +1,172 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.models.DataPoint;
+
+/**
+ * Decides if a data point differs enough from the last accepted one to be worth a new prediction.
+ * <p>
+ * The sensor values are noisy, so two data points are practically never equal. Instead every feature
+ * (in the order of the attributes, see WekaHelper.fillFeatureValues) has a threshold and the fingerprint
+ * has only moved if at least one feature changed by more than its threshold compared to the last accepted data point.
+ * After a data point has been accepted, changes are ignored for the debounce time, so a burst of sensor events
+ * leads to one prediction only. To bound the staleness of the predictions a data point is always accepted
+ * if the last accepted one is older than the maximum staleness. A new room is always accepted.
+ * <p>
+ * Does not allocate anything as long as the number of rss values does not change. Not thread safe.
+ */
+public class ChangeDetector {
+
+    public static final long DEFAULT_DEBOUNCE_NANO_S = 200000000L; // 200 ms
+    public static final long DEFAULT_MAX_STALENESS_NANO_S = 2000000000L; // 2 s
+
+    /**
+     * The default thresholds of the sensor and location features, in the order of the attributes.
+     */
+    private static final double[] DEFAULT_THRESHOLDS = {
+            0.5, // ambientTemperature (°C)
+            10, // light (lx)
+            0.1, // pressure (hPa)
+            1, // relativeHumidity (%)
+            0.5, 0.5, 0.5, // gravity (m/s^2)
+            1, 1, 1, // magnetic (µT)
+            0.5, // gravityMagnitude (m/s^2)
+            1, // geomagneticMagnitude (µT)
+            1, 1, // magneticProcessed (µT)
+            0.00001, 0.00001 // latitude and longitude (about 1 m)
+    };
+    public static final double DEFAULT_RSS_THRESHOLD = 2; // dBm
+
+    private final double[] thresholds = DEFAULT_THRESHOLDS.clone();
+    private double rssThreshold = DEFAULT_RSS_THRESHOLD;
+    private long debounceNanoS = DEFAULT_DEBOUNCE_NANO_S;
+    private long maxStalenessNanoS = DEFAULT_MAX_STALENESS_NANO_S;
+
+    private double[] reference = new double[0];
+    private double[] current = new double[0];
+    private String referenceRoom;
+    private boolean hasReference = false;
+    private long lastAcceptTime;
+
+    private long acceptedCount = 0;
+    private long suppressedCount = 0;
+
+    /**
+     * Checks if the data point should be predicted. If so, it becomes the reference for the next data points.
+     *
+     * @param dataPoint
+     * @param now       the current time in nanoseconds (e.g. System.nanoTime())
+     * @return true if the fingerprint has moved, the room has changed or the last accepted data point is too old
+     */
+    public boolean accept(DataPoint dataPoint, long now) {
+        int numberOfFeatures = WekaHelper.getNumberOfFeatures(dataPoint);
+        if (current.length != numberOfFeatures) {
+            // the number of access points has changed, so the data points cannot be compared
+            current = new double[numberOfFeatures];
+            hasReference = false;
+        }
+        WekaHelper.fillFeatureValues(dataPoint, current, 0);
+
+        long elapsed = now - lastAcceptTime;
+        boolean accept = !hasReference
+                || !dataPoint.getRoom().equals(referenceRoom)
+                || elapsed >= maxStalenessNanoS
+                || (elapsed >= debounceNanoS && hasMoved());
+        if (!accept) {
+            suppressedCount++;
+            return false;
+        }
+
+        // the current values become the reference, the old reference array is reused for the next data point
+        double[] swap = reference;
+        reference = current;
+        current = swap.length == numberOfFeatures ? swap : new double[numberOfFeatures];
+        referenceRoom = dataPoint.getRoom();
+        lastAcceptTime = now;
+        hasReference = true;
+        acceptedCount++;
+        return true;
+    }
+
+    /**
+     * Checks if any feature of the current values differs from the reference by more than its threshold.
+     *
+     * @return
+     */
+    private boolean hasMoved() {
+        for (int i = 0; i < current.length; i++) {
+            double threshold = i < thresholds.length ? thresholds[i] : rssThreshold;
+            // also true if exactly one of the values is NaN
+            if (!(Math.abs(current[i] - reference[i]) <= threshold) && !(Double.isNaN(current[i]) && Double.isNaN(reference[i])))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the reference, so the next data point is accepted.
+     */
+    public void reset() {
+        hasReference = false;
+    }
+
+    /**
+     * Sets the threshold of one sensor or location feature.
+     *
+     * @param feature   the index of the feature, i.e. the index of the attribute - 1
+     * @param threshold the feature has moved if it changed by more than this value
+     */
+    public void setThreshold(int feature, double threshold) {
+        if (feature < 0 || feature >= thresholds.length)
+            throw new IllegalArgumentException("Only the thresholds of the " + thresholds.length + " sensor and location features can be set individually");
+        thresholds[feature] = threshold;
+    }
+
+    public double getThreshold(int feature) {
+        return thresholds[feature];
+    }
+
+    /**
+     * Sets the threshold used for all the rss values.
+     *
+     * @param rssThreshold
+     */
+    public void setRssThreshold(double rssThreshold) {
+        this.rssThreshold = rssThreshold;
+    }
+
+    public double getRssThreshold() {
+        return rssThreshold;
+    }
+
+    public void setDebounceNanoS(long debounceNanoS) {
+        this.debounceNanoS = debounceNanoS;
+    }
+
+    public long getDebounceNanoS() {
+        return debounceNanoS;
+    }
+
+    public void setMaxStalenessNanoS(long maxStalenessNanoS) {
+        this.maxStalenessNanoS = maxStalenessNanoS;
+    }
+
+    public long getMaxStalenessNanoS() {
+        return maxStalenessNanoS;
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "accepted: " + acceptedCount + ", suppressed: " + suppressedCount
+                + ", thresholds: " + Arrays.toString(thresholds) + ", rss threshold: " + rssThreshold;
+    }
+}
@@ -0,0 +1,481 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+import weka.estimators.DiscreteEstimator;
+import weka.estimators.Estimator;
+import weka.estimators.NormalEstimator;
+
+/**
+ * Saves and loads trained classifiers in a compact binary format instead of java serialization.
+ * <p>
+ * The large models are stored as flat primitive arrays which are written and read in bulk:
+ * random forests and random trees as their flattened nodes (see FlatTrees), naive bayes as the parameters
+ * of its estimators and IBk as its training data (in the format of the BinaryInstancesSaver), from which
+ * the search structure is built again when loading. All the other classifiers (e.g. J48 and Logistic,
+ * whose models are small) are stored with java serialization inside the same container.
+ * <p>
+ * The format (big endian): magic number, version, kind of the model, flags (1 if the body is compressed),
+ * then the body: the class name and the options of the classifier followed by the model.
+ */
+public class CompactModelSerializer {
+
+    public static final String FILE_EXTENSION = ".cmodel";
+
+    static final int MAGIC = 0x49434D31; // "ICM1"
+    static final int VERSION = 1;
+    static final int FLAG_COMPRESSED = 1;
+
+    static final int KIND_SERIALIZED = 0;
+    static final int KIND_RANDOM_FOREST = 1;
+    static final int KIND_RANDOM_TREE = 2;
+    static final int KIND_NAIVE_BAYES = 3;
+    static final int KIND_IBK = 4;
+
+    private static final int ESTIMATOR_NONE = 0;
+    private static final int ESTIMATOR_NORMAL = 1;
+    private static final int ESTIMATOR_DISCRETE = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private CompactModelSerializer() {
+    }
+
+    /**
+     * Saves the trained classifier to the given file.
+     *
+     * @param classifier
+     * @param file
+     * @param compress   if the body is compressed (smaller, but slower to load)
+     * @throws IOException
+     */
+    public static void save(Classifier classifier, File file, boolean compress) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            write(classifier, output, compress);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Loads a trained classifier from the given file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Classifier load(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Writes the trained classifier to the stream. The stream is not closed.
+     *
+     * @param classifier
+     * @param output
+     * @param compress   if the body is compressed (smaller, but slower to load)
+     * @throws IOException
+     */
+    public static void write(Classifier classifier, OutputStream output, boolean compress) throws IOException {
+        int kind = getKind(classifier);
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(kind);
+        header.writeInt(compress ? FLAG_COMPRESSED : 0);
+        header.flush();
+
+        // the body must not close the stream of the caller
+        OutputStream bodyOutput = new FilterOutputStream(output) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        if (compress)
+            bodyOutput = new DeflaterOutputStream(bodyOutput, deflater, BUFFER_SIZE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bodyOutput, BUFFER_SIZE));
+        try {
+            writeString(out, classifier.getClass().getName());
+            writeString(out, classifier instanceof OptionHandler ? Utils.joinOptions(((OptionHandler) classifier).getOptions()) : "");
+            switch (kind) {
+                case KIND_RANDOM_FOREST:
+                case KIND_RANDOM_TREE:
+                    writeHeader(out, getTreeHeader(classifier));
+                    FlatTrees.flatten(classifier).write(out);
+                    break;
+                case KIND_NAIVE_BAYES:
+                    writeNaiveBayes(out, (NaiveBayes) classifier);
+                    break;
+                case KIND_IBK:
+                    writeIBk(out, (IBk) classifier);
+                    break;
+                default:
+                    ObjectOutputStream objectOutput = new ObjectOutputStream(out);
+                    objectOutput.writeObject(classifier);
+                    objectOutput.flush();
+            }
+        } finally {
+            out.close();
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Reads a trained classifier from the stream.
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    public static Classifier read(InputStream input) throws IOException {
+        DataInputStream header = new DataInputStream(input);
+        if (header.readInt() != MAGIC)
+            throw new IOException("Not a compact model");
+        int version = header.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported version of the compact model: " + version);
+        int kind = header.readInt();
+        int flags = header.readInt();
+
+        InputStream bodyInput = input;
+        boolean compressed = (flags & FLAG_COMPRESSED) != 0;
+        Inflater inflater = compressed ? new Inflater() : null;
+        if (compressed)
+            bodyInput = new InflaterInputStream(bodyInput, inflater, BUFFER_SIZE);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(bodyInput, BUFFER_SIZE));
+
+        String className = null;
+        try {
+            className = readString(in);
+            String options = readString(in);
+            switch (kind) {
+                case KIND_RANDOM_FOREST:
+                    return readRandomForest(in, options);
+                case KIND_RANDOM_TREE:
+                    return readRandomTree(in, options);
+                case KIND_NAIVE_BAYES:
+                    return readNaiveBayes(in, options);
+                case KIND_IBK:
+                    return readIBk(in, options);
+                case KIND_SERIALIZED:
+                    return (Classifier) new ObjectInputStream(in).readObject();
+                default:
+                    throw new IOException("Unknown kind of model " + kind + " for " + className);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not restore " + className, e);
+        } finally {
+            // the stream is left open for the caller, but the native memory of the inflater is released right away
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+
+    /**
+     * Gets the kind of the model, i.e. how it is stored. Trees which cannot be flattened are serialized.
+     *
+     * @param classifier
+     * @return
+     */
+    static int getKind(Classifier classifier) {
+        // subclasses could have additional state, so only the exact classes are stored compactly
+        if (classifier.getClass() == RandomForest.class && FlatTrees.canFlatten(classifier))
+            return KIND_RANDOM_FOREST;
+        if (classifier.getClass() == RandomTree.class && FlatTrees.canFlatten(classifier))
+            return KIND_RANDOM_TREE;
+        if (classifier.getClass() == NaiveBayes.class && isCompact((NaiveBayes) classifier))
+            return KIND_NAIVE_BAYES;
+        if (classifier.getClass() == IBk.class)
+            return KIND_IBK;
+        return KIND_SERIALIZED;
+    }
+
+    private static Instances getTreeHeader(Classifier classifier) {
+        Classifier tree = classifier instanceof RandomForest ? ((Classifier[]) WekaFields.get(classifier, "m_Classifiers"))[0] : classifier;
+        return (Instances) WekaFields.get(tree, "m_Info");
+    }
+
+    private static RandomForest readRandomForest(DataInputStream in, String options) throws Exception {
+        RandomForest forest = new RandomForest();
+        forest.setOptions(Utils.splitOptions(options));
+        Instances header = readHeader(in);
+        FlatTrees flatTrees = FlatTrees.read(in);
+
+        Classifier[] trees = new Classifier[flatTrees.getNumberOfTrees()];
+        for (int i = 0; i < trees.length; i++) {
+            RandomTree tree = (RandomTree) AbstractClassifier.makeCopy(forest.getClassifier());
+            WekaFields.set(tree, "m_Info", header);
+            flatTrees.restore(tree, i);
+            trees[i] = tree;
+        }
+        forest.setNumIterations(trees.length);
+        WekaFields.set(forest, "m_Classifiers", trees);
+        WekaFields.set(forest, "m_Numeric", header.classAttribute().isNumeric());
+        return forest;
+    }
+
+    private static RandomTree readRandomTree(DataInputStream in, String options) throws Exception {
+        RandomTree tree = new RandomTree();
+        tree.setOptions(Utils.splitOptions(options));
+        WekaFields.set(tree, "m_Info", readHeader(in));
+        FlatTrees.read(in).restore(tree, 0);
+        return tree;
+    }
+
+    /**
+     * Checks if all the estimators of the naive bayes can be stored compactly.
+     *
+     * @param naiveBayes
+     * @return
+     */
+    private static boolean isCompact(NaiveBayes naiveBayes) {
+        if (naiveBayes.getUseSupervisedDiscretization() || !(WekaFields.get(naiveBayes, "m_ClassDistribution") instanceof DiscreteEstimator))
+            return false;
+        Estimator[][] distributions = (Estimator[][]) WekaFields.get(naiveBayes, "m_Distributions");
+        for (Estimator[] estimators : distributions)
+            for (Estimator estimator : estimators)
+                if (estimator != null && estimator.getClass() != NormalEstimator.class && estimator.getClass() != DiscreteEstimator.class)
+                    return false;
+        return true;
+    }
+
+    private static void writeNaiveBayes(DataOutputStream out, NaiveBayes naiveBayes) throws IOException {
+        writeHeader(out, (Instances) WekaFields.get(naiveBayes, "m_Instances"));
+        writeEstimator(out, (Estimator) WekaFields.get(naiveBayes, "m_ClassDistribution"));
+        Estimator[][] distributions = (Estimator[][]) WekaFields.get(naiveBayes, "m_Distributions");
+        out.writeInt(distributions.length);
+        for (Estimator[] estimators : distributions) {
+            out.writeInt(estimators.length);
+            for (Estimator estimator : estimators)
+                writeEstimator(out, estimator);
+        }
+    }
+
+    private static NaiveBayes readNaiveBayes(DataInputStream in, String options) throws Exception {
+        NaiveBayes naiveBayes = new NaiveBayes();
+        naiveBayes.setOptions(Utils.splitOptions(options));
+        Instances header = readHeader(in);
+        WekaFields.set(naiveBayes, "m_Instances", header);
+        WekaFields.set(naiveBayes, "m_NumClasses", header.numClasses());
+        WekaFields.set(naiveBayes, "m_ClassDistribution", readEstimator(in));
+        Estimator[][] distributions = new Estimator[in.readInt()][];
+        for (int i = 0; i < distributions.length; i++) {
+            distributions[i] = new Estimator[in.readInt()];
+            for (int j = 0; j < distributions[i].length; j++)
+                distributions[i][j] = readEstimator(in);
+        }
+        WekaFields.set(naiveBayes, "m_Distributions", distributions);
+        return naiveBayes;
+    }
+
+    private static void writeEstimator(DataOutputStream out, Estimator estimator) throws IOException {
+        if (estimator instanceof NormalEstimator) {
+            out.writeInt(ESTIMATOR_NORMAL);
+            out.writeDouble(WekaFields.getDouble(estimator, "m_Precision"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_SumOfWeights"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_SumOfValues"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_SumOfValuesSq"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_Mean"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_StandardDev"));
+        } else if (estimator instanceof DiscreteEstimator) {
+            out.writeInt(ESTIMATOR_DISCRETE);
+            writeDoubles(out, (double[]) WekaFields.get(estimator, "m_Counts"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_SumOfCounts"));
+            out.writeDouble(WekaFields.getDouble(estimator, "m_FPrior"));
+        } else {
+            out.writeInt(ESTIMATOR_NONE);
+        }
+    }
+
+    private static Estimator readEstimator(DataInputStream in) throws IOException {
+        switch (in.readInt()) {
+            case ESTIMATOR_NORMAL:
+                NormalEstimator normal = new NormalEstimator(in.readDouble());
+                WekaFields.set(normal, "m_SumOfWeights", in.readDouble());
+                WekaFields.set(normal, "m_SumOfValues", in.readDouble());
+                WekaFields.set(normal, "m_SumOfValuesSq", in.readDouble());
+                WekaFields.set(normal, "m_Mean", in.readDouble());
+                WekaFields.set(normal, "m_StandardDev", in.readDouble());
+                return normal;
+            case ESTIMATOR_DISCRETE:
+                double[] counts = readDoubles(in);
+                DiscreteEstimator discrete = new DiscreteEstimator(counts.length, false);
+                // the counts array is final, so its values are copied
+                System.arraycopy(counts, 0, WekaFields.get(discrete, "m_Counts"), 0, counts.length);
+                WekaFields.set(discrete, "m_SumOfCounts", in.readDouble());
+                WekaFields.set(discrete, "m_FPrior", in.readDouble());
+                return discrete;
+            default:
+                return null;
+        }
+    }
+
+    private static void writeIBk(DataOutputStream out, IBk ibk) throws IOException {
+        BinaryInstancesSaver saver = new BinaryInstancesSaver();
+        saver.setInstances((Instances) WekaFields.get(ibk, "m_Train"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saver.setDestination(bytes);
+        saver.writeBatch();
+        out.writeInt(((Instances) WekaFields.get(ibk, "m_Train")).classIndex());
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static IBk readIBk(DataInputStream in, String options) throws Exception {
+        int classIndex = in.readInt();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        BinaryInstancesLoader loader = new BinaryInstancesLoader();
+        loader.setSource(new ByteArrayInputStream(bytes));
+        Instances train = loader.getDataSet();
+        train.setClassIndex(classIndex);
+
+        // building only stores the data and prepares the search structure
+        IBk ibk = new IBk();
+        ibk.setOptions(Utils.splitOptions(options));
+        ibk.buildClassifier(train);
+        return ibk;
+    }
+
+    private static void writeHeader(DataOutputStream out, Instances header) throws IOException {
+        writeString(out, new Instances(header, 0).toString());
+        out.writeInt(header.classIndex());
+    }
+
+    private static Instances readHeader(DataInputStream in) throws IOException {
+        Instances header = new Instances(new StringReader(readString(in)));
+        header.setClassIndex(in.readInt());
+        return header;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Writes the length of the array and its values in bulk (-1 for null).
+     *
+     * @param out
+     * @param values
+     * @throws IOException
+     */
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values == null)
+            return;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, 8 * values.length));
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, buffer.capacity() / 8);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(values, i, n);
+            out.write(buffer.array(), 0, 8 * n);
+            i += n;
+        }
+    }
+
+    static double[] readDoubles(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        double[] values = new double[length];
+        byte[] bytes = new byte[Math.min(BUFFER_SIZE, 8 * length)];
+        for (int i = 0; i < length; ) {
+            int n = Math.min(length - i, bytes.length / 8);
+            in.readFully(bytes, 0, 8 * n);
+            ByteBuffer.wrap(bytes, 0, 8 * n).asDoubleBuffer().get(values, i, n);
+            i += n;
+        }
+        return values;
+    }
+
+    /**
+     * Writes the length of the array and its values in bulk (-1 for null).
+     *
+     * @param out
+     * @param values
+     * @throws IOException
+     */
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values == null)
+            return;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, 4 * values.length));
+        for (int i = 0; i < values.length; ) {
+            int n = Math.min(values.length - i, buffer.capacity() / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, i, n);
+            out.write(buffer.array(), 0, 4 * n);
+            i += n;
+        }
+    }
+
+    static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        int[] values = new int[length];
+        byte[] bytes = new byte[Math.min(BUFFER_SIZE, 4 * length)];
+        for (int i = 0; i < length; ) {
+            int n = Math.min(length - i, bytes.length / 4);
+            in.readFully(bytes, 0, 4 * n);
+            ByteBuffer.wrap(bytes, 0, 4 * n).asIntBuffer().get(values, i, n);
+            i += n;
+        }
+        return values;
+    }
+}
@@ -0,0 +1,63 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import weka.core.ChebyshevDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.neighboursearch.PerformanceStats;
+
+/**
+ * A chebyshev distance which visits only the used attributes with precomputed ranges, e.g. for the nearest neighbour
+ * searches of IBk with -A "ch.joelniklaus.indoloc.helpers.CompiledChebyshevDistance".
+ * <p>
+ * The distance is compiled into a DistanceKernel when it is computed for the first time after the training data
+ * or the ranges changed. The distances are the same as the ones of ChebyshevDistance.
+ */
+public class CompiledChebyshevDistance extends ChebyshevDistance {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient DistanceKernel kernel;
+
+    public CompiledChebyshevDistance() {
+        super();
+    }
+
+    public CompiledChebyshevDistance(Instances data) {
+        super(data);
+    }
+
+    @Override
+    public double distance(Instance first, Instance second, double cutOffValue, PerformanceStats stats) {
+        if (!DistanceKernel.canCompute(first, second, stats))
+            return super.distance(first, second, cutOffValue, stats);
+        validate();
+        DistanceKernel kernel = this.kernel;
+        if (kernel == null)
+            this.kernel = kernel = new DistanceKernel(m_Data, m_ActiveIndices, m_Ranges, m_DontNormalize);
+        return kernel.chebyshev(first, second, cutOffValue);
+    }
+
+    @Override
+    protected void invalidate() {
+        super.invalidate();
+        kernel = null;
+    }
+
+    @Override
+    public double[][] initializeRanges() {
+        kernel = null;
+        return super.initializeRanges();
+    }
+
+    @Override
+    public void update(Instance instance) {
+        super.update(instance);
+        kernel = null;
+    }
+
+    @Override
+    public void updateRanges(Instance instance) {
+        super.updateRanges(instance);
+        kernel = null;
+    }
+}
@@ -0,0 +1,221 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.SingleClassifierEnhancer;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A random forest (or a single random tree) which is compiled into flat arrays after the training.
+ * <p>
+ * The trained trees are flattened (see FlatTrees) and evaluated with a loop over the node arrays instead of the
+ * recursion over the node objects of weka. The predictions are the same as the ones of the trained classifier.
+ * Only instances with missing values in a split attribute are evaluated recursively, because all the children
+ * of such a node contribute to the prediction. Apart from the returned distribution, nothing is allocated
+ * (none at all with distributionForInstance(Instance, double[])). Can be used by several threads at the same time.
+ * <p>
+ * Only nominal classes are supported.
+ */
+public class CompiledForest extends SingleClassifierEnhancer {
+
+    private static final long serialVersionUID = 1L;
+
+    private FlatTrees trees;
+    private boolean[] nominalAttributes;
+    private boolean allowUnclassifiedInstances;
+    private int numClasses;
+
+    public CompiledForest() {
+        m_Classifier = new RandomForest();
+    }
+
+    /**
+     * @param classifier the untrained random forest or random tree
+     */
+    public CompiledForest(Classifier classifier) {
+        m_Classifier = classifier;
+    }
+
+    /**
+     * Compiles an already trained random forest or random tree.
+     *
+     * @param trained
+     * @return
+     */
+    public static CompiledForest compile(Classifier trained) {
+        CompiledForest compiled = new CompiledForest();
+        compiled.compileTrees(trained);
+        return compiled;
+    }
+
+    @Override
+    protected String defaultClassifierString() {
+        return RandomForest.class.getName();
+    }
+
+    @Override
+    public Capabilities getCapabilities() {
+        Capabilities result = super.getCapabilities();
+        result.disable(Capabilities.Capability.NUMERIC_CLASS);
+        result.disable(Capabilities.Capability.DATE_CLASS);
+        return result;
+    }
+
+    /**
+     * Trains a copy of the random forest and compiles it. The random forest itself stays untrained.
+     *
+     * @param data
+     * @throws Exception
+     */
+    @Override
+    public void buildClassifier(Instances data) throws Exception {
+        getCapabilities().testWithFail(data);
+        Classifier trained = AbstractClassifier.makeCopy(m_Classifier);
+        trained.buildClassifier(data);
+        compileTrees(trained);
+    }
+
+    private void compileTrees(Classifier trained) {
+        Classifier tree = trained instanceof RandomForest ? ((Classifier[]) WekaFields.get(trained, "m_Classifiers"))[0] : trained;
+        if (!(tree instanceof RandomTree))
+            throw new IllegalArgumentException("Only random forests and random trees can be compiled, not " + trained.getClass().getName());
+        Instances header = (Instances) WekaFields.get(tree, "m_Info");
+        if (!header.classAttribute().isNominal())
+            throw new IllegalArgumentException("Only nominal classes are supported");
+
+        trees = FlatTrees.flatten(trained);
+        nominalAttributes = new boolean[header.numAttributes()];
+        for (int i = 0; i < nominalAttributes.length; i++)
+            nominalAttributes[i] = header.attribute(i).isNominal();
+        allowUnclassifiedInstances = ((RandomTree) tree).getAllowUnclassifiedInstances();
+        numClasses = header.numClasses();
+    }
+
+    @Override
+    public double[] distributionForInstance(Instance instance) {
+        double[] distribution = new double[numClasses];
+        distributionForInstance(instance, distribution);
+        return distribution;
+    }
+
+    /**
+     * Computes the class distribution into the given array, like RandomForest.distributionForInstance.
+     *
+     * @param instance
+     * @param distribution the array the distribution is written to, has the length of the number of classes
+     */
+    public void distributionForInstance(Instance instance, double[] distribution) {
+        if (trees == null)
+            throw new IllegalStateException("The forest has not been trained yet");
+        for (int i = 0; i < numClasses; i++)
+            distribution[i] = 0;
+        // every tree adds its normalized distribution, like Bagging
+        for (int root : trees.roots)
+            addDistribution(root, instance, 1, distribution);
+
+        double sum = Utils.sum(distribution);
+        if (!Utils.eq(sum, 0))
+            for (int i = 0; i < numClasses; i++)
+                distribution[i] /= sum;
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    /**
+     * Classifies all the given instances one tree after the other, so the nodes of a tree stay in the cache
+     * while all the instances pass through it. The distributions are the same as the ones of distributionForInstance.
+     *
+     * @param instances
+     * @return the class distribution of every instance
+     */
+    @Override
+    public double[][] distributionsForInstances(Instances instances) {
+        if (trees == null)
+            throw new IllegalStateException("The forest has not been trained yet");
+        double[][] distributions = new double[instances.numInstances()][numClasses];
+        for (int root : trees.roots)
+            for (int i = 0; i < distributions.length; i++)
+                addDistribution(root, instances.instance(i), 1, distributions[i]);
+
+        for (double[] distribution : distributions) {
+            double sum = Utils.sum(distribution);
+            if (!Utils.eq(sum, 0))
+                for (int i = 0; i < numClasses; i++)
+                    distribution[i] /= sum;
+        }
+        return distributions;
+    }
+
+    /**
+     * Adds the distribution of the subtree with the given root to the distribution, like RandomTree.Tree.distributionForInstance.
+     * When a leaf has no class distribution, the class distribution of its deepest ancestor which has one is used.
+     *
+     * @param node
+     * @param instance
+     * @param weight       the proportion of the instance which reaches the node
+     * @param distribution
+     * @return false if the subtree has no distribution for the instance
+     */
+    private boolean addDistribution(int node, Instance instance, double weight, double[] distribution) {
+        final int[] attributes = trees.attributes;
+        final int[] firstChildren = trees.firstChildren;
+        final int[] classDistributionOffsets = trees.classDistributionOffsets;
+
+        int fallback = -1;
+        while (true) {
+            if (classDistributionOffsets[node] != -1)
+                fallback = node;
+            int attribute = attributes[node];
+            int firstChild = firstChildren[node];
+            if (attribute == -1 || firstChild == -1)
+                break;
+            double value = instance.value(attribute);
+            if (Utils.isMissingValue(value)) {
+                // the children are weighted with the proportion of the training data which went to them
+                for (int child = firstChild; child < firstChild + trees.numberOfChildren[node]; child++)
+                    addDistribution(child, instance, weight * trees.props[child], distribution);
+                return true;
+            }
+            if (nominalAttributes[attribute])
+                node = firstChild + (int) value;
+            else
+                node = value < trees.splitPoints[node] ? firstChild : firstChild + 1;
+        }
+
+        // an empty leaf counts as a distribution of zeros if unclassified instances are allowed
+        if (classDistributionOffsets[node] == -1 && allowUnclassifiedInstances)
+            return true;
+        if (fallback == -1)
+            return false;
+
+        final double[] distributions = trees.distributions;
+        int offset = classDistributionOffsets[fallback];
+        double sum = 0;
+        for (int i = 0; i < numClasses; i++)
+            sum += distributions[offset + i];
+        if (sum == 0)
+            return true;
+        for (int i = 0; i < numClasses; i++)
+            distribution[i] += weight * (distributions[offset + i] / sum);
+        return true;
+    }
+
+    public FlatTrees getTrees() {
+        return trees;
+    }
+
+    @Override
+    public String toString() {
+        if (trees == null)
+            return "CompiledForest: not trained yet";
+        return "CompiledForest of " + getClassifierSpec() + "\n" + trees.getNumberOfTrees() + " trees with " + trees.getNumberOfNodes() + " nodes";
+    }
+}
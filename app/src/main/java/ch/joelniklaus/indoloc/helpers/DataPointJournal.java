@@ -0,0 +1,390 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import ch.joelniklaus.indoloc.models.DataPoint;
+import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
+import ch.joelniklaus.indoloc.models.SensorData;
+import weka.core.Instances;
+
+/**
+ * Append-only binary journal of the collected data points.
+ * <p>
+ * Every data point is written as one fixed-width record as soon as it is collected, so saving does not get slower
+ * the more data points have been collected. The journal is synced to the disk periodically.
+ * Room names are stored once in room records of the same width and the scan records only refer to their id.
+ * <p>
+ * File layout: header (magic, version, number of rss values, record size) followed by the records.
+ * Scan record: kind, room id, 14 sensor floats, 2 location doubles, one int per rss value.
+ * Room record: kind, room id, length of the name, name (utf-8). Longer room names than fit into a record are rejected.
+ * A record which has only partly been written (e.g. because the app crashed) is ignored and overwritten.
+ */
+public class DataPointJournal {
+
+    private static final int MAGIC = 0x494C4A31; // "ILJ1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final int KIND_SCAN = 1;
+    private static final int KIND_ROOM = 2;
+
+    private static final int NUMBER_OF_SENSOR_VALUES = 14;
+    private static final int NUMBER_OF_LOCATION_VALUES = 2;
+
+    public static final int SYNC_INTERVAL_RECORDS = 50;
+    public static final long SYNC_INTERVAL_MILLIS = 5000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+
+    private int numberOfRssValues = -1;
+    private int recordSize;
+    private final ArrayList<String> rooms = new ArrayList<>();
+    private int numberOfScans;
+
+    private int unsyncedRecords;
+    private long lastSync;
+
+    public DataPointJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens an existing journal. Does nothing if the journal does not exist yet, it is then created with the first data point.
+     *
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        if (channel != null || !file.exists() || file.length() < HEADER_SIZE)
+            return;
+        openChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            closeChannel();
+            throw new IOException("Not a data point journal: " + file);
+        }
+        numberOfRssValues = header.getInt();
+        recordSize = header.getInt();
+        buffer = ByteBuffer.allocate(recordSize);
+
+        // recover the rooms and the number of scans, drop a record which has not been written completely
+        rooms.clear();
+        numberOfScans = 0;
+        long numberOfRecords = (channel.size() - HEADER_SIZE) / recordSize;
+        MappedByteBuffer mapped = map();
+        for (int i = 0; i < numberOfRecords; i++) {
+            int position = HEADER_SIZE + i * recordSize;
+            if (mapped.getInt(position) == KIND_ROOM)
+                rooms.add(readRoomName(mapped, position));
+            else
+                numberOfScans++;
+        }
+        channel.truncate(HEADER_SIZE + numberOfRecords * recordSize);
+        channel.position(channel.size());
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends the data point to the journal. Creates the journal if it does not exist yet.
+     * The number of rss values is fixed when the journal is created, until it is cleared.
+     *
+     * @param dataPoint
+     * @throws IOException if the data point has a different number of rss values than the journal
+     */
+    public void append(DataPoint dataPoint) throws IOException {
+        RSSData rssData = dataPoint.getRssData();
+        if (channel == null)
+            open();
+        if (channel == null)
+            create(rssData.size());
+        if (rssData.size() != numberOfRssValues)
+            throw new IOException("The collected DataPoints have " + numberOfRssValues + " rss values but this one has " + rssData.size()
+                    + ", please create the arff file of the collected DataPoints first");
+
+        int roomId = rooms.indexOf(dataPoint.getRoom());
+        if (roomId == -1) {
+            roomId = rooms.size();
+            writeRoom(roomId, dataPoint.getRoom());
+            rooms.add(dataPoint.getRoom());
+        }
+
+        buffer.clear();
+        buffer.putInt(KIND_SCAN);
+        buffer.putInt(roomId);
+
+        SensorData sensorData = dataPoint.getSensorData();
+        buffer.putFloat(sensorData.getAmbientTemperature());
+        buffer.putFloat(sensorData.getLight());
+        buffer.putFloat(sensorData.getPressure());
+        buffer.putFloat(sensorData.getRelativeHumidity());
+        buffer.putFloat(sensorData.getGravity()[0]);
+        buffer.putFloat(sensorData.getGravity()[1]);
+        buffer.putFloat(sensorData.getGravity()[2]);
+        buffer.putFloat(sensorData.getMagnetic()[0]);
+        buffer.putFloat(sensorData.getMagnetic()[1]);
+        buffer.putFloat(sensorData.getMagnetic()[2]);
+        buffer.putFloat(sensorData.getGravityMagnitude());
+        buffer.putFloat(sensorData.getGeomagneticMagnitude());
+        buffer.putFloat(sensorData.getMagneticYProcessedOld());
+        buffer.putFloat(sensorData.getMagneticZProcessedOld());
+
+        LocationData locationData = dataPoint.getLocationData();
+        buffer.putDouble(locationData == null ? 0 : locationData.getLatitude());
+        buffer.putDouble(locationData == null ? 0 : locationData.getLongitude());
+
+        for (int i = 0; i < numberOfRssValues; i++)
+            buffer.putInt(rssData.getValue(i));
+
+        writeRecord();
+        numberOfScans++;
+    }
+
+    /**
+     * Forces the written records to the disk.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        if (channel == null)
+            return;
+        channel.force(false);
+        unsyncedRecords = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Syncs and closes the journal. It can be opened again afterwards.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (channel == null)
+            return;
+        sync();
+        closeChannel();
+    }
+
+    /**
+     * Removes all the data points from the journal.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        close();
+        rooms.clear();
+        numberOfScans = 0;
+        numberOfRssValues = -1;
+        if (file.exists() && !file.delete())
+            throw new IOException("Could not delete " + file);
+    }
+
+    /**
+     * Gets the number of data points in the journal.
+     *
+     * @return
+     */
+    public int size() {
+        return numberOfScans;
+    }
+
+    public boolean isEmpty() {
+        return numberOfScans == 0;
+    }
+
+    /**
+     * Builds the instances of all the data points in the journal directly from the memory mapped file,
+     * without creating any data point objects.
+     * The instances have the same header as the ones built by WekaHelper.buildInstances.
+     *
+     * @return
+     * @throws IOException
+     */
+    public Instances toInstances() throws IOException {
+        return toInstances(0);
+    }
+
+    /**
+     * Builds the instances of all the data points in the journal directly from the memory mapped file,
+     * without creating any data point objects. If the window size is positive, the sensor and rss features
+     * of the last scans in the same room are aggregated into additional attributes (see FeatureWindow).
+     * The instances have the same header as the ones built by WekaHelper.buildInstances.
+     *
+     * @param windowSize the number of scans aggregated, 0 for no aggregates
+     * @return
+     * @throws IOException
+     */
+    public Instances toInstances(int windowSize) throws IOException {
+        int numberOfRssValues = Math.max(0, this.numberOfRssValues);
+        Instances data = new Instances("TestInstances", WekaHelper.buildAttributes(new ArrayList<>(rooms), numberOfRssValues, windowSize > 0), numberOfScans);
+        data.setClassIndex(0);
+        if (channel == null)
+            return data;
+
+        FeatureWindow window = windowSize > 0 ? new FeatureWindow(windowSize) : null;
+        int numberOfFeatures = WekaHelper.FIRST_RSS_INDEX - 1 + numberOfRssValues;
+        int room = -1;
+
+        MappedByteBuffer mapped = map();
+        int numberOfRecords = (mapped.capacity() - HEADER_SIZE) / recordSize;
+        for (int i = 0; i < numberOfRecords; i++) {
+            int position = HEADER_SIZE + i * recordSize;
+            if (mapped.getInt(position) != KIND_SCAN)
+                continue;
+            mapped.position(position + 4);
+
+            double[] instanceValues = new double[data.numAttributes()];
+            int index = 0;
+            instanceValues[index++] = mapped.getInt();
+            for (int j = 0; j < NUMBER_OF_SENSOR_VALUES; j++)
+                instanceValues[index++] = mapped.getFloat();
+            for (int j = 0; j < NUMBER_OF_LOCATION_VALUES; j++)
+                instanceValues[index++] = mapped.getDouble();
+            for (int j = 0; j < numberOfRssValues; j++)
+                instanceValues[index++] = mapped.getInt();
+            if (window != null) {
+                // the scans of different rooms must not be mixed
+                if (instanceValues[0] != room)
+                    window.reset();
+                room = (int) instanceValues[0];
+                window.add(instanceValues, 1, numberOfFeatures);
+                WekaHelper.fillAggregateValues(window, instanceValues, index);
+            }
+            data.add(WekaHelper.createInstance(data, instanceValues));
+        }
+        return data;
+    }
+
+    /**
+     * Reads all the data points in the journal. Only needed if the data point objects themselves are required,
+     * otherwise use toInstances.
+     *
+     * @return
+     * @throws IOException
+     */
+    public ArrayList<DataPoint> readDataPoints() throws IOException {
+        ArrayList<DataPoint> dataPoints = new ArrayList<>(numberOfScans);
+        if (channel == null)
+            return dataPoints;
+
+        MappedByteBuffer mapped = map();
+        int numberOfRecords = (mapped.capacity() - HEADER_SIZE) / recordSize;
+        for (int i = 0; i < numberOfRecords; i++) {
+            int position = HEADER_SIZE + i * recordSize;
+            if (mapped.getInt(position) != KIND_SCAN)
+                continue;
+            mapped.position(position + 4);
+
+            String room = rooms.get(mapped.getInt());
+            float ambientTemperature = mapped.getFloat(), light = mapped.getFloat(), pressure = mapped.getFloat(), relativeHumidity = mapped.getFloat();
+            float[] gravity = {mapped.getFloat(), mapped.getFloat(), mapped.getFloat()};
+            float[] magnetic = {mapped.getFloat(), mapped.getFloat(), mapped.getFloat()};
+            float gravityMagnitude = mapped.getFloat(), geomagneticMagnitude = mapped.getFloat();
+            float magneticYProcessedOld = mapped.getFloat(), magneticZProcessedOld = mapped.getFloat();
+            SensorData sensorData = SensorData.getSensorDataTest(ambientTemperature, light, pressure, relativeHumidity, gravity, magnetic,
+                    geomagneticMagnitude, gravityMagnitude, magneticYProcessedOld, magneticZProcessedOld);
+            LocationData locationData = new LocationData(mapped.getDouble(), mapped.getDouble());
+            ArrayList<Integer> rssValues = new ArrayList<>(numberOfRssValues);
+            for (int j = 0; j < numberOfRssValues; j++)
+                rssValues.add(mapped.getInt());
+            dataPoints.add(new DataPoint(room, sensorData, new RSSData(rssValues), locationData));
+        }
+        return dataPoints;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void create(int numberOfRssValues) throws IOException {
+        openChannel();
+        channel.truncate(0);
+        this.numberOfRssValues = numberOfRssValues;
+        recordSize = 8 + 4 * NUMBER_OF_SENSOR_VALUES + 8 * NUMBER_OF_LOCATION_VALUES + 4 * numberOfRssValues;
+        buffer = ByteBuffer.allocate(recordSize);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(numberOfRssValues).putInt(recordSize);
+        header.flip();
+        channel.write(header, 0);
+        channel.position(HEADER_SIZE);
+        sync();
+    }
+
+    private void openChannel() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    private void closeChannel() throws IOException {
+        randomAccessFile.close();
+        randomAccessFile = null;
+        channel = null;
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Writes a room record.
+     *
+     * @param roomId
+     * @param room
+     * @throws IOException if the name does not fit into a record
+     */
+    private void writeRoom(int roomId, String room) throws IOException {
+        byte[] name = room.getBytes(UTF_8);
+        int length = name.length;
+        if (length > recordSize - 12)
+            throw new IOException("The room name " + room + " is too long, at most " + (recordSize - 12) + " bytes are allowed");
+        buffer.clear();
+        buffer.putInt(KIND_ROOM);
+        buffer.putInt(roomId);
+        buffer.putInt(length);
+        buffer.put(name, 0, length);
+        while (buffer.hasRemaining())
+            buffer.put((byte) 0);
+        writeRecord();
+    }
+
+    private static String readRoomName(ByteBuffer mapped, int position) {
+        int length = mapped.getInt(position + 8);
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++)
+            name[i] = mapped.get(position + 12 + i);
+        return new String(name, UTF_8);
+    }
+
+    /**
+     * Writes the record in the buffer and syncs if the last sync is long enough ago.
+     *
+     * @throws IOException
+     */
+    private void writeRecord() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        unsyncedRecords++;
+        if (unsyncedRecords >= SYNC_INTERVAL_RECORDS || System.currentTimeMillis() - lastSync >= SYNC_INTERVAL_MILLIS)
+            sync();
+    }
+}
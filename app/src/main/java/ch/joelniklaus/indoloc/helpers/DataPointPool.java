@@ -0,0 +1,47 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import ch.joelniklaus.indoloc.models.DataPoint;
+import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
+import ch.joelniklaus.indoloc.models.SensorData;
+
+/**
+ * A fixed ring of preallocated data points which are filled in place by the sensor callbacks,
+ * so that collecting a data point does not create any objects.
+ * <p>
+ * A data point returned by next is handed out again after capacity further calls,
+ * so it must not be kept longer than that. Consumers which need it longer (e.g. the inference pipeline) copy it.
+ * Not thread safe, only used on the ui thread.
+ */
+public class DataPointPool {
+
+    private final DataPoint[] dataPoints;
+    private int next = 0;
+
+    /**
+     * @param capacity          the number of data points which are valid at the same time
+     * @param numberOfRssValues
+     */
+    public DataPointPool(int capacity, int numberOfRssValues) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        dataPoints = new DataPoint[capacity];
+        for (int i = 0; i < capacity; i++)
+            dataPoints[i] = new DataPoint("", new SensorData(), new RSSData(numberOfRssValues), new LocationData(0, 0));
+    }
+
+    /**
+     * Gets the next data point of the ring. It still contains the values it has been filled with last time.
+     *
+     * @return
+     */
+    public DataPoint next() {
+        DataPoint dataPoint = dataPoints[next];
+        next = (next + 1) % dataPoints.length;
+        return dataPoint;
+    }
+
+    public int getCapacity() {
+        return dataPoints.length;
+    }
+}
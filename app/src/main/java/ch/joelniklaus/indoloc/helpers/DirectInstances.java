@@ -0,0 +1,29 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Instances which take over the instances added by the loaders instead of copying them like Instances.add does.
+ * Used by the loaders which build the value arrays themselves, so every row is only allocated once.
+ */
+class DirectInstances extends Instances {
+
+    /**
+     * @param structure the header, the rows are not copied
+     * @param capacity
+     */
+    DirectInstances(Instances structure, int capacity) {
+        super(structure, capacity);
+    }
+
+    /**
+     * Adds the instance itself and sets its dataset. The instance must not be used anywhere else.
+     *
+     * @param instance
+     */
+    void addWithoutCopy(Instance instance) {
+        instance.setDataset(this);
+        m_Instances.add(instance);
+    }
+}
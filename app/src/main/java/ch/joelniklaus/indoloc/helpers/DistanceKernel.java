@@ -0,0 +1,137 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+import weka.core.neighboursearch.PerformanceStats;
+
+/**
+ * The distance of a NormalizableDistance compiled for the current training data and ranges
+ * (see CompiledEuclideanDistance, CompiledManhattanDistance and CompiledChebyshevDistance).
+ * <p>
+ * Only the attributes used by the distance are visited: the active numeric and nominal attributes apart from the class.
+ * Their minimums and widths are copied into arrays and the attributes with a constant range (which are always
+ * normalized to 0) are marked, so the common case of two numeric values which are not missing is one subtraction
+ * of two normalized values. The distances are the same as the ones of NormalizableDistance.distance.
+ */
+final class DistanceKernel {
+
+    private final int[] attributes;
+    private final boolean[] nominal;
+    private final boolean[] constant;
+    private final double[] minimums, maximums, widths;
+    private final boolean dontNormalize;
+
+    /**
+     * @param data          the training data of the distance
+     * @param activeIndices the attributes selected by the distance
+     * @param ranges        the ranges of the distance
+     * @param dontNormalize
+     */
+    DistanceKernel(Instances data, boolean[] activeIndices, double[][] ranges, boolean dontNormalize) {
+        this.dontNormalize = dontNormalize;
+        int numberOfAttributes = 0;
+        int[] used = new int[data.numAttributes()];
+        for (int i = 0; i < data.numAttributes(); i++)
+            // the distance of the other types of attributes is always 0
+            if (i != data.classIndex() && activeIndices[i] && (data.attribute(i).type() == Attribute.NUMERIC || data.attribute(i).isNominal()))
+                used[numberOfAttributes++] = i;
+        attributes = new int[numberOfAttributes];
+        System.arraycopy(used, 0, attributes, 0, numberOfAttributes);
+
+        nominal = new boolean[numberOfAttributes];
+        constant = new boolean[numberOfAttributes];
+        minimums = new double[numberOfAttributes];
+        maximums = new double[numberOfAttributes];
+        widths = new double[numberOfAttributes];
+        for (int c = 0; c < numberOfAttributes; c++) {
+            double[] range = ranges[attributes[c]];
+            nominal[c] = data.attribute(attributes[c]).isNominal();
+            minimums[c] = range[NormalizableDistance.R_MIN];
+            maximums[c] = range[NormalizableDistance.R_MAX];
+            widths[c] = range[NormalizableDistance.R_WIDTH];
+            constant[c] = Double.isNaN(minimums[c]) || maximums[c] == minimums[c];
+        }
+    }
+
+    /**
+     * Checks if the distance between the instances can be computed by a kernel.
+     * Sparse instances and measuring the performance are left to NormalizableDistance.
+     *
+     * @param first
+     * @param second
+     * @param stats
+     * @return
+     */
+    static boolean canCompute(Instance first, Instance second, PerformanceStats stats) {
+        return stats == null && first.getClass() == DenseInstance.class && second.getClass() == DenseInstance.class;
+    }
+
+    /**
+     * @return the squared euclidean distance or infinity as soon as it exceeds the cut off value
+     */
+    double squaredEuclidean(Instance first, Instance second, double cutOffValue) {
+        double distance = 0;
+        for (int c = 0; c < attributes.length; c++) {
+            double difference = difference(c, first.value(attributes[c]), second.value(attributes[c]));
+            distance += difference * difference;
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * @return the manhattan distance or infinity as soon as it exceeds the cut off value
+     */
+    double manhattan(Instance first, Instance second, double cutOffValue) {
+        double distance = 0;
+        for (int c = 0; c < attributes.length; c++) {
+            distance += Math.abs(difference(c, first.value(attributes[c]), second.value(attributes[c])));
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * @return the chebyshev distance or infinity as soon as it exceeds the cut off value
+     */
+    double chebyshev(Instance first, Instance second, double cutOffValue) {
+        double distance = 0;
+        for (int c = 0; c < attributes.length; c++) {
+            double difference = Math.abs(difference(c, first.value(attributes[c]), second.value(attributes[c])));
+            if (difference > distance)
+                distance = difference;
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * Computes the difference of two values of a column, like NormalizableDistance.difference.
+     */
+    private double difference(int c, double first, double second) {
+        if (!nominal[c] && first == first && second == second) {
+            if (dontNormalize)
+                return first - second;
+            if (constant[c])
+                return 0;
+            return (first - minimums[c]) / widths[c] - (second - minimums[c]) / widths[c];
+        }
+        if (nominal[c])
+            return Double.isNaN(first) || Double.isNaN(second) || (int) first != (int) second ? 1 : 0;
+        if (Double.isNaN(first) && Double.isNaN(second))
+            return dontNormalize ? maximums[c] - minimums[c] : 1;
+
+        // the distance to the farther end of the range
+        double value = Double.isNaN(second) ? first : second;
+        if (dontNormalize)
+            return maximums[c] - value > value - minimums[c] ? maximums[c] - value : value - minimums[c];
+        value = constant[c] ? 0 : (value - minimums[c]) / widths[c];
+        return value < 0.5 ? 1.0 - value : value;
+    }
+}
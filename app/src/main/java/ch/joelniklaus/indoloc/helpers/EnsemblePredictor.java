@@ -0,0 +1,269 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+
+/**
+ * Classifies an instance with several trained classifiers in parallel.
+ * <p>
+ * Every classifier has to deliver its prediction within a deadline. The predictions of the classifiers
+ * which are too slow are left out. A classifier which misses the deadline too many times in a row
+ * is dropped from the live set. A dropped classifier is asked again once per re-probe interval and
+ * is added to the live set again as soon as it delivers in time (e.g. after the device has been busy).
+ * A classifier is never used by two threads at the same time and every classifier gets its own copy of the instance.
+ * <p>
+ * Classifiers which are still being trained can be marked as not ready and be set as soon as their training finished.
+ */
+public class EnsemblePredictor {
+
+    public static final long DEFAULT_DEADLINE_MILLIS = 250;
+    public static final int DEFAULT_MAX_CONSECUTIVE_MISSES = 5;
+    public static final long DEFAULT_REPROBE_INTERVAL_MILLIS = 10000;
+
+    private final ArrayList<Model> models = new ArrayList<>();
+    private final ExecutorService executor;
+    private final long deadlineNanoS;
+    private final int maxConsecutiveMisses;
+    private final long reprobeIntervalNanoS;
+
+    public EnsemblePredictor(List<Classifier> classifiers) {
+        this(classifiers, DEFAULT_DEADLINE_MILLIS, DEFAULT_MAX_CONSECUTIVE_MISSES);
+    }
+
+    /**
+     * @param classifiers          the trained classifiers
+     * @param deadlineMilliS       the time every classifier has to deliver its prediction
+     * @param maxConsecutiveMisses the number of missed deadlines in a row after which a classifier is dropped
+     */
+    public EnsemblePredictor(List<Classifier> classifiers, long deadlineMilliS, int maxConsecutiveMisses) {
+        this(classifiers, deadlineMilliS, maxConsecutiveMisses, DEFAULT_REPROBE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param classifiers           the trained classifiers
+     * @param deadlineMilliS        the time every classifier has to deliver its prediction
+     * @param maxConsecutiveMisses  the number of missed deadlines in a row after which a classifier is dropped
+     * @param reprobeIntervalMilliS the time after which a dropped classifier is asked again
+     */
+    public EnsemblePredictor(List<Classifier> classifiers, long deadlineMilliS, int maxConsecutiveMisses, long reprobeIntervalMilliS) {
+        for (Classifier classifier : classifiers)
+            models.add(new Model(classifier));
+        this.deadlineNanoS = TimeUnit.MILLISECONDS.toNanos(deadlineMilliS);
+        this.maxConsecutiveMisses = maxConsecutiveMisses;
+        this.reprobeIntervalNanoS = TimeUnit.MILLISECONDS.toNanos(reprobeIntervalMilliS);
+
+        int threads = Math.max(1, Math.min(classifiers.size(), Runtime.getRuntime().availableProcessors()));
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger number = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EnsemblePredictor-" + number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Classifies the given instance with all the live classifiers in parallel.
+     * Returns the class distribution (see Classifier.distributionForInstance) of every classifier.
+     * The entry is null if the classifier is not live, did not finish before the deadline or failed.
+     * A dropped classifier is asked again if its re-probe interval has passed and is live again if it finishes in time.
+     *
+     * Every classifier gets its own copy of the instance, so the caller can reuse the instance right away,
+     * even though the classifiers which missed the deadline may still be running.
+     *
+     * @param instance
+     * @return
+     * @throws InterruptedException
+     */
+    public ArrayList<double[]> distributionsForInstance(Instance instance) throws InterruptedException {
+        long now = System.nanoTime();
+        final long deadline = now + deadlineNanoS;
+
+        ArrayList<Future<double[]>> futures = new ArrayList<>(models.size());
+        for (final Model model : models) {
+            if (!model.ready) {
+                futures.add(null);
+                continue;
+            }
+            boolean probe = !model.live && now - model.droppedNanoS >= reprobeIntervalNanoS;
+            if (!(model.live || probe) || !model.busy.compareAndSet(false, true)) {
+                // the classifier is still busy with an earlier instance
+                if (model.live)
+                    miss(model);
+                futures.add(null);
+                continue;
+            }
+            // the next probe is one interval later unless this one succeeds
+            if (probe)
+                model.droppedNanoS = now;
+            final Instance copy = (Instance) instance.copy();
+            futures.add(executor.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() throws Exception {
+                    try {
+                        // waited too long in the queue already
+                        if (System.nanoTime() > deadline)
+                            return null;
+                        long start = System.nanoTime();
+                        double[] distribution = model.classifier.distributionForInstance(copy);
+                        model.latency.record(System.nanoTime() - start);
+                        return distribution;
+                    } finally {
+                        model.busy.set(false);
+                    }
+                }
+            }));
+        }
+
+        ArrayList<double[]> distributions = new ArrayList<>(models.size());
+        for (int i = 0; i < models.size(); i++) {
+            Future<double[]> future = futures.get(i);
+            double[] distribution = null;
+            if (future != null) {
+                try {
+                    distribution = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // leave the classifier running, it is skipped until it is finished
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+                if (distribution == null) {
+                    miss(models.get(i));
+                } else {
+                    models.get(i).consecutiveMisses = 0;
+                    models.get(i).live = true;
+                }
+            }
+            distributions.add(distribution);
+        }
+        return distributions;
+    }
+
+    private void miss(Model model) {
+        model.misses.incrementAndGet();
+        if (++model.consecutiveMisses >= maxConsecutiveMisses && model.live) {
+            model.live = false;
+            model.droppedNanoS = System.nanoTime();
+        }
+    }
+
+    /**
+     * Stops the worker threads. The predictor cannot be used anymore afterwards.
+     */
+    public void shutDown() {
+        executor.shutdownNow();
+    }
+
+    public int getNumberOfModels() {
+        return models.size();
+    }
+
+    public Classifier getClassifier(int index) {
+        return models.get(index).classifier;
+    }
+
+    /**
+     * Replaces the classifier at the given index by a trained one and marks it as ready.
+     *
+     * @param index
+     * @param classifier
+     */
+    public void setClassifier(int index, Classifier classifier) {
+        Model model = models.get(index);
+        model.classifier = classifier;
+        model.ready = true;
+    }
+
+    /**
+     * Marks the classifier at the given index as (not) ready. Classifiers which are not ready are not asked for predictions.
+     *
+     * @param index
+     * @param ready
+     */
+    public void setReady(int index, boolean ready) {
+        models.get(index).ready = ready;
+    }
+
+    public boolean isReady(int index) {
+        return models.get(index).ready;
+    }
+
+    /**
+     * Checks if the classifier at the given index is still asked for predictions.
+     *
+     * @param index
+     * @return
+     */
+    public boolean isLive(int index) {
+        return models.get(index).live;
+    }
+
+    /**
+     * Adds a dropped classifier to the live set again or removes it manually.
+     *
+     * @param index
+     * @param live
+     */
+    public void setLive(int index, boolean live) {
+        Model model = models.get(index);
+        model.consecutiveMisses = 0;
+        model.live = live;
+    }
+
+    /**
+     * Gets the prediction time of the classifier at the given index.
+     *
+     * @param index
+     * @return
+     */
+    public LatencyCounter getLatency(int index) {
+        return models.get(index).latency;
+    }
+
+    /**
+     * Gets the number of deadlines the classifier at the given index has missed.
+     *
+     * @param index
+     * @return
+     */
+    public long getMisses(int index) {
+        return models.get(index).misses.get();
+    }
+
+    /**
+     * One classifier together with its timing and state.
+     */
+    private static class Model {
+        private volatile Classifier classifier;
+        private final LatencyCounter latency;
+        private final AtomicBoolean busy = new AtomicBoolean(false);
+        private final AtomicLong misses = new AtomicLong();
+        // only accessed by the thread calling predict
+        private int consecutiveMisses;
+        private long droppedNanoS;
+        private volatile boolean live = true;
+        private volatile boolean ready = true;
+
+        private Model(Classifier classifier) {
+            this.classifier = classifier;
+            this.latency = new LatencyCounter(classifier.getClass().getSimpleName());
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Loads arff files which only contain numeric and nominal attributes much faster than the Weka loaders.
+ * <p>
+ * The header is parsed by Weka, so the attributes are exactly the same. The data section is memory mapped
+ * and the numbers are parsed directly from the bytes without creating strings or tokens.
+ * The values of every row are written into one array which is used by the instance without copying it again.
+ * Large files can be parsed in parallel: the data section is split into blocks at line ends and every block is parsed by its own thread.
+ * <p>
+ * Files the loader cannot handle (string, date or relational attributes, sparse rows, escaped nominal values)
+ * are not loaded and null is returned, so the caller can use the Weka loader instead.
+ */
+public class FastArffLoader {
+
+    /**
+     * Files smaller than this are always parsed by one thread.
+     */
+    public static final int MIN_PARALLEL_BYTES = 1 << 20;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] DATA_KEYWORD = "@data".getBytes(UTF_8);
+    // the powers of ten which can be represented exactly as a double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private FastArffLoader() {
+    }
+
+    /**
+     * Loads the file using one thread per processor.
+     *
+     * @param file
+     * @return the instances or null if the file cannot be loaded by this loader
+     * @throws IOException
+     */
+    public static Instances load(File file) throws IOException {
+        return load(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads the file.
+     *
+     * @param file
+     * @param threads the maximum number of threads parsing the data section
+     * @return the instances or null if the file cannot be loaded by this loader
+     * @throws IOException
+     */
+    public static Instances load(File file, int threads) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(buffer, threads);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Parses the header with Weka and the data section with the fast parser.
+     *
+     * @param buffer
+     * @param threads
+     * @return
+     * @throws IOException
+     */
+    private static Instances parse(ByteBuffer buffer, int threads) throws IOException {
+        int end = buffer.limit();
+        int dataStart = findDataSection(buffer, end);
+        if (dataStart < 0)
+            return null;
+
+        byte[] headerBytes = new byte[dataStart];
+        buffer.duplicate().get(headerBytes);
+        Instances structure = new ArffLoader.ArffReader(new StringReader(new String(headerBytes, UTF_8)), 0).getStructure();
+
+        byte[][][] labels = new byte[structure.numAttributes()][][];
+        for (int i = 0; i < structure.numAttributes(); i++) {
+            Attribute attribute = structure.attribute(i);
+            if (attribute.isNominal()) {
+                labels[i] = new byte[attribute.numValues()][];
+                for (int j = 0; j < attribute.numValues(); j++)
+                    labels[i][j] = attribute.value(j).getBytes(UTF_8);
+            } else if (!attribute.isNumeric())
+                return null;
+        }
+
+        List<Block> blocks = split(buffer, dataStart, end, threads, labels);
+        try {
+            if (blocks.size() == 1)
+                blocks.get(0).call();
+            else
+                parseInParallel(blocks);
+        } catch (UnsupportedDataException e) {
+            return null;
+        }
+
+        int numberOfRows = 0;
+        for (Block block : blocks)
+            numberOfRows += block.rows.size();
+        DirectInstances instances = new DirectInstances(structure, numberOfRows);
+        for (Block block : blocks)
+            for (int i = 0; i < block.rows.size(); i++)
+                instances.addWithoutCopy(new DenseInstance(block.weights[i], block.rows.get(i)));
+        return instances;
+    }
+
+    private static void parseInParallel(List<Block> blocks) throws IOException, UnsupportedDataException {
+        ExecutorService executor = Executors.newFixedThreadPool(blocks.size());
+        try {
+            List<Future<Void>> futures = executor.invokeAll(blocks);
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading the arff file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnsupportedDataException)
+                throw (UnsupportedDataException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Splits the data section into blocks of about the same size which end at a line end.
+     *
+     * @param buffer
+     * @param start
+     * @param end
+     * @param threads
+     * @param labels
+     * @return
+     */
+    private static List<Block> split(ByteBuffer buffer, int start, int end, int threads, byte[][][] labels) {
+        int numberOfBlocks = Math.max(1, Math.min(threads, (end - start) / MIN_PARALLEL_BYTES));
+        int blockSize = (end - start) / numberOfBlocks;
+        List<Block> blocks = new ArrayList<>(numberOfBlocks);
+        int blockStart = start;
+        for (int i = 0; i < numberOfBlocks && blockStart < end; i++) {
+            int blockEnd = i == numberOfBlocks - 1 ? end : Math.max(blockStart, start + (i + 1) * blockSize);
+            while (blockEnd < end && buffer.get(blockEnd - 1) != '\n')
+                blockEnd++;
+            blocks.add(new Block(buffer, blockStart, blockEnd, labels));
+            blockStart = blockEnd;
+        }
+        if (blocks.isEmpty())
+            blocks.add(new Block(buffer, start, end, labels));
+        return blocks;
+    }
+
+    /**
+     * Finds the first line starting with @data (case insensitive).
+     *
+     * @param buffer
+     * @param end
+     * @return the position after the @data line or -1 if there is no data section
+     */
+    private static int findDataSection(ByteBuffer buffer, int end) {
+        int position = 0;
+        while (position < end) {
+            int lineStart = skipBlanks(buffer, position, end);
+            boolean data = lineStart + DATA_KEYWORD.length <= end;
+            for (int i = 0; data && i < DATA_KEYWORD.length; i++)
+                data = Character.toLowerCase((char) buffer.get(lineStart + i)) == DATA_KEYWORD[i];
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n')
+                lineEnd++;
+            position = Math.min(end, lineEnd + 1);
+            if (data)
+                return position;
+        }
+        return -1;
+    }
+
+    private static int skipBlanks(ByteBuffer buffer, int position, int end) {
+        while (position < end && (buffer.get(position) == ' ' || buffer.get(position) == '\t' || buffer.get(position) == '\r'))
+            position++;
+        return position;
+    }
+
+    /**
+     * Parses the rows between start and end.
+     */
+    private static class Block implements Callable<Void> {
+        private final ByteBuffer buffer;
+        private final int start;
+        private final int end;
+        private final byte[][][] labels;
+        private final ArrayList<double[]> rows = new ArrayList<>();
+        private double[] weights = new double[1024];
+        // the position of the parser
+        private int position;
+
+        private Block(ByteBuffer buffer, int start, int end, byte[][][] labels) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+            this.labels = labels;
+        }
+
+        @Override
+        public Void call() throws UnsupportedDataException {
+            position = start;
+            while (position < end) {
+                position = skipBlanks(buffer, position, end);
+                if (position >= end)
+                    break;
+                byte first = buffer.get(position);
+                if (first == '\n' || first == '%') {
+                    skipLine();
+                    continue;
+                }
+                if (first == '{')
+                    throw new UnsupportedDataException();
+                parseRow();
+            }
+            return null;
+        }
+
+        private void parseRow() throws UnsupportedDataException {
+            double[] values = new double[labels.length];
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0)
+                    expect(',');
+                position = skipBlanks(buffer, position, end);
+                values[i] = labels[i] == null ? parseNumber() : parseLabel(labels[i]);
+                position = skipBlanks(buffer, position, end);
+            }
+            double weight = 1.0;
+            if (position < end && buffer.get(position) == ',') {
+                // the weight of the instance, e.g. ,{2.5}
+                position = skipBlanks(buffer, position + 1, end);
+                expect('{');
+                position = skipBlanks(buffer, position, end);
+                weight = parseNumber();
+                position = skipBlanks(buffer, position, end);
+                expect('}');
+                position = skipBlanks(buffer, position, end);
+            }
+            if (position < end && buffer.get(position) == '%')
+                skipLine();
+            else if (position < end) {
+                expect('\n');
+            }
+            if (rows.size() == weights.length)
+                weights = Arrays.copyOf(weights, 2 * weights.length);
+            weights[rows.size()] = weight;
+            rows.add(values);
+        }
+
+        private void expect(char character) throws UnsupportedDataException {
+            if (position >= end || buffer.get(position) != character)
+                throw new UnsupportedDataException();
+            position++;
+        }
+
+        private void skipLine() {
+            while (position < end && buffer.get(position) != '\n')
+                position++;
+            position++;
+        }
+
+        /**
+         * Parses a number directly from the bytes. Gives exactly the same result as Double.parseDouble.
+         *
+         * @return
+         * @throws UnsupportedDataException
+         */
+        private double parseNumber() throws UnsupportedDataException {
+            int numberStart = position;
+            if (position < end && buffer.get(position) == '?') {
+                position++;
+                return Utils.missingValue();
+            }
+            boolean negative = false;
+            if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+'))
+                negative = buffer.get(position++) == '-';
+
+            long mantissa = 0;
+            int exponent = 0;
+            int digits = 0;
+            boolean exact = true;
+            boolean fraction = false;
+            for (; position < end; position++) {
+                byte b = buffer.get(position);
+                if (b >= '0' && b <= '9') {
+                    digits++;
+                    if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if (fraction)
+                            exponent--;
+                    } else {
+                        // too many digits for the exact conversion
+                        exact = false;
+                        if (!fraction)
+                            exponent++;
+                    }
+                } else if (b == '.' && !fraction)
+                    fraction = true;
+                else
+                    break;
+            }
+            if (digits == 0)
+                throw new UnsupportedDataException();
+            if (position < end && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+                position++;
+                boolean negativeExponent = false;
+                if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+'))
+                    negativeExponent = buffer.get(position++) == '-';
+                int value = 0;
+                int exponentStart = position;
+                while (position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9' && value < 10000)
+                    value = value * 10 + (buffer.get(position++) - '0');
+                if (position == exponentStart)
+                    throw new UnsupportedDataException();
+                exponent += negativeExponent ? -value : value;
+            }
+
+            double result;
+            if (exact && exponent >= -22 && exponent <= 22 && mantissa < MAX_EXACT_MANTISSA) {
+                // both numbers are exact, so a single division or multiplication is correctly rounded
+                result = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                if (negative)
+                    result = -result;
+            } else
+                result = slowParse(numberStart);
+            return result;
+        }
+
+        /**
+         * Parses the number between the given start and the current position with Double.parseDouble.
+         *
+         * @param numberStart
+         * @return
+         */
+        private double slowParse(int numberStart) {
+            byte[] bytes = new byte[position - numberStart];
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = buffer.get(numberStart + i);
+            return Double.parseDouble(new String(bytes, UTF_8));
+        }
+
+        /**
+         * Parses a nominal value by comparing the bytes with the labels of the attribute.
+         *
+         * @param attributeLabels
+         * @return the index of the label
+         * @throws UnsupportedDataException
+         */
+        private double parseLabel(byte[][] attributeLabels) throws UnsupportedDataException {
+            int labelStart = position;
+            int labelEnd;
+            byte quote = buffer.get(position);
+            if (quote == '\'' || quote == '"') {
+                labelStart++;
+                labelEnd = labelStart;
+                while (labelEnd < end && buffer.get(labelEnd) != quote) {
+                    if (buffer.get(labelEnd) == '\\')
+                        throw new UnsupportedDataException();
+                    labelEnd++;
+                }
+                position = labelEnd + 1;
+            } else {
+                labelEnd = labelStart;
+                while (labelEnd < end) {
+                    byte b = buffer.get(labelEnd);
+                    if (b == ',' || b == '\n' || b == '\r' || b == ' ' || b == '\t' || b == '%')
+                        break;
+                    labelEnd++;
+                }
+                position = labelEnd;
+                if (labelEnd - labelStart == 1 && buffer.get(labelStart) == '?')
+                    return Utils.missingValue();
+            }
+            for (int i = 0; i < attributeLabels.length; i++)
+                if (equals(attributeLabels[i], labelStart, labelEnd))
+                    return i;
+            throw new UnsupportedDataException();
+        }
+
+        private boolean equals(byte[] label, int labelStart, int labelEnd) {
+            if (label.length != labelEnd - labelStart)
+                return false;
+            for (int i = 0; i < label.length; i++)
+                if (label[i] != buffer.get(labelStart + i))
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * Signals data which has to be loaded by the Weka loader, e.g. sparse rows or malformed values.
+     * The Weka loader then reports the error if the data is really invalid.
+     */
+    private static class UnsupportedDataException extends Exception {
+    }
+}
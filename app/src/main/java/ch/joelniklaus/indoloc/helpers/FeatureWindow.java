@@ -0,0 +1,186 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.models.DataPoint;
+
+/**
+ * Aggregates the features of the last data points (scans), because a single scan is very noisy.
+ * <p>
+ * Keeps the running mean, variance, minimum and maximum of every feature (in the order of the attributes,
+ * see WekaHelper.fillFeatureValues) over a sliding window of the last scans. The mean and the variance are updated
+ * with Welford's algorithm (the oldest scan is removed and the new one added), the minimum and the maximum with
+ * monotonic queues. So adding a scan costs O(number of features) independent of the size of the window,
+ * and does not allocate anything as long as the number of features does not change. Not thread safe.
+ */
+public class FeatureWindow {
+
+    public static final int DEFAULT_SIZE = 5;
+
+    private final int size;
+    private int numberOfChannels = -1;
+
+    private double[] history; // ring of the last scans, one row per scan
+    private long count;
+    private double[] features;
+
+    private double[] means;
+    private double[] m2s; // sums of the squared differences from the mean
+
+    // monotonic queues of the scan numbers per channel, the minimum respectively the maximum is in front
+    private long[] minQueue, maxQueue;
+    private int[] minHead, minLength, maxHead, maxLength;
+
+    /**
+     * @param size the number of scans aggregated
+     */
+    public FeatureWindow(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("The window must contain at least one scan");
+        this.size = size;
+    }
+
+    /**
+     * Adds the features of the data point. Starts again if the number of access points has changed.
+     *
+     * @param dataPoint
+     */
+    public void add(DataPoint dataPoint) {
+        int numberOfFeatures = WekaHelper.getNumberOfFeatures(dataPoint);
+        if (features == null || features.length != numberOfFeatures)
+            features = new double[numberOfFeatures];
+        WekaHelper.fillFeatureValues(dataPoint, features, 0);
+        add(features, 0, numberOfFeatures);
+    }
+
+    /**
+     * Adds the values of one scan. Starts again if the number of channels has changed.
+     *
+     * @param values
+     * @param offset           the index of the first channel in the array
+     * @param numberOfChannels
+     */
+    public void add(double[] values, int offset, int numberOfChannels) {
+        if (this.numberOfChannels != numberOfChannels)
+            allocate(numberOfChannels);
+
+        int row = (int) (count % size) * numberOfChannels;
+        long expired = count - size; // the scan which is overwritten now
+        int n = (int) Math.min(count, size); // the number of scans before adding this one
+
+        for (int c = 0; c < numberOfChannels; c++) {
+            double value = values[offset + c];
+
+            // remove the oldest scan from the mean and the variance
+            if (n == size) {
+                double old = history[row + c];
+                if (n == 1) {
+                    means[c] = 0;
+                    m2s[c] = 0;
+                } else {
+                    double delta = old - means[c];
+                    means[c] -= delta / (n - 1);
+                    m2s[c] -= delta * (old - means[c]);
+                }
+            }
+            int newN = Math.min(n + 1, size);
+            double delta = value - means[c];
+            means[c] += delta / newN;
+            m2s[c] += delta * (value - means[c]);
+
+            // the queues must not refer to the overwritten scan anymore
+            int base = c * size;
+            if (minLength[c] > 0 && minQueue[base + minHead[c]] <= expired) {
+                minHead[c] = (minHead[c] + 1) % size;
+                minLength[c]--;
+            }
+            if (maxLength[c] > 0 && maxQueue[base + maxHead[c]] <= expired) {
+                maxHead[c] = (maxHead[c] + 1) % size;
+                maxLength[c]--;
+            }
+            history[row + c] = value;
+
+            // scans which are no smaller (larger) than the new one can never be the minimum (maximum) again
+            while (minLength[c] > 0 && valueOf(minQueue[base + (minHead[c] + minLength[c] - 1) % size], c) >= value)
+                minLength[c]--;
+            minQueue[base + (minHead[c] + minLength[c]) % size] = count;
+            minLength[c]++;
+            while (maxLength[c] > 0 && valueOf(maxQueue[base + (maxHead[c] + maxLength[c] - 1) % size], c) <= value)
+                maxLength[c]--;
+            maxQueue[base + (maxHead[c] + maxLength[c]) % size] = count;
+            maxLength[c]++;
+        }
+        count++;
+    }
+
+    /**
+     * Forgets all the scans, e.g. when the room changes.
+     */
+    public void reset() {
+        count = 0;
+        if (numberOfChannels == -1)
+            return;
+        Arrays.fill(means, 0);
+        Arrays.fill(m2s, 0);
+        Arrays.fill(minLength, 0);
+        Arrays.fill(maxLength, 0);
+    }
+
+    /**
+     * Gets the number of scans currently aggregated, at most the size of the window.
+     *
+     * @return
+     */
+    public int getCount() {
+        return (int) Math.min(count, size);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getNumberOfChannels() {
+        return numberOfChannels;
+    }
+
+    public double getMean(int channel) {
+        return means[channel];
+    }
+
+    /**
+     * Gets the (population) variance of the channel over the scans in the window.
+     *
+     * @param channel
+     * @return
+     */
+    public double getVariance(int channel) {
+        // rounding errors of the removal could make it slightly negative
+        return getCount() == 0 ? 0 : Math.max(0, m2s[channel] / getCount());
+    }
+
+    public double getMin(int channel) {
+        return minLength[channel] == 0 ? 0 : valueOf(minQueue[channel * size + minHead[channel]], channel);
+    }
+
+    public double getMax(int channel) {
+        return maxLength[channel] == 0 ? 0 : valueOf(maxQueue[channel * size + maxHead[channel]], channel);
+    }
+
+    private double valueOf(long scan, int channel) {
+        return history[(int) (scan % size) * numberOfChannels + channel];
+    }
+
+    private void allocate(int numberOfChannels) {
+        this.numberOfChannels = numberOfChannels;
+        count = 0;
+        history = new double[size * numberOfChannels];
+        means = new double[numberOfChannels];
+        m2s = new double[numberOfChannels];
+        minQueue = new long[size * numberOfChannels];
+        maxQueue = new long[size * numberOfChannels];
+        minHead = new int[numberOfChannels];
+        minLength = new int[numberOfChannels];
+        maxHead = new int[numberOfChannels];
+        maxLength = new int[numberOfChannels];
+    }
+}
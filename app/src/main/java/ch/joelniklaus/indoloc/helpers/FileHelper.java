@@ -3,11 +3,14 @@ package ch.joelniklaus.indoloc.helpers;
 import android.content.Context;
 import android.os.Environment;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
 import ch.joelniklaus.indoloc.activities.CollectDataActivity;
@@ -155,10 +158,33 @@ public class FileHelper extends AbstractHelper {
             alert("Please grant permission to write to external storage");
             return;
         }
-        BufferedWriter writer = new BufferedWriter(new FileWriter(file.getAbsolutePath()));
-        writer.write(data.toString());
-        writer.flush();
-        writer.close();
+        // streams the rows instead of building the whole file as one string
+        ArffStreamWriter writer = new ArffStreamWriter(file, data);
+        try {
+            writer.writeInstances(data);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Opens a writer for an arff file with a given name in the external storage of the phone (sd card).
+     * In append mode the rows are added to the file if it already exists, e.g. to save the data points continuously while collecting.
+     *
+     * @param header
+     * @param fileName
+     * @param append
+     * @return the writer or null if the external storage is not writable
+     * @throws IOException
+     */
+    public ArffStreamWriter openArffWriterToExternalStorage(Instances header, String fileName, boolean append) throws IOException {
+        if (!isExternalStorageWritable()) {
+            alert("External Storage is not writable");
+            return null;
+        }
+        if (!EXTERNAL_DIRECTORY.exists())
+            EXTERNAL_DIRECTORY.mkdirs();
+        return new ArffStreamWriter(new File(EXTERNAL_DIRECTORY, fileName), header, append);
     }
 
     /**
@@ -170,7 +196,12 @@ public class FileHelper extends AbstractHelper {
      */
     public Instances loadArff(String filePath) throws CouldNotLoadArffException {
         try {
-            Instances data = new ConverterUtils.DataSource(filePath).getDataSet();
+            Instances data = null;
+            // numeric and nominal data is loaded directly from the bytes, everything else by weka
+            if (filePath.endsWith(".arff") && new File(filePath).isFile())
+                data = FastArffLoader.load(new File(filePath));
+            if (data == null)
+                data = new ConverterUtils.DataSource(filePath).getDataSet();
             data.setClassIndex(0);
             return data;
         } catch (Exception e) {
@@ -179,6 +210,64 @@ public class FileHelper extends AbstractHelper {
         }
     }
 
+    /**
+     * Loads instances from an arff file using a binary copy of the file in the given cache directory.
+     * The binary copy is created when the file is loaded the first time and recreated when the arff file has changed.
+     *
+     * @param filePath
+     * @param cacheDirectory
+     * @return
+     * @throws CouldNotLoadArffException
+     */
+    public Instances loadArffCached(String filePath, File cacheDirectory) throws CouldNotLoadArffException {
+        File arffFile = new File(filePath);
+        File binaryFile = new File(cacheDirectory, Integer.toHexString(arffFile.getAbsolutePath().hashCode())
+                + "_" + arffFile.getName() + BinaryInstancesLoader.FILE_EXTENSION);
+        if (binaryFile.exists() && binaryFile.lastModified() >= arffFile.lastModified()) try {
+            return loadBinary(binaryFile);
+        } catch (IOException e) {
+            // the cache is broken, so it is created again
+            e.printStackTrace();
+        }
+        Instances data = loadArff(filePath);
+        try {
+            cacheDirectory.mkdirs();
+            BinaryInstancesSaver.save(data, binaryFile);
+        } catch (Exception e) {
+            // string attributes cannot be saved in the binary format
+            binaryFile.delete();
+            e.printStackTrace();
+        }
+        return data;
+    }
+
+    /**
+     * Converts an arff file to the binary format which can be loaded without parsing.
+     *
+     * @param filePath
+     * @param binaryFile
+     * @throws CouldNotLoadArffException
+     * @throws IOException
+     */
+    public void convertArffToBinary(String filePath, File binaryFile) throws CouldNotLoadArffException, IOException {
+        BinaryInstancesSaver.save(loadArff(filePath), binaryFile);
+    }
+
+    /**
+     * Loads instances from a file in the binary format.
+     *
+     * @param binaryFile
+     * @return
+     * @throws IOException
+     */
+    public Instances loadBinary(File binaryFile) throws IOException {
+        BinaryInstancesLoader loader = new BinaryInstancesLoader();
+        loader.setSource(binaryFile);
+        Instances data = loader.getDataSet();
+        data.setClassIndex(0);
+        return data;
+    }
+
     /**
      * Saves serializable data to the external storage of the phone (sd card).
      *
@@ -227,6 +316,104 @@ public class FileHelper extends AbstractHelper {
         return new ArrayList<>();
     }
 
+    /**
+     * Opens the journal of the collected data points in the external storage of the phone (sd card).
+     * Data points which have been saved by an older version of the app using saveDataPoints are moved into the journal.
+     *
+     * @return the journal or null if it could not be opened
+     */
+    public DataPointJournal openDataPointJournal() {
+        if (!isExternalStorageWritable()) {
+            alert("External Storage is not writable");
+            return null;
+        }
+        DataPointJournal journal = new DataPointJournal(new File(EXTERNAL_DIRECTORY, "dataPoints.journal"));
+        try {
+            journal.open();
+            File legacyFile = new File(EXTERNAL_DIRECTORY + "/dataPoints.tmp");
+            if (legacyFile.exists()) {
+                for (DataPoint dataPoint : readLegacyDataPoints(legacyFile))
+                    journal.append(dataPoint);
+                journal.sync();
+                // only deleted once all the data points are in the journal
+                legacyFile.delete();
+            }
+            if (journal.isEmpty())
+                alert("No DataPoints collected yet");
+            else
+                alert("Loaded " + journal.size() + " collected DataPoints");
+            return journal;
+        } catch (IOException e) {
+            alert("Could not load DataPoints");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Reads the data points saved by an older version of the app using saveDataPoints.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList<DataPoint> readLegacyDataPoints(File file) throws IOException {
+        try {
+            return (ArrayList<DataPoint>) SerializationHelper.read(file.getPath());
+        } catch (Exception e) {
+            throw new IOException("Could not read " + file, e);
+        }
+    }
+
+    /**
+     * Loads the access points of the site. If a dynamic index of the site has been saved to the external storage before,
+     * it is loaded instead of the config in the assets, so the slots stay the same as in the data collected so far.
+     *
+     * @param siteConfig    path of the config in the assets
+     * @param numberOfSlots used if the config does not specify the number of slots
+     * @return
+     * @throws IOException
+     */
+    public AccessPointIndex loadAccessPointIndex(String siteConfig, int numberOfSlots) throws IOException {
+        File saved = new File(EXTERNAL_DIRECTORY, siteConfig);
+        if (isExternalStorageReadable() && saved.exists())
+            return AccessPointIndex.load(new FileInputStream(saved), numberOfSlots);
+        return AccessPointIndex.load(context.getAssets().open(siteConfig), numberOfSlots);
+    }
+
+    /**
+     * Saves a dynamic index of the site to the external storage, so the added access points keep their slots.
+     * The index is written to a temporary file first and then replaces the saved one, so the saved index is
+     * always complete, even if the app is killed while saving.
+     * Does not show any alerts, so it can be called from any thread.
+     *
+     * @param siteConfig path of the config in the assets
+     * @param index
+     * @throws IOException
+     */
+    public void saveAccessPointIndex(String siteConfig, AccessPointIndex index) throws IOException {
+        if (!isExternalStorageWritable())
+            throw new IOException("External Storage is not writable");
+        File file = new File(EXTERNAL_DIRECTORY, siteConfig);
+        if (!file.getParentFile().exists())
+            file.getParentFile().mkdirs();
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporaryFile);
+        Writer writer = new OutputStreamWriter(out, Charset.forName("UTF-8"));
+        try {
+            index.save(writer);
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not save the access points to " + file);
+        }
+    }
+
     /**
      * Checks if external storage is available for read and write
      *
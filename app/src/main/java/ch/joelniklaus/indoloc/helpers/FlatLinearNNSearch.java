@@ -0,0 +1,348 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+import weka.core.neighboursearch.LinearNNSearch;
+
+/**
+ * A linear nearest neighbour search over the training data stored in one contiguous array,
+ * e.g. for IBk with -A "ch.joelniklaus.indoloc.helpers.FlatLinearNNSearch".
+ * <p>
+ * The training data is normalized once into a row major matrix with one column per attribute used by the distance.
+ * Every query is normalized once as well, so the squared distance to a row is a loop over two arrays
+ * which is abandoned as soon as it exceeds the distance of the current k-th nearest neighbour.
+ * The k nearest neighbours are kept in a heap of primitive arrays. The neighbours and the distances are the same
+ * as the ones of LinearNNSearch, including the ties with the k-th nearest neighbour.
+ * If the training data is sparse (see WekaHelper.isSparse), the matrix only stores the values which are not 0
+ * and the distance only visits the columns in which the row or the query is not 0.
+ * <p>
+ * The matrix is normalized again when the ranges of the distance function change (e.g. when IBk adds the
+ * query to the ranges) and rows are appended when instances are added to the training data.
+ * Only the euclidean distance is computed on the matrix, for all other distance functions
+ * and when the performance is measured, the search of LinearNNSearch is used.
+ * <p>
+ * Several queries can be searched at once in parallel (see kNearestNeighbourIndices).
+ */
+public class FlatLinearNNSearch extends LinearNNSearch {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The size of the block of rows which is compared to all the queries of a batch.
+     */
+    private static final int BLOCK_BYTES = 32 * 1024;
+
+    /**
+     * The number of queries of a batch which are searched by one thread.
+     */
+    private static final int QUERIES_PER_TASK = 16;
+
+    private static ForkJoinPool pool;
+
+    // derived from the training data, built again when needed
+    private transient NormalizedMatrix matrix;
+
+    private transient double[] query;
+    private transient int[] queryColumns;
+    private transient NeighbourHeap heap;
+    private transient double[][] batchDistances;
+
+    public FlatLinearNNSearch() {
+        super();
+    }
+
+    public FlatLinearNNSearch(Instances instances) {
+        super(instances);
+    }
+
+    @Override
+    public String globalInfo() {
+        return "Linear nearest neighbour search over the normalized training data stored in one contiguous array. "
+                + "Finds the same neighbours as LinearNNSearch.";
+    }
+
+    @Override
+    public void setInstances(Instances instances) throws Exception {
+        super.setInstances(instances);
+        matrix = null;
+    }
+
+    @Override
+    public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
+        if (!isFlat())
+            return super.kNearestNeighbours(target, kNN);
+        prepare();
+        matrix.normalize(target, query, 0);
+        int numberOfQueryColumns = matrix.isSparse() ? matrix.getQueryColumns(query, 0, queryColumns) : 0;
+        heap.reset(kNN);
+        scan(target, query, queryColumns, 0, numberOfQueryColumns, matrix.hasMissing(query, 0), heap, kNN, 0, matrix.getNumberOfRows());
+        m_Distances = new double[heap.size() + heap.noOfKthNearest()];
+        return neighbours(heap, m_Distances);
+    }
+
+    /**
+     * Finds the k nearest neighbours of all the given queries, see kNearestNeighbourIndices.
+     * The distances of the neighbours are returned by getBatchDistances afterwards.
+     *
+     * @param queries
+     * @param kNN
+     * @return the neighbours of every query, like kNearestNeighbours(Instance, int)
+     * @throws Exception
+     */
+    public Instances[] kNearestNeighbours(Instances queries, int kNN) throws Exception {
+        Neighbours result = kNearestNeighbourIndices(queries, kNN);
+        Instances[] neighbours = new Instances[queries.numInstances()];
+        for (int q = 0; q < neighbours.length; q++) {
+            neighbours[q] = new Instances(m_Instances, result.indices[q].length);
+            for (int index : result.indices[q])
+                neighbours[q].add(m_Instances.instance(index));
+        }
+        batchDistances = result.distances;
+        return neighbours;
+    }
+
+    /**
+     * Finds the k nearest neighbours of all the given queries. The ranges of the distance function are updated
+     * with all the queries first (see addInstanceInfo).
+     * <p>
+     * The queries are split into groups which are searched in parallel on a fork join pool.
+     * Every group is searched with one scan over the training data: the rows are processed in blocks which fit
+     * into the cache and every block is compared to all the queries of the group before the next block is loaded.
+     * Other distance functions than the euclidean distance are computed by the distance function on one thread.
+     *
+     * @param queries
+     * @param kNN
+     * @return the indices (in the training data) and the distances of the neighbours of every query, ordered like kNearestNeighbours
+     * @throws Exception
+     */
+    public Neighbours kNearestNeighbourIndices(Instances queries, int kNN) throws Exception {
+        for (int q = 0; q < queries.numInstances(); q++)
+            addInstanceInfo(queries.instance(q));
+
+        Batch batch = new Batch(queries, kNN);
+        if (!NormalizedMatrix.isEuclidean(m_DistanceFunction)) {
+            batch.search(0, queries.numInstances());
+        } else {
+            prepare();
+            batch.normalize();
+            if (queries.numInstances() <= QUERIES_PER_TASK)
+                batch.search(0, queries.numInstances());
+            else
+                getPool().invoke(new BatchTask(batch, 0, queries.numInstances()));
+        }
+        return new Neighbours(batch.indices, batch.distances);
+    }
+
+    /**
+     * @return the distances of the neighbours of every query of the last batch
+     */
+    public double[][] getBatchDistances() {
+        return batchDistances;
+    }
+
+    /**
+     * Checks if the search can be done on the matrix.
+     *
+     * @return
+     */
+    private boolean isFlat() {
+        return NormalizedMatrix.isEuclidean(m_DistanceFunction) && m_Stats == null && m_Instances != null;
+    }
+
+    /**
+     * Builds the matrix if the training data or the ranges changed since the last search.
+     *
+     * @throws Exception
+     */
+    private void prepare() throws Exception {
+        NormalizableDistance distance = (NormalizableDistance) m_DistanceFunction;
+        if (matrix == null || !matrix.isFor(m_Instances, distance)) {
+            matrix = new NormalizedMatrix(m_Instances, distance);
+            query = new double[matrix.getNumberOfColumns()];
+            queryColumns = new int[matrix.getNumberOfColumns()];
+            heap = new NeighbourHeap();
+        }
+        matrix.update();
+    }
+
+    /**
+     * Compares the rows between start and end to the query, like LinearNNSearch.kNearestNeighbours.
+     * The query values are null if the distance function computes the distances.
+     * The query columns are only used if the matrix is sparse.
+     */
+    private void scan(Instance target, double[] queryValues, int[] queryColumns, int queryOffset, int numberOfQueryColumns, boolean queryHasMissing,
+                      NeighbourHeap heap, int kNN, int start, int end) {
+        for (int row = start; row < end; row++) {
+            // for hold-one-out cross-validation
+            if (target == m_Instances.instance(row))
+                continue;
+            if (heap.size() < kNN) {
+                double distance = distance(target, queryValues, queryColumns, queryOffset, numberOfQueryColumns, queryHasMissing, row, Double.POSITIVE_INFINITY);
+                if (distance == 0.0 && m_SkipIdentical && row < m_Instances.numInstances() - 1)
+                    continue;
+                heap.put(row, distance);
+            } else {
+                double kthDistance = heap.peekDistance();
+                double distance = distance(target, queryValues, queryColumns, queryOffset, numberOfQueryColumns, queryHasMissing, row, kthDistance);
+                if (distance == 0.0 && m_SkipIdentical)
+                    continue;
+                if (distance < kthDistance)
+                    heap.putBySubstitute(row, distance);
+                else if (distance == kthDistance)
+                    heap.putKthNearest(row, distance);
+            }
+        }
+    }
+
+    /**
+     * Computes the distance between the query and the row with the distance function if the query is not normalized.
+     */
+    private double distance(Instance target, double[] queryValues, int[] queryColumns, int queryOffset, int numberOfQueryColumns, boolean queryHasMissing,
+                            int row, double cutOffValue) {
+        if (queryValues == null)
+            return m_DistanceFunction.distance(target, m_Instances.instance(row), cutOffValue, null);
+        if (matrix.isSparse())
+            return matrix.sparseDistance(queryValues, queryColumns, queryOffset, numberOfQueryColumns, row, cutOffValue);
+        return matrix.distance(queryValues, queryOffset, queryHasMissing, row, cutOffValue);
+    }
+
+    /**
+     * Empties the heap into the neighbours ordered by their distance, like LinearNNSearch.
+     *
+     * @param heap
+     * @param distances the array the distances of the neighbours are written to
+     * @return
+     */
+    private Instances neighbours(NeighbourHeap heap, double[] distances) {
+        int[] indices = new int[distances.length];
+        heap.drain(indices, distances);
+        m_DistanceFunction.postProcessDistances(distances);
+        Instances neighbours = new Instances(m_Instances, indices.length);
+        for (int index : indices)
+            neighbours.add(m_Instances.instance(index));
+        return neighbours;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * The indices and the distances of the nearest neighbours of several queries.
+     */
+    public static class Neighbours {
+
+        /**
+         * The indices of the neighbours of every query in the training data (see getInstances).
+         */
+        public final int[][] indices;
+        public final double[][] distances;
+
+        private Neighbours(int[][] indices, double[][] distances) {
+            this.indices = indices;
+            this.distances = distances;
+        }
+    }
+
+    /**
+     * The queries of a batch search and their results.
+     */
+    private class Batch {
+
+        private final Instances queries;
+        private final int kNN;
+        private final int[][] indices;
+        private final double[][] distances;
+        private double[] queryMatrix;
+        private boolean[] queryHasMissing;
+        private int[] queryColumns; // only if the matrix is sparse, with the same offsets as the query matrix
+        private int[] numberOfQueryColumns;
+
+        private Batch(Instances queries, int kNN) {
+            this.queries = queries;
+            this.kNN = kNN;
+            indices = new int[queries.numInstances()][];
+            distances = new double[queries.numInstances()][];
+        }
+
+        private void normalize() {
+            int stride = matrix.getNumberOfColumns();
+            queryMatrix = new double[queries.numInstances() * stride];
+            queryHasMissing = new boolean[queries.numInstances()];
+            numberOfQueryColumns = new int[queries.numInstances()];
+            if (matrix.isSparse())
+                queryColumns = new int[queries.numInstances() * stride];
+            for (int q = 0; q < queries.numInstances(); q++) {
+                matrix.normalize(queries.instance(q), queryMatrix, q * stride);
+                queryHasMissing[q] = matrix.hasMissing(queryMatrix, q * stride);
+                if (matrix.isSparse())
+                    numberOfQueryColumns[q] = matrix.getQueryColumns(queryMatrix, q * stride, queryColumns);
+            }
+        }
+
+        /**
+         * Searches the neighbours of the queries between from and to with one blocked scan over the training data.
+         *
+         * @param from
+         * @param to
+         */
+        private void search(int from, int to) {
+            int stride = queryMatrix == null ? 0 : matrix.getNumberOfColumns();
+            int rows = m_Instances.numInstances();
+            NeighbourHeap[] heaps = new NeighbourHeap[to - from];
+            for (int q = from; q < to; q++) {
+                heaps[q - from] = new NeighbourHeap();
+                heaps[q - from].reset(kNN);
+            }
+
+            int rowsPerBlock = Math.max(1, BLOCK_BYTES / (8 * Math.max(1, stride)));
+            for (int start = 0; start < rows; start += rowsPerBlock) {
+                int end = Math.min(rows, start + rowsPerBlock);
+                for (int q = from; q < to; q++)
+                    scan(queries.instance(q), queryMatrix, queryColumns, q * stride, queryMatrix == null ? 0 : numberOfQueryColumns[q],
+                            queryMatrix != null && queryHasMissing[q], heaps[q - from], kNN, start, end);
+            }
+
+            for (int q = from; q < to; q++) {
+                NeighbourHeap heap = heaps[q - from];
+                indices[q] = new int[heap.size() + heap.noOfKthNearest()];
+                distances[q] = new double[indices[q].length];
+                heap.drain(indices[q], distances[q]);
+                m_DistanceFunction.postProcessDistances(distances[q]);
+            }
+        }
+    }
+
+    /**
+     * Splits the queries of a batch until the groups are small enough to be searched by one thread.
+     */
+    private static class BatchTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Batch batch;
+        private final int from, to;
+
+        private BatchTask(Batch batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= QUERIES_PER_TASK) {
+                batch.search(from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(batch, from, middle), new BatchTask(batch, middle, to));
+            }
+        }
+    }
+}
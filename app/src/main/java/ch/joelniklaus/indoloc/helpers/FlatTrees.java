@@ -0,0 +1,263 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+
+/**
+ * The trees of a trained random forest (or of a single random tree) flattened into contiguous primitive arrays.
+ * <p>
+ * Every node has an index. The nodes of a tree are stored breadth first, so the children of a node are consecutive:
+ * the first child, the number of children, the split attribute (-1 for a leaf) and the split point of a node
+ * are stored at its index. The proportion of the training data which went to a node (used for missing values)
+ * is stored at the index of the node as well. The class distribution and the distribution of every node are stored
+ * one after the other in one array, the node stores its offset (-1 if the node has none).
+ */
+public class FlatTrees implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String TREE_CLASS = "weka.classifiers.trees.RandomTree$Tree";
+
+    final int[] roots;
+    final int[] attributes;
+    final double[] splitPoints;
+    final int[] firstChildren;
+    final int[] numberOfChildren;
+    final double[] props;
+    final int classDistributionLength;
+    final int[] classDistributionOffsets;
+    final int distributionLength;
+    final int[] distributionOffsets;
+    final double[] distributions;
+
+    private FlatTrees(int[] roots, int[] attributes, double[] splitPoints, int[] firstChildren, int[] numberOfChildren, double[] props,
+                      int classDistributionLength, int[] classDistributionOffsets, int distributionLength, int[] distributionOffsets, double[] distributions) {
+        this.roots = roots;
+        this.attributes = attributes;
+        this.splitPoints = splitPoints;
+        this.firstChildren = firstChildren;
+        this.numberOfChildren = numberOfChildren;
+        this.props = props;
+        this.classDistributionLength = classDistributionLength;
+        this.classDistributionOffsets = classDistributionOffsets;
+        this.distributionLength = distributionLength;
+        this.distributionOffsets = distributionOffsets;
+        this.distributions = distributions;
+    }
+
+    /**
+     * Checks if the classifier is a trained random forest or random tree which can be flattened.
+     * A random tree trained without any attributes but the class only has a ZeroR model and no nodes.
+     *
+     * @param classifier
+     * @return
+     */
+    public static boolean canFlatten(Classifier classifier) {
+        Classifier[] trees;
+        if (classifier instanceof RandomForest)
+            trees = (Classifier[]) WekaFields.get(classifier, "m_Classifiers");
+        else if (classifier instanceof RandomTree)
+            trees = new Classifier[]{classifier};
+        else
+            return false;
+        if (trees == null)
+            return false;
+        for (Classifier tree : trees)
+            if (!(tree instanceof RandomTree) || WekaFields.get(tree, "m_zeroR") != null || WekaFields.get(tree, "m_Tree") == null)
+                return false;
+        return true;
+    }
+
+    /**
+     * Flattens the trees of a trained random forest or a single trained random tree.
+     *
+     * @param classifier
+     * @return
+     */
+    public static FlatTrees flatten(Classifier classifier) {
+        Classifier[] trees;
+        if (classifier instanceof RandomForest)
+            trees = (Classifier[]) WekaFields.get(classifier, "m_Classifiers");
+        else if (classifier instanceof RandomTree)
+            trees = new Classifier[]{classifier};
+        else
+            throw new IllegalArgumentException("Only random forests and random trees can be flattened, not " + classifier.getClass().getName());
+
+        // breadth first, so the children of every node are consecutive
+        ArrayList<Object> nodes = new ArrayList<>();
+        ArrayList<Integer> firstChildList = new ArrayList<>();
+        int[] roots = new int[trees.length];
+        for (int t = 0; t < trees.length; t++) {
+            if (!(trees[t] instanceof RandomTree) || WekaFields.get(trees[t], "m_zeroR") != null)
+                throw new IllegalArgumentException("The forest has to consist of trained random trees");
+            roots[t] = nodes.size();
+            nodes.add(WekaFields.get(trees[t], "m_Tree"));
+            for (int i = roots[t]; i < nodes.size(); i++) {
+                Object[] successors = (Object[]) WekaFields.get(nodes.get(i), "m_Successors");
+                if (successors != null && WekaFields.getInt(nodes.get(i), "m_Attribute") > -1) {
+                    firstChildList.add(nodes.size());
+                    for (Object successor : successors)
+                        nodes.add(successor);
+                } else {
+                    firstChildList.add(-1);
+                }
+            }
+        }
+
+        int n = nodes.size();
+        int[] attributes = new int[n], firstChildren = new int[n], numberOfChildren = new int[n];
+        int[] classDistributionOffsets = new int[n], distributionOffsets = new int[n];
+        double[] splitPoints = new double[n], props = new double[n];
+        int classDistributionLength = -1, distributionLength = -1;
+        DoubleList distributions = new DoubleList();
+        for (int i = 0; i < n; i++) {
+            Object node = nodes.get(i);
+            attributes[i] = WekaFields.getInt(node, "m_Attribute");
+            splitPoints[i] = WekaFields.getDouble(node, "m_SplitPoint");
+            firstChildren[i] = firstChildList.get(i);
+            if (firstChildren[i] != -1) {
+                numberOfChildren[i] = ((Object[]) WekaFields.get(node, "m_Successors")).length;
+                double[] prop = (double[]) WekaFields.get(node, "m_Prop");
+                for (int c = 0; c < numberOfChildren[i]; c++)
+                    props[firstChildren[i] + c] = prop == null ? 0 : prop[c];
+            }
+
+            double[] classDistribution = (double[]) WekaFields.get(node, "m_ClassDistribution");
+            classDistributionLength = checkLength(classDistribution, classDistributionLength);
+            classDistributionOffsets[i] = distributions.addAll(classDistribution);
+            double[] distribution = (double[]) WekaFields.get(node, "m_Distribution");
+            distributionLength = checkLength(distribution, distributionLength);
+            distributionOffsets[i] = distributions.addAll(distribution);
+        }
+        return new FlatTrees(roots, attributes, splitPoints, firstChildren, numberOfChildren, props,
+                classDistributionLength, classDistributionOffsets, distributionLength, distributionOffsets, distributions.toArray());
+    }
+
+    private static int checkLength(double[] distribution, int length) {
+        if (distribution == null)
+            return length;
+        if (length != -1 && length != distribution.length)
+            throw new IllegalArgumentException("All the distributions of the nodes have to have the same length");
+        return distribution.length;
+    }
+
+    /**
+     * Creates the weka nodes of one tree again and sets them as the root of the given random tree.
+     *
+     * @param tree  the random tree, e.g. a copy of the template of the forest, with its header set
+     * @param index the index of the tree
+     */
+    void restore(RandomTree tree, int index) {
+        WekaFields.set(tree, "m_Tree", restoreNode(tree, roots[index]));
+    }
+
+    private Object restoreNode(RandomTree tree, int node) {
+        Object restored = WekaFields.newInstance(TREE_CLASS, new Class<?>[]{RandomTree.class}, tree);
+        WekaFields.set(restored, "m_Attribute", attributes[node]);
+        WekaFields.set(restored, "m_SplitPoint", splitPoints[node]);
+        WekaFields.set(restored, "m_ClassDistribution", copy(classDistributionOffsets[node], classDistributionLength));
+        WekaFields.set(restored, "m_Distribution", copy(distributionOffsets[node], distributionLength));
+        if (firstChildren[node] != -1) {
+            Object[] successors = (Object[]) Array.newInstance(restored.getClass(), numberOfChildren[node]);
+            double[] prop = new double[numberOfChildren[node]];
+            for (int c = 0; c < successors.length; c++) {
+                successors[c] = restoreNode(tree, firstChildren[node] + c);
+                prop[c] = props[firstChildren[node] + c];
+            }
+            WekaFields.set(restored, "m_Successors", successors);
+            WekaFields.set(restored, "m_Prop", prop);
+        }
+        return restored;
+    }
+
+    private double[] copy(int offset, int length) {
+        if (offset == -1)
+            return null;
+        double[] copy = new double[length];
+        System.arraycopy(distributions, offset, copy, 0, length);
+        return copy;
+    }
+
+    public int getNumberOfTrees() {
+        return roots.length;
+    }
+
+    public int getNumberOfNodes() {
+        return attributes.length;
+    }
+
+    /**
+     * Writes the arrays with bulk writes (see CompactModelSerializer).
+     *
+     * @param out
+     * @throws IOException
+     */
+    void write(DataOutputStream out) throws IOException {
+        CompactModelSerializer.writeInts(out, roots);
+        CompactModelSerializer.writeInts(out, attributes);
+        CompactModelSerializer.writeDoubles(out, splitPoints);
+        CompactModelSerializer.writeInts(out, firstChildren);
+        CompactModelSerializer.writeInts(out, numberOfChildren);
+        CompactModelSerializer.writeDoubles(out, props);
+        out.writeInt(classDistributionLength);
+        CompactModelSerializer.writeInts(out, classDistributionOffsets);
+        out.writeInt(distributionLength);
+        CompactModelSerializer.writeInts(out, distributionOffsets);
+        CompactModelSerializer.writeDoubles(out, distributions);
+    }
+
+    static FlatTrees read(DataInputStream in) throws IOException {
+        int[] roots = CompactModelSerializer.readInts(in);
+        int[] attributes = CompactModelSerializer.readInts(in);
+        double[] splitPoints = CompactModelSerializer.readDoubles(in);
+        int[] firstChildren = CompactModelSerializer.readInts(in);
+        int[] numberOfChildren = CompactModelSerializer.readInts(in);
+        double[] props = CompactModelSerializer.readDoubles(in);
+        int classDistributionLength = in.readInt();
+        int[] classDistributionOffsets = CompactModelSerializer.readInts(in);
+        int distributionLength = in.readInt();
+        int[] distributionOffsets = CompactModelSerializer.readInts(in);
+        double[] distributions = CompactModelSerializer.readDoubles(in);
+        return new FlatTrees(roots, attributes, splitPoints, firstChildren, numberOfChildren, props,
+                classDistributionLength, classDistributionOffsets, distributionLength, distributionOffsets, distributions);
+    }
+
+    /**
+     * A growing array of doubles without boxing.
+     */
+    private static class DoubleList {
+        private double[] values = new double[1024];
+        private int size = 0;
+
+        /**
+         * @param array
+         * @return the offset of the array in the list, -1 if the array is null
+         */
+        private int addAll(double[] array) {
+            if (array == null)
+                return -1;
+            if (size + array.length > values.length) {
+                double[] grown = new double[Math.max(2 * values.length, size + array.length)];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            System.arraycopy(array, 0, values, size, array.length);
+            size += array.length;
+            return size - array.length;
+        }
+
+        private double[] toArray() {
+            double[] array = new double[size];
+            System.arraycopy(values, 0, array, 0, size);
+            return array;
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.Vector;
+
+import weka.core.DistanceFunction;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * An approximate nearest neighbour search on a hierarchical navigable small world graph (HNSW, Malkov and Yashunin),
+ * e.g. for IBk with -A "ch.joelniklaus.indoloc.helpers.HnswNNSearch -M 16 -E 64".
+ * <p>
+ * Every instance of the training data is a node of a graph which is linked to its nearest nodes. Some nodes are also
+ * part of sparser layers above, which lead a query from the entry point to its region with a few greedy steps.
+ * On the bottom layer a beam search which keeps the efSearch nearest nodes found so far returns the neighbours,
+ * so a query compares itself to a few hundred instances instead of all of them.
+ * <p>
+ * The knobs: the number of connections per node (-M) and the beam width while building the graph (-C) trade the time
+ * to build the graph and its size for the recall. The beam width while searching (-E) trades the latency of a query for
+ * the recall and can be changed at any time. The distances of the returned neighbours are exact.
+ * <p>
+ * Instances added to the training data are inserted into the graph with update, like IBk.updateClassifier does.
+ * The graph is not built again when the ranges of the distance function change, only the distances are normalized
+ * with the new ranges. The euclidean distance is computed on the normalized matrix (see NormalizedMatrix),
+ * all other distance functions are computed by the distance function. Not thread safe, like the searches of weka.
+ */
+public class HnswNNSearch extends NearestNeighbourSearch {
+
+    private static final long serialVersionUID = 1L;
+
+    private int numberOfConnections = 16;
+    private int efConstruction = 100;
+    private int efSearch = 64;
+    private int seed = 1;
+
+    private double[] m_Distances;
+
+    // the graph, built again when needed
+    private transient DistanceFunction graphDistanceFunction;
+    private transient NormalizedMatrix matrix;
+    private transient int size;
+    private transient int entryPoint;
+    private transient int maxLevel;
+    private transient int[] levels;
+    // per node the number of links followed by the links, on the bottom layer with twice the connections
+    private transient int[] bottomLinks;
+    private transient int[][] upperLinks;
+    private transient Random random;
+
+    // the current query, either a row of the matrix, a normalized query or an instance
+    private transient int queryRow;
+    private transient double[] query;
+    private transient boolean queryHasMissing;
+    private transient Instance queryInstance;
+
+    private transient int[] visited;
+    private transient int visitMark;
+    private transient Queue candidates, results;
+    private transient int[] selection;
+
+    public HnswNNSearch() {
+        super();
+    }
+
+    public HnswNNSearch(Instances instances) throws Exception {
+        this();
+        setInstances(instances);
+    }
+
+    @Override
+    public String globalInfo() {
+        return "Approximate nearest neighbour search on a hierarchical navigable small world graph. "
+                + "The recall and the latency are tuned with the number of connections and the beam widths.";
+    }
+
+    @Override
+    public Enumeration<Option> listOptions() {
+        Vector<Option> result = new Vector<>();
+        result.add(new Option("\tThe number of connections of a node (default 16).", "M", 1, "-M <num>"));
+        result.add(new Option("\tThe beam width while building the graph (default 100).", "C", 1, "-C <num>"));
+        result.add(new Option("\tThe beam width while searching (default 64).", "E", 1, "-E <num>"));
+        result.add(new Option("\tThe seed of the levels of the nodes (default 1).", "S", 1, "-S <num>"));
+        result.addAll(Collections.list(super.listOptions()));
+        return result.elements();
+    }
+
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        String value = Utils.getOption('M', options);
+        setNumberOfConnections(value.isEmpty() ? 16 : Integer.parseInt(value));
+        value = Utils.getOption('C', options);
+        setEfConstruction(value.isEmpty() ? 100 : Integer.parseInt(value));
+        value = Utils.getOption('E', options);
+        setEfSearch(value.isEmpty() ? 64 : Integer.parseInt(value));
+        value = Utils.getOption('S', options);
+        setSeed(value.isEmpty() ? 1 : Integer.parseInt(value));
+        super.setOptions(options);
+    }
+
+    @Override
+    public String[] getOptions() {
+        Vector<String> result = new Vector<>();
+        Collections.addAll(result, "-M", "" + numberOfConnections, "-C", "" + efConstruction, "-E", "" + efSearch, "-S", "" + seed);
+        Collections.addAll(result, super.getOptions());
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Builds the graph of the training data.
+     *
+     * @param instances
+     * @throws Exception
+     */
+    @Override
+    public void setInstances(Instances instances) throws Exception {
+        super.setInstances(instances);
+        m_DistanceFunction.setInstances(instances);
+        graphDistanceFunction = null;
+        prepare();
+    }
+
+    /**
+     * Inserts the instance into the graph. Like for the KDTree of weka, the instance has to be added to the
+     * training data (see getInstances) first.
+     *
+     * @param instance
+     * @throws Exception
+     */
+    @Override
+    public void update(Instance instance) throws Exception {
+        if (m_Instances == null)
+            throw new Exception("No instances supplied yet. Cannot update without supplying a set of instances first.");
+        m_DistanceFunction.update(instance);
+        prepare();
+    }
+
+    /**
+     * Updates the ranges of the distance function, like LinearNNSearch.
+     *
+     * @param instance
+     */
+    @Override
+    public void addInstanceInfo(Instance instance) {
+        if (m_Instances != null)
+            m_DistanceFunction.update(instance);
+    }
+
+    @Override
+    public Instance nearestNeighbour(Instance target) throws Exception {
+        return kNearestNeighbours(target, 1).instance(0);
+    }
+
+    /**
+     * Finds the approximate k nearest neighbours of the target. Like LinearNNSearch, the target itself is skipped
+     * (for hold-one-out cross-validation) and the neighbours with the same distance as the k-th nearest neighbour
+     * are returned as well, as far as they are found.
+     *
+     * @param target
+     * @param kNN
+     * @return the neighbours ordered by their distance
+     * @throws Exception
+     */
+    @Override
+    public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
+        prepare();
+        m_Distances = new double[0];
+        if (size == 0)
+            return new Instances(m_Instances, 0);
+
+        setQuery(target);
+        int node = entryPoint;
+        double distance = queryDistance(node, Double.POSITIVE_INFINITY);
+        for (int level = maxLevel; level > 0; level--) {
+            node = greedySearch(node, distance, level);
+            distance = queryDistance(node, Double.POSITIVE_INFINITY);
+        }
+        // one more for the target itself
+        searchLayer(node, distance, Math.max(efSearch, kNN + 1), 0);
+
+        int found = results.size();
+        int[] indices = new int[found];
+        double[] distances = new double[found];
+        for (int i = found - 1; i >= 0; i--) {
+            distances[i] = results.peekKey();
+            indices[i] = results.pop();
+        }
+        int count = 0;
+        for (int i = 0; i < found; i++) {
+            if (target == m_Instances.instance(indices[i]))
+                continue;
+            if (count >= kNN && distances[i] != distances[count - 1])
+                break;
+            indices[count] = indices[i];
+            distances[count++] = distances[i];
+        }
+
+        m_Distances = new double[count];
+        System.arraycopy(distances, 0, m_Distances, 0, count);
+        m_DistanceFunction.postProcessDistances(m_Distances);
+        Instances neighbours = new Instances(m_Instances, count);
+        for (int i = 0; i < count; i++)
+            neighbours.add(m_Instances.instance(indices[i]));
+        return neighbours;
+    }
+
+    @Override
+    public double[] getDistances() throws Exception {
+        if (m_Distances == null)
+            throw new Exception("No distances available. Call either nearestNeighbour or kNearestNeighbours first.");
+        return m_Distances;
+    }
+
+    /**
+     * Builds the graph again if the training data or the distance function changed
+     * and inserts the instances which were added to the training data.
+     *
+     * @throws Exception
+     */
+    private void prepare() throws Exception {
+        if (m_Instances == null)
+            throw new Exception("No instances supplied yet. Have to call setInstances first.");
+        if (graphDistanceFunction != m_DistanceFunction || levels == null || size > m_Instances.numInstances()
+                || (matrix != null && !matrix.isFor(m_Instances, (NormalizableDistance) m_DistanceFunction)))
+            clear();
+        if (matrix != null)
+            matrix.update();
+        for (int row = size; row < m_Instances.numInstances(); row++)
+            insert(row);
+    }
+
+    private void clear() {
+        graphDistanceFunction = m_DistanceFunction;
+        matrix = NormalizedMatrix.isEuclidean(m_DistanceFunction) ? new NormalizedMatrix(m_Instances, (NormalizableDistance) m_DistanceFunction) : null;
+        query = matrix == null ? null : new double[matrix.getNumberOfColumns()];
+        size = 0;
+        entryPoint = -1;
+        maxLevel = -1;
+        int capacity = Math.max(16, m_Instances.numInstances());
+        levels = new int[capacity];
+        bottomLinks = new int[capacity * (2 * numberOfConnections + 1)];
+        upperLinks = new int[capacity][];
+        visited = new int[capacity];
+        visitMark = 0;
+        random = new Random(seed);
+        candidates = new Queue();
+        results = new Queue();
+        selection = new int[2 * numberOfConnections + 1];
+    }
+
+    private void grow() {
+        int capacity = 2 * levels.length;
+        int[] grownLevels = new int[capacity];
+        System.arraycopy(levels, 0, grownLevels, 0, size);
+        levels = grownLevels;
+        int[] grownLinks = new int[capacity * (2 * numberOfConnections + 1)];
+        System.arraycopy(bottomLinks, 0, grownLinks, 0, bottomLinks.length);
+        bottomLinks = grownLinks;
+        int[][] grownUpperLinks = new int[capacity][];
+        System.arraycopy(upperLinks, 0, grownUpperLinks, 0, size);
+        upperLinks = grownUpperLinks;
+        visited = new int[capacity];
+        visitMark = 0;
+    }
+
+    /**
+     * Inserts the row into the graph: the nearest nodes found on every layer of the row are linked with it.
+     *
+     * @param row
+     */
+    private void insert(int row) {
+        if (row == levels.length)
+            grow();
+        int level = (int) (-Math.log(1 - random.nextDouble()) / Math.log(numberOfConnections));
+        levels[row] = level;
+        upperLinks[row] = level == 0 ? null : new int[level * (numberOfConnections + 1)];
+        size = row + 1;
+        if (entryPoint == -1) {
+            entryPoint = row;
+            maxLevel = level;
+            return;
+        }
+
+        queryRow = row;
+        int node = entryPoint;
+        double distance = queryDistance(node, Double.POSITIVE_INFINITY);
+        for (int l = maxLevel; l > level; l--) {
+            node = greedySearch(node, distance, l);
+            distance = queryDistance(node, Double.POSITIVE_INFINITY);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLayer(node, distance, efConstruction, l);
+            // the nearest node found is the entry point of the layer below
+            node = connect(row, l);
+            distance = queryDistance(node, Double.POSITIVE_INFINITY);
+        }
+        if (level > maxLevel) {
+            entryPoint = row;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Links the row with the nodes found by the last searchLayer and the nodes with the row.
+     *
+     * @param row
+     * @param level
+     * @return the nearest node found
+     */
+    private int connect(int row, int level) {
+        int maxConnections = level == 0 ? 2 * numberOfConnections : numberOfConnections;
+        int found = results.size();
+        int[] candidates = new int[found];
+        double[] distances = new double[found];
+        for (int i = found - 1; i >= 0; i--) {
+            distances[i] = results.peekKey();
+            candidates[i] = results.pop();
+        }
+        int count = selectNeighbours(candidates, distances, found, maxConnections, selection);
+
+        int[] links = links(row, level);
+        int offset = offset(row, level);
+        links[offset] = count;
+        System.arraycopy(selection, 0, links, offset + 1, count);
+
+        int[] selected = new int[count];
+        System.arraycopy(selection, 0, selected, 0, count);
+        for (int neighbour : selected) {
+            int[] neighbourLinks = links(neighbour, level);
+            int neighbourOffset = offset(neighbour, level);
+            int numberOfLinks = neighbourLinks[neighbourOffset];
+            if (numberOfLinks < maxConnections) {
+                neighbourLinks[neighbourOffset + 1 + numberOfLinks] = row;
+                neighbourLinks[neighbourOffset] = numberOfLinks + 1;
+                continue;
+            }
+            // too many links, the best ones relative to the neighbour are kept
+            int[] linked = new int[numberOfLinks + 1];
+            double[] linkedDistances = new double[numberOfLinks + 1];
+            System.arraycopy(neighbourLinks, neighbourOffset + 1, linked, 0, numberOfLinks);
+            linked[numberOfLinks] = row;
+            for (int i = 0; i <= numberOfLinks; i++)
+                linkedDistances[i] = rowDistance(neighbour, linked[i]);
+            sort(linked, linkedDistances);
+            int kept = selectNeighbours(linked, linkedDistances, linked.length, maxConnections, selection);
+            neighbourLinks[neighbourOffset] = kept;
+            System.arraycopy(selection, 0, neighbourLinks, neighbourOffset + 1, kept);
+        }
+        return candidates[0];
+    }
+
+    /**
+     * Selects the neighbours with the heuristic of HNSW: a candidate is skipped if it is nearer to an already
+     * selected neighbour than to the base, so the links point in different directions.
+     *
+     * @param candidates the candidates ordered by their distance to the base
+     * @param distances  their distances to the base
+     * @param found      the number of candidates
+     * @param maximum    the maximum number of neighbours
+     * @param selected   the array the selected neighbours are written to
+     * @return the number of selected neighbours
+     */
+    private int selectNeighbours(int[] candidates, double[] distances, int found, int maximum, int[] selected) {
+        int count = 0;
+        for (int i = 0; i < found && count < maximum; i++) {
+            boolean good = true;
+            for (int j = 0; j < count && good; j++)
+                good = rowDistance(candidates[i], selected[j]) >= distances[i];
+            if (good)
+                selected[count++] = candidates[i];
+        }
+        return count;
+    }
+
+    /**
+     * Follows the links of the layer to the node nearest to the query.
+     *
+     * @param node     the entry point
+     * @param distance its distance to the query
+     * @param level
+     * @return the nearest node found
+     */
+    private int greedySearch(int node, double distance, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = links(node, level);
+            int offset = offset(node, level);
+            for (int i = 1; i <= links[offset]; i++) {
+                int neighbour = links[offset + i];
+                double neighbourDistance = queryDistance(neighbour, distance);
+                if (neighbourDistance < distance) {
+                    node = neighbour;
+                    distance = neighbourDistance;
+                    changed = true;
+                }
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Searches the layer with a beam of the given width, the nearest nodes found are left in the results
+     * (the farthest at the top).
+     *
+     * @param entry    the entry point
+     * @param distance its distance to the query
+     * @param ef       the beam width
+     * @param level
+     */
+    private void searchLayer(int entry, double distance, int ef, int level) {
+        if (++visitMark == Integer.MAX_VALUE) {
+            visited = new int[visited.length];
+            visitMark = 1;
+        }
+        candidates.clear();
+        results.clear();
+        visited[entry] = visitMark;
+        // the candidates are a min heap of the distances
+        candidates.push(entry, -distance);
+        results.push(entry, distance);
+        while (candidates.size() > 0) {
+            if (-candidates.peekKey() > results.peekKey())
+                break;
+            int node = candidates.pop();
+            int[] links = links(node, level);
+            int offset = offset(node, level);
+            for (int i = 1; i <= links[offset]; i++) {
+                int neighbour = links[offset + i];
+                if (visited[neighbour] == visitMark)
+                    continue;
+                visited[neighbour] = visitMark;
+                double bound = results.size() < ef ? Double.POSITIVE_INFINITY : results.peekKey();
+                double neighbourDistance = queryDistance(neighbour, bound);
+                if (neighbourDistance < bound) {
+                    candidates.push(neighbour, -neighbourDistance);
+                    results.push(neighbour, neighbourDistance);
+                    if (results.size() > ef)
+                        results.pop();
+                }
+            }
+        }
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? bottomLinks : upperLinks[node];
+    }
+
+    private int offset(int node, int level) {
+        return level == 0 ? node * (2 * numberOfConnections + 1) : (level - 1) * (numberOfConnections + 1);
+    }
+
+    private void setQuery(Instance target) {
+        queryRow = -1;
+        queryInstance = target;
+        if (matrix != null) {
+            matrix.normalize(target, query, 0);
+            queryHasMissing = matrix.hasMissing(query, 0);
+        }
+    }
+
+    /**
+     * @param row
+     * @param cutOffValue
+     * @return the distance between the current query and the row, infinity if it exceeds the cut off value
+     */
+    private double queryDistance(int row, double cutOffValue) {
+        if (queryRow != -1)
+            return matrix != null ? matrix.distance(queryRow, row, cutOffValue) : m_DistanceFunction.distance(m_Instances.instance(queryRow), m_Instances.instance(row), cutOffValue, null);
+        if (matrix != null)
+            return matrix.distance(query, 0, queryHasMissing, row, cutOffValue);
+        return m_DistanceFunction.distance(queryInstance, m_Instances.instance(row), cutOffValue, null);
+    }
+
+    private double rowDistance(int first, int second) {
+        if (matrix != null)
+            return matrix.distance(first, second, Double.POSITIVE_INFINITY);
+        return m_DistanceFunction.distance(m_Instances.instance(first), m_Instances.instance(second), Double.POSITIVE_INFINITY, null);
+    }
+
+    /**
+     * Sorts the nodes by their distances with an insertion sort, there are only a few of them.
+     */
+    private static void sort(int[] nodes, double[] distances) {
+        for (int i = 1; i < nodes.length; i++) {
+            int node = nodes[i];
+            double distance = distances[i];
+            int j = i - 1;
+            for (; j >= 0 && distances[j] > distance; j--) {
+                nodes[j + 1] = nodes[j];
+                distances[j + 1] = distances[j];
+            }
+            nodes[j + 1] = node;
+            distances[j + 1] = distance;
+        }
+    }
+
+    public int getNumberOfConnections() {
+        return numberOfConnections;
+    }
+
+    /**
+     * @param numberOfConnections the number of links of a node on the upper layers, twice as many on the bottom layer.
+     *                            More connections give a higher recall and a larger graph. The graph is built again.
+     */
+    public void setNumberOfConnections(int numberOfConnections) {
+        this.numberOfConnections = Math.max(2, numberOfConnections);
+        graphDistanceFunction = null;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    /**
+     * @param efConstruction the beam width while building the graph. A wider beam gives a better graph and takes longer
+     *                       to build. The graph is built again.
+     */
+    public void setEfConstruction(int efConstruction) {
+        this.efConstruction = Math.max(1, efConstruction);
+        graphDistanceFunction = null;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * @param efSearch the beam width while searching, at least k + 1 nodes are kept. A wider beam gives a higher recall
+     *                 and a higher latency.
+     */
+    public void setEfSearch(int efSearch) {
+        this.efSearch = Math.max(1, efSearch);
+    }
+
+    public int getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed the seed of the random levels of the nodes. The graph is built again.
+     */
+    public void setSeed(int seed) {
+        this.seed = seed;
+        graphDistanceFunction = null;
+    }
+
+    @Override
+    public String getRevision() {
+        return RevisionUtils.extract("$Revision: 1 $");
+    }
+
+    /**
+     * A max heap of nodes and their keys in primitive arrays.
+     */
+    private static class Queue {
+
+        private int[] nodes = new int[64];
+        private double[] keys = new double[64];
+        private int size;
+
+        private void clear() {
+            size = 0;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private double peekKey() {
+            return keys[0];
+        }
+
+        private void push(int node, double key) {
+            if (size == nodes.length) {
+                int[] grownNodes = new int[2 * size];
+                double[] grownKeys = new double[2 * size];
+                System.arraycopy(nodes, 0, grownNodes, 0, size);
+                System.arraycopy(keys, 0, grownKeys, 0, size);
+                nodes = grownNodes;
+                keys = grownKeys;
+            }
+            int i = size++;
+            while (i > 0 && keys[(i - 1) / 2] < key) {
+                nodes[i] = nodes[(i - 1) / 2];
+                keys[i] = keys[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+
+        /**
+         * @return the node with the largest key
+         */
+        private int pop() {
+            int head = nodes[0];
+            size--;
+            int node = nodes[size];
+            double key = keys[size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 2 < size && keys[2 * i + 2] > keys[2 * i + 1] ? 2 * i + 2 : 2 * i + 1;
+                if (keys[child] <= key)
+                    break;
+                nodes[i] = nodes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+            return head;
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import weka.core.DistanceFunction;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+/**
+ * A KD-tree nearest neighbour search which takes added instances without building the whole tree again,
+ * e.g. for IBk with -A "ch.joelniklaus.indoloc.helpers.IncrementalKDTree" and IBk.updateClassifier.
+ * <p>
+ * The training data is kept in a logarithmic number of balanced trees (the logarithmic method of Bentley and Saxe):
+ * the tree of level l holds up to bufferSize * 2^l instances. Added instances are collected in a buffer which is
+ * searched linearly. When the buffer is full, it is merged with the trees of the lowest levels into a new tree,
+ * like a carry of a binary counter. So an instance is part of at most log(n) tree builds and every tree stays balanced,
+ * the whole data is only built into one tree again after its size doubled.
+ * The new tree is not built at once: every following insert builds some of its nodes, so it is finished before the
+ * buffer is full again. Until then the old trees and the merged buffer are still searched, so an insert never
+ * takes the time of building a large tree.
+ * <p>
+ * The trees split the instances at the median of the attribute with the widest normalized range and store the
+ * bounding box of every node in the values of the instances, so the boxes stay valid when the ranges of the
+ * distance function change. Instances with missing numeric values are searched linearly.
+ * The neighbours and the distances are the same as the ones of LinearNNSearch, including the ties with the
+ * k-th nearest neighbour, only the order of instances with the same distance can differ.
+ * Like the KDTree of weka, only the euclidean distance is supported.
+ */
+public class IncrementalKDTree extends NearestNeighbourSearch {
+
+    private static final long serialVersionUID = 1L;
+
+    private int maxInstancesInLeaf = 40;
+    private int bufferSize = 64;
+
+    private double[] m_Distances;
+
+    // the trees, built again when needed
+    private transient NormalizedMatrix matrix;
+    private transient double[] values;
+    private transient int size;
+    private transient Tree[] trees;
+    private transient int[] buffer;
+    private transient int bufferLength;
+    // the tree which is being built, its rows are still searched in the trees below its level and the merged buffer
+    private transient Tree pending;
+    private transient int pendingLevel;
+    private transient long pendingBudget;
+    private transient int[] mergedBuffer;
+    private transient int mergedBufferLength;
+    private transient int[] unindexed;
+    private transient int unindexedLength;
+
+    // the current query
+    private transient Instance target;
+    private transient double[] query, rawQuery;
+    private transient boolean[] bounding;
+    private transient boolean queryHasMissing;
+    private transient NeighbourHeap heap;
+
+    public IncrementalKDTree() {
+        super();
+    }
+
+    public IncrementalKDTree(Instances instances) throws Exception {
+        this();
+        setInstances(instances);
+    }
+
+    @Override
+    public String globalInfo() {
+        return "KD-tree nearest neighbour search which inserts added instances into a logarithmic number of balanced trees "
+                + "instead of building the whole tree again. Finds the same neighbours as LinearNNSearch.";
+    }
+
+    @Override
+    public Enumeration<Option> listOptions() {
+        Vector<Option> result = new Vector<>();
+        result.add(new Option("\tThe maximum number of instances in a leaf (default 40).", "L", 1, "-L <num>"));
+        result.add(new Option("\tThe number of added instances which are searched linearly before they are merged into the trees (default 64).", "B", 1, "-B <num>"));
+        result.addAll(Collections.list(super.listOptions()));
+        return result.elements();
+    }
+
+    @Override
+    public void setOptions(String[] options) throws Exception {
+        String value = Utils.getOption('L', options);
+        setMaxInstancesInLeaf(value.isEmpty() ? 40 : Integer.parseInt(value));
+        value = Utils.getOption('B', options);
+        setBufferSize(value.isEmpty() ? 64 : Integer.parseInt(value));
+        super.setOptions(options);
+    }
+
+    @Override
+    public String[] getOptions() {
+        Vector<String> result = new Vector<>();
+        Collections.addAll(result, "-L", "" + maxInstancesInLeaf, "-B", "" + bufferSize);
+        Collections.addAll(result, super.getOptions());
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public void setDistanceFunction(DistanceFunction distanceFunction) throws Exception {
+        if (!NormalizedMatrix.isEuclidean(distanceFunction))
+            throw new Exception("IncrementalKDTree only works with the euclidean distance.");
+        super.setDistanceFunction(distanceFunction);
+        matrix = null;
+    }
+
+    /**
+     * Builds one tree of the training data.
+     *
+     * @param instances
+     * @throws Exception
+     */
+    @Override
+    public void setInstances(Instances instances) throws Exception {
+        super.setInstances(instances);
+        m_DistanceFunction.setInstances(instances);
+        matrix = null;
+        prepare();
+    }
+
+    /**
+     * Inserts the instance into the trees. Like for the KDTree of weka, the instance has to be added to the
+     * training data (see getInstances) first.
+     *
+     * @param instance
+     * @throws Exception
+     */
+    @Override
+    public void update(Instance instance) throws Exception {
+        if (m_Instances == null)
+            throw new Exception("No instances supplied yet. Cannot update without supplying a set of instances first.");
+        m_DistanceFunction.update(instance);
+        prepare();
+    }
+
+    /**
+     * Updates the ranges of the distance function, like LinearNNSearch.
+     *
+     * @param instance
+     */
+    @Override
+    public void addInstanceInfo(Instance instance) {
+        if (m_Instances != null)
+            m_DistanceFunction.update(instance);
+    }
+
+    @Override
+    public Instance nearestNeighbour(Instance target) throws Exception {
+        return kNearestNeighbours(target, 1).instance(0);
+    }
+
+    @Override
+    public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
+        prepare();
+        setQuery(target);
+        heap.reset(kNN);
+        for (int level = trees.length - 1; level >= 0; level--)
+            if (trees[level] != null)
+                search(trees[level], 0, kNN);
+        scan(buffer, 0, bufferLength, kNN);
+        scan(mergedBuffer, 0, mergedBufferLength, kNN);
+        scan(unindexed, 0, unindexedLength, kNN);
+
+        int[] indices = new int[heap.size() + heap.noOfKthNearest()];
+        m_Distances = new double[indices.length];
+        heap.drain(indices, m_Distances);
+        m_DistanceFunction.postProcessDistances(m_Distances);
+        Instances neighbours = new Instances(m_Instances, indices.length);
+        for (int index : indices)
+            neighbours.add(m_Instances.instance(index));
+        return neighbours;
+    }
+
+    @Override
+    public double[] getDistances() throws Exception {
+        if (m_Distances == null)
+            throw new Exception("No distances available. Call either nearestNeighbour or kNearestNeighbours first.");
+        return m_Distances;
+    }
+
+    /**
+     * Builds the trees again if the training data changed and inserts the instances which were added to it.
+     *
+     * @throws Exception
+     */
+    private void prepare() throws Exception {
+        if (m_Instances == null)
+            throw new Exception("No instances supplied yet. Have to call setInstances first.");
+        if (matrix == null || !matrix.isFor(m_Instances, (NormalizableDistance) m_DistanceFunction) || size > m_Instances.numInstances())
+            clear();
+        matrix.update();
+
+        int rows = m_Instances.numInstances();
+        if (size == 0 && rows > bufferSize) {
+            // the training data is built into one tree at once
+            int[] indexed = new int[rows];
+            int length = 0;
+            for (int row = 0; row < rows; row++)
+                if (addValues(row))
+                    indexed[length++] = row;
+            int[] treeRows = new int[length];
+            System.arraycopy(indexed, 0, treeRows, 0, length);
+            int level = 0;
+            while ((long) bufferSize << level < length)
+                level++;
+            if (length > 0) {
+                trees[level] = new Tree(treeRows);
+                trees[level].build(Long.MAX_VALUE);
+            }
+            size = rows;
+        }
+        for (int row = size; row < rows; row++)
+            insert(row);
+    }
+
+    private void clear() {
+        matrix = new NormalizedMatrix(m_Instances, (NormalizableDistance) m_DistanceFunction);
+        int columns = matrix.getNumberOfColumns();
+        values = new double[Math.max(1, m_Instances.numInstances()) * columns];
+        size = 0;
+        trees = new Tree[32];
+        buffer = new int[bufferSize];
+        bufferLength = 0;
+        pending = null;
+        mergedBuffer = new int[bufferSize];
+        mergedBufferLength = 0;
+        unindexed = new int[16];
+        unindexedLength = 0;
+        query = new double[columns];
+        rawQuery = new double[columns];
+        bounding = new boolean[columns];
+        heap = new NeighbourHeap();
+    }
+
+    /**
+     * Copies the values of the row.
+     *
+     * @param row
+     * @return false if the row has missing numeric values and is searched linearly
+     */
+    private boolean addValues(int row) {
+        int columns = matrix.getNumberOfColumns();
+        if (values.length < (row + 1) * columns) {
+            double[] grown = new double[Math.max((row + 1) * columns, 2 * values.length)];
+            System.arraycopy(values, 0, grown, 0, row * columns);
+            values = grown;
+        }
+        Instance instance = m_Instances.instance(row);
+        boolean missing = false;
+        for (int c = 0; c < columns; c++) {
+            values[row * columns + c] = instance.value(matrix.getAttribute(c));
+            missing |= !matrix.isNominal(c) && Double.isNaN(values[row * columns + c]);
+        }
+        if (!missing)
+            return true;
+        if (unindexedLength == unindexed.length) {
+            int[] grown = new int[2 * unindexedLength];
+            System.arraycopy(unindexed, 0, grown, 0, unindexedLength);
+            unindexed = grown;
+        }
+        unindexed[unindexedLength++] = row;
+        return false;
+    }
+
+    /**
+     * Adds the row to the buffer. A full buffer is merged with the trees of the lowest levels into a new tree,
+     * which is built a bit on every insert until the buffer is full again.
+     *
+     * @param row
+     */
+    private void insert(int row) {
+        size = row + 1;
+        if (!addValues(row))
+            return;
+        buffer[bufferLength++] = row;
+        if (bufferLength == bufferSize) {
+            if (pending != null)
+                // only if the work per insert has been underestimated
+                finishPending(Long.MAX_VALUE);
+            merge();
+        }
+        if (pending != null)
+            finishPending(pendingBudget);
+    }
+
+    /**
+     * Starts building the tree of the full buffer and the trees of the lowest levels. The buffer is searched
+     * linearly and the trees are kept until the new tree is finished.
+     */
+    private void merge() {
+        int[] carry = new int[bufferLength];
+        System.arraycopy(buffer, 0, carry, 0, bufferLength);
+        System.arraycopy(buffer, 0, mergedBuffer, 0, bufferLength);
+        mergedBufferLength = bufferLength;
+        bufferLength = 0;
+        int level = 0;
+        while (trees[level] != null) {
+            int[] merged = new int[trees[level].rows.length + carry.length];
+            System.arraycopy(trees[level].rows, 0, merged, 0, trees[level].rows.length);
+            System.arraycopy(carry, 0, merged, trees[level].rows.length, carry.length);
+            carry = merged;
+            level++;
+        }
+        pending = new Tree(carry);
+        pendingLevel = level;
+        // every level of the tree visits all its rows once, spread over the inserts until the buffer is full again
+        int depth = 1;
+        for (long rows = carry.length; rows > maxInstancesInLeaf; rows = (rows + 1) / 2)
+            depth++;
+        pendingBudget = (long) carry.length * depth / bufferSize + 1;
+    }
+
+    /**
+     * Builds the pending tree further and replaces the trees it has been merged from as soon as it is finished.
+     *
+     * @param budget the number of rows to visit
+     */
+    private void finishPending(long budget) {
+        if (!pending.build(budget))
+            return;
+        for (int level = 0; level < pendingLevel; level++)
+            trees[level] = null;
+        trees[pendingLevel] = pending;
+        pending = null;
+        mergedBufferLength = 0;
+    }
+
+    private void setQuery(Instance target) {
+        this.target = target;
+        matrix.normalize(target, query, 0);
+        queryHasMissing = matrix.hasMissing(query, 0);
+        for (int c = 0; c < rawQuery.length; c++) {
+            rawQuery[c] = target.value(matrix.getAttribute(c));
+            // the nominal columns and the missing values do not bound the distance
+            bounding[c] = !matrix.isNominal(c) && !Double.isNaN(rawQuery[c]);
+        }
+    }
+
+    /**
+     * Searches the subtree, the child on the side of the query first. A subtree is skipped if its box is farther
+     * away than the current k-th nearest neighbour.
+     */
+    private void search(Tree tree, int node, int kNN) {
+        if (heap.size() >= kNN && lowerBound(tree, node, heap.peekDistance()) > heap.peekDistance())
+            return;
+        int right = tree.rights[node];
+        if (right == -1) {
+            scan(tree.rows, tree.starts[node], tree.ends[node], kNN);
+            return;
+        }
+        if (rawQuery[tree.splitColumns[node]] < tree.splitValues[node]) {
+            search(tree, node + 1, kNN);
+            search(tree, right, kNN);
+        } else {
+            search(tree, right, kNN);
+            search(tree, node + 1, kNN);
+        }
+    }
+
+    /**
+     * The corners of the box are normalized like the rows and the differences are summed in the same order as
+     * in NormalizedMatrix.distance, so the bound never exceeds the distance of a row in the box, not even by
+     * a rounding error, and the instances tied with the k-th nearest neighbour are never pruned.
+     *
+     * @return the squared distance between the query and the box of the node, infinity as soon as it exceeds the cut off value
+     */
+    private double lowerBound(Tree tree, int node, double cutOffValue) {
+        int columns = bounding.length;
+        int base = node * columns;
+        double bound = 0;
+        for (int c = 0; c < columns; c++) {
+            double difference;
+            if (!bounding[c])
+                continue;
+            if (rawQuery[c] < tree.lows[base + c])
+                difference = matrix.normalize(c, tree.lows[base + c]) - query[c];
+            else if (rawQuery[c] > tree.highs[base + c])
+                difference = query[c] - matrix.normalize(c, tree.highs[base + c]);
+            else
+                continue;
+            bound += difference * difference;
+            if (bound > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return bound;
+    }
+
+    /**
+     * Compares the rows to the query, like LinearNNSearch.kNearestNeighbours.
+     */
+    private void scan(int[] rows, int start, int end, int kNN) {
+        for (int i = start; i < end; i++) {
+            int row = rows[i];
+            // for hold-one-out cross-validation
+            if (target == m_Instances.instance(row))
+                continue;
+            if (heap.size() < kNN) {
+                heap.put(row, matrix.distance(query, 0, queryHasMissing, row, Double.POSITIVE_INFINITY));
+            } else {
+                double kthDistance = heap.peekDistance();
+                double distance = matrix.distance(query, 0, queryHasMissing, row, kthDistance);
+                if (distance < kthDistance)
+                    heap.putBySubstitute(row, distance);
+                else if (distance == kthDistance)
+                    heap.putKthNearest(row, distance);
+            }
+        }
+    }
+
+    public int getMaxInstancesInLeaf() {
+        return maxInstancesInLeaf;
+    }
+
+    /**
+     * @param maxInstancesInLeaf the maximum number of instances in a leaf. The trees are built again.
+     */
+    public void setMaxInstancesInLeaf(int maxInstancesInLeaf) {
+        this.maxInstancesInLeaf = Math.max(1, maxInstancesInLeaf);
+        matrix = null;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the number of added instances which are searched linearly before they are merged into the trees.
+     *                   The trees are built again.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(1, bufferSize);
+        matrix = null;
+    }
+
+    @Override
+    public String getRevision() {
+        return RevisionUtils.extract("$Revision: 1 $");
+    }
+
+    /**
+     * A balanced KD-tree over some rows of the training data in flat arrays.
+     * The nodes are stored depth first, so the left child of a node is the next node.
+     * The tree is built in steps (see build) and can only be searched when it is finished.
+     */
+    private class Tree {
+
+        private final int[] rows;
+        private final int columns;
+        private int numberOfNodes;
+        private int[] starts, ends, rights, splitColumns;
+        private double[] splitValues;
+        // the bounding boxes of the nodes, one row per node
+        private double[] lows, highs;
+        // the ranges of rows which still have to be built: start, end and the node whose right child it is (-1 if none)
+        private int[] stack = new int[3 * 16];
+        private int stackLength;
+
+        private Tree(int[] rows) {
+            this.rows = rows;
+            columns = matrix.getNumberOfColumns();
+            int capacity = 4 * (rows.length / maxInstancesInLeaf + 1);
+            starts = new int[capacity];
+            ends = new int[capacity];
+            rights = new int[capacity];
+            splitColumns = new int[capacity];
+            splitValues = new double[capacity];
+            lows = new double[capacity * columns];
+            highs = new double[capacity * columns];
+            push(0, rows.length, -1);
+        }
+
+        /**
+         * Builds nodes depth first until the given number of rows have been visited or the tree is finished.
+         *
+         * @param budget
+         * @return true if the tree is finished
+         */
+        private boolean build(long budget) {
+            while (stackLength > 0 && budget > 0) {
+                stackLength -= 3;
+                int start = stack[stackLength], end = stack[stackLength + 1], parent = stack[stackLength + 2];
+                int node = buildNode(start, end);
+                if (parent != -1)
+                    rights[parent] = node;
+                budget -= end - start;
+            }
+            if (stackLength == 0)
+                stack = null;
+            return stackLength == 0;
+        }
+
+        private void push(int start, int end, int parent) {
+            if (stackLength == stack.length) {
+                int[] grown = new int[2 * stack.length];
+                System.arraycopy(stack, 0, grown, 0, stackLength);
+                stack = grown;
+            }
+            stack[stackLength++] = start;
+            stack[stackLength++] = end;
+            stack[stackLength++] = parent;
+        }
+
+        /**
+         * Builds the node of the rows between start and end. Its children are built later, the left one first.
+         *
+         * @return the index of the node
+         */
+        private int buildNode(int start, int end) {
+            if (numberOfNodes == starts.length)
+                grow();
+            int node = numberOfNodes++;
+            starts[node] = start;
+            ends[node] = end;
+            rights[node] = -1;
+
+            int base = node * columns;
+            int splitColumn = -1;
+            double widest = 0;
+            for (int c = 0; c < columns; c++) {
+                // the box is unbounded in the nominal columns
+                double low = Double.NEGATIVE_INFINITY, high = Double.POSITIVE_INFINITY;
+                if (!matrix.isNominal(c)) {
+                    low = Double.POSITIVE_INFINITY;
+                    high = Double.NEGATIVE_INFINITY;
+                    for (int i = start; i < end; i++) {
+                        double value = values[rows[i] * columns + c];
+                        if (value < low)
+                            low = value;
+                        if (value > high)
+                            high = value;
+                    }
+                    double width = (high - low) * matrix.getScale(c);
+                    if (width > widest) {
+                        widest = width;
+                        splitColumn = c;
+                    }
+                }
+                lows[base + c] = low;
+                highs[base + c] = high;
+            }
+            if (end - start <= maxInstancesInLeaf || splitColumn == -1)
+                return node;
+
+            int middle = (start + end) >>> 1;
+            select(start, end - 1, middle, splitColumn);
+            splitColumns[node] = splitColumn;
+            splitValues[node] = values[rows[middle] * columns + splitColumn];
+            push(middle, end, node);
+            push(start, middle, -1);
+            return node;
+        }
+
+        /**
+         * Partitions the rows between left and right (inclusive) so the row at k has the value it would have if they were sorted by the column.
+         */
+        private void select(int left, int right, int k, int column) {
+            while (right > left) {
+                double pivot = values[rows[(left + right) >>> 1] * columns + column];
+                int i = left, j = right;
+                while (i <= j) {
+                    while (values[rows[i] * columns + column] < pivot)
+                        i++;
+                    while (values[rows[j] * columns + column] > pivot)
+                        j--;
+                    if (i <= j) {
+                        int row = rows[i];
+                        rows[i++] = rows[j];
+                        rows[j--] = row;
+                    }
+                }
+                if (k <= j)
+                    right = j;
+                else if (k >= i)
+                    left = i;
+                else
+                    return;
+            }
+        }
+
+        private void grow() {
+            int capacity = 2 * starts.length;
+            starts = copyOf(starts, capacity);
+            ends = copyOf(ends, capacity);
+            rights = copyOf(rights, capacity);
+            splitColumns = copyOf(splitColumns, capacity);
+            double[] grownSplitValues = new double[capacity];
+            System.arraycopy(splitValues, 0, grownSplitValues, 0, numberOfNodes);
+            splitValues = grownSplitValues;
+            double[] grownLows = new double[capacity * columns], grownHighs = new double[capacity * columns];
+            System.arraycopy(lows, 0, grownLows, 0, lows.length);
+            System.arraycopy(highs, 0, grownHighs, 0, highs.length);
+            lows = grownLows;
+            highs = grownHighs;
+        }
+
+        private int[] copyOf(int[] array, int capacity) {
+            int[] grown = new int[capacity];
+            System.arraycopy(array, 0, grown, 0, numberOfNodes);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ch.joelniklaus.indoloc.exceptions.InvalidRoomException;
+import ch.joelniklaus.indoloc.models.DataPoint;
+import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
+import ch.joelniklaus.indoloc.models.SensorData;
+import weka.core.Attribute;
+import weka.core.Instance;
+
+/**
+ * Runs the live prediction off the ui thread.
+ * <p>
+ * The ui thread is the only writer and submits data points collected in the sensor callback.
+ * Only the latest submitted data point is kept: if the worker is still busy when new data points arrive,
+ * the older ones are dropped (latest value wins). The worker builds the instance, runs all the classifiers
+ * using the ensemble predictor, smooths the class distributions of every classifier over time (see PredictionSmoother)
+ * and publishes the predictions back on the ui thread.
+ * <p>
+ * If the classifiers use the attributes aggregating the last scans, the writer adds every collected data point
+ * to a feature window (see add), not only the ones submitted, so the aggregates cover the same data points
+ * as the ones of the training set. The aggregates are handed over together with the submitted data point.
+ * <p>
+ * The data points are handed over with a triple buffer: the writer copies into its back slot and swaps it
+ * with the middle one, the worker swaps its front slot with the middle one. So submitting only copies values
+ * into preallocated data points and the caller can reuse its data point right away.
+ */
+public class InferencePipeline {
+
+    /**
+     * Receives the results of the pipeline. Is always called on the ui thread.
+     */
+    public interface Listener {
+        /**
+         * @param predictions one entry per classifier (the smoothed room and its probability),
+         *                    null if the classifier did not deliver a prediction in time
+         */
+        void onPredictions(ArrayList<String> predictions);
+
+        void onError(String message);
+    }
+
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "InferencePipeline");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+
+    private Slot back = new Slot(); // only used by the writer
+    private final AtomicReference<Slot> middle = new AtomicReference<>(new Slot());
+    private Slot front = new Slot(); // only used by the worker
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicLong coalesced = new AtomicLong();
+    private FeatureWindow window; // only used by the writer
+    private String windowRoom;
+
+    private volatile Models models;
+    private volatile double smoothingHalfLifeMilliS = PredictionSmoother.DEFAULT_HALF_LIFE_MILLI_S;
+
+    private final LatencyCounter queueLatency = new LatencyCounter("queue");
+    private final LatencyCounter instanceLatency = new LatencyCounter("instance");
+    private final LatencyCounter classifyLatency = new LatencyCounter("classify");
+    private final LatencyCounter totalLatency = new LatencyCounter("total");
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public InferencePipeline(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the builder used to build the instances and the predictor holding the trained classifiers.
+     * The builder is only used by the worker thread from now on. Every classifier starts with a new smoother
+     * and the aggregates start with a new feature window. Must be called from the thread submitting the data points.
+     *
+     * @param instanceBuilder
+     * @param ensemblePredictor
+     */
+    public void setModels(InstanceBuilder instanceBuilder, EnsemblePredictor ensemblePredictor) {
+        windowRoom = null;
+        if (instanceBuilder == null || ensemblePredictor == null) {
+            window = null;
+            models = null;
+            return;
+        }
+        window = instanceBuilder.newFeatureWindow();
+        int numberOfClasses = instanceBuilder.getHeader().numClasses();
+        PredictionSmoother[] smoothers = new PredictionSmoother[ensemblePredictor.getNumberOfModels()];
+        for (int i = 0; i < smoothers.length; i++)
+            smoothers[i] = new PredictionSmoother(numberOfClasses, smoothingHalfLifeMilliS);
+        models = new Models(instanceBuilder, ensemblePredictor, smoothers);
+    }
+
+    /**
+     * Sets the half life of the smoothing of the predictions. Only applies to the models set afterwards.
+     *
+     * @param smoothingHalfLifeMilliS 0 disables the smoothing
+     */
+    public void setSmoothingHalfLifeMilliS(double smoothingHalfLifeMilliS) {
+        this.smoothingHalfLifeMilliS = smoothingHalfLifeMilliS;
+    }
+
+    public double getSmoothingHalfLifeMilliS() {
+        return smoothingHalfLifeMilliS;
+    }
+
+    /**
+     * Adds a collected data point to the aggregates of the data points submitted from now on. Should be called
+     * for every data point which would be saved to the training set, whether it is submitted or not.
+     * Must be called from the thread submitting the data points.
+     *
+     * @param dataPoint
+     */
+    public void add(DataPoint dataPoint) {
+        if (window == null)
+            return;
+        // the scans of different rooms must not be mixed, as in the training set
+        if (!dataPoint.getRoom().equals(windowRoom))
+            window.reset();
+        windowRoom = dataPoint.getRoom();
+        window.add(dataPoint);
+    }
+
+    /**
+     * Submits a data point for prediction. Never blocks. Must always be called from the same thread.
+     * Replaces a data point which has been submitted before and is not yet processed.
+     * The values are copied, so the data point can be changed afterwards.
+     *
+     * @param dataPoint
+     */
+    public void submit(DataPoint dataPoint) {
+        // the aggregates always contain at least the data point itself
+        if (window != null && window.getCount() == 0)
+            add(dataPoint);
+        back.set(dataPoint, window, System.nanoTime());
+        // publishes the back slot and takes over the one the worker has not taken yet
+        back = middle.getAndSet(back);
+        if (back.fresh) {
+            back.fresh = false;
+            coalesced.incrementAndGet();
+        }
+        if (scheduled.compareAndSet(false, true))
+            executor.execute(drain);
+    }
+
+    /**
+     * Processes the pending data points until there is none left. Runs on the worker thread.
+     */
+    private void drain() {
+        while (true) {
+            front.fresh = false;
+            front = middle.getAndSet(front);
+            if (!front.fresh) {
+                scheduled.set(false);
+                // a data point could have been submitted after the check above
+                if (!middle.get().fresh || !scheduled.compareAndSet(false, true))
+                    return;
+                continue;
+            }
+            process(front);
+        }
+    }
+
+    /**
+     * Builds the instance for the data point, classifies it with every classifier, smooths the results and publishes them.
+     *
+     * @param slot
+     */
+    private void process(Slot slot) {
+        Models models = this.models;
+        if (models == null)
+            return;
+
+        long start = System.nanoTime();
+        queueLatency.record(start - slot.submitTime);
+
+        Instance instance;
+        try {
+            // fill the reusable instance with the data point (the one at the moment)
+            instance = models.instanceBuilder.build(slot.dataPoint, slot.aggregates);
+        } catch (InvalidRoomException e) {
+            e.printStackTrace();
+            publishError("Could not create single instance. Probably you entered an invalid room!");
+            return;
+        }
+        long built = System.nanoTime();
+        instanceLatency.record(built - start);
+
+        ArrayList<double[]> distributions;
+        try {
+            distributions = models.ensemblePredictor.distributionsForInstance(instance);
+        } catch (InterruptedException e) {
+            // the pipeline is shutting down
+            return;
+        }
+
+        // the smoothing uses the time the data point has been collected, not the time it has been classified
+        Attribute classAttribute = instance.classAttribute();
+        final ArrayList<String> predictions = new ArrayList<>(distributions.size());
+        for (int i = 0; i < distributions.size(); i++) {
+            double[] distribution = distributions.get(i);
+            if (distribution == null) {
+                predictions.add(null);
+                continue;
+            }
+            PredictionSmoother smoother = models.smoothers[i];
+            int index = smoother.add(distribution, slot.submitTime);
+            predictions.add(classAttribute.value(index) + " (" + Math.round(100 * smoother.getConfidence()) + "%)");
+        }
+        long classified = System.nanoTime();
+        classifyLatency.record(classified - built);
+        totalLatency.record(classified - slot.submitTime);
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPredictions(predictions);
+            }
+        });
+    }
+
+    private void publishError(final String message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(message);
+            }
+        });
+    }
+
+    /**
+     * Stops the worker thread. The pipeline cannot be used anymore afterwards.
+     */
+    public void shutDown() {
+        middle.get().fresh = false;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets the number of data points which have been replaced by a newer one before they could be processed.
+     *
+     * @return
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public LatencyCounter getQueueLatency() {
+        return queueLatency;
+    }
+
+    public LatencyCounter getInstanceLatency() {
+        return instanceLatency;
+    }
+
+    public LatencyCounter getClassifyLatency() {
+        return classifyLatency;
+    }
+
+    public LatencyCounter getTotalLatency() {
+        return totalLatency;
+    }
+
+    /**
+     * The models used for one live test, swapped together so the worker never sees a mix of old and new ones.
+     * The smoothers are only used by the worker.
+     */
+    private static class Models {
+        private final InstanceBuilder instanceBuilder;
+        private final EnsemblePredictor ensemblePredictor;
+        private final PredictionSmoother[] smoothers;
+
+        private Models(InstanceBuilder instanceBuilder, EnsemblePredictor ensemblePredictor, PredictionSmoother[] smoothers) {
+            this.instanceBuilder = instanceBuilder;
+            this.ensemblePredictor = ensemblePredictor;
+            this.smoothers = smoothers;
+        }
+    }
+
+    /**
+     * A preallocated copy of a data point together with the aggregates and the time it has been submitted.
+     * Fresh as long as the data point has not been taken by the worker.
+     */
+    private static class Slot {
+        private final DataPoint dataPoint = new DataPoint("", new SensorData(), new RSSData(), new LocationData(0, 0));
+        private double[] aggregates; // null if there are no aggregates
+        private long submitTime;
+        private volatile boolean fresh = false;
+
+        private void set(DataPoint dataPoint, FeatureWindow window, long submitTime) {
+            this.dataPoint.copyFrom(dataPoint);
+            if (window == null) {
+                aggregates = null;
+            } else {
+                int numberOfAggregates = WekaHelper.getNumberOfAggregateValues(window);
+                if (aggregates == null || aggregates.length != numberOfAggregates)
+                    aggregates = new double[numberOfAggregates];
+                WekaHelper.fillAggregateValues(window, aggregates, 0);
+            }
+            this.submitTime = submitTime;
+            fresh = true;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import ch.joelniklaus.indoloc.exceptions.InvalidRoomException;
+import ch.joelniklaus.indoloc.models.DataPoint;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Converts data points to instances for the live prediction without copying the training set every time.
+ * <p>
+ * Keeps one header without any rows and one value buffer. Every call to build overwrites the buffer
+ * and returns the same instance, so building an instance does not allocate anything and its cost
+ * does not depend on the size of the training set.
+ * If the header has too many access points for dense rows (see WekaHelper.isSparse), a new sparse instance
+ * containing only the access points seen is created from the buffer instead.
+ * If the header has the attributes aggregating the last scans (see WekaHelper.hasAggregates), the aggregates are either
+ * computed by the caller (see newFeatureWindow), so they can cover every data point collected like the ones of the training set,
+ * or every data point built is added to a feature window of the builder first, so the aggregates cover the last data points built.
+ * The returned instance is only valid until the next call to build. Not thread safe.
+ */
+public class InstanceBuilder {
+
+    private final Instances header;
+    private final double[] values;
+    private final Instance instance;
+    private final boolean sparse;
+    private final FeatureWindow window;
+
+    /**
+     * @param instances instances with the header to be used, e.g. the training set. The rows are not copied.
+     */
+    public InstanceBuilder(Instances instances) {
+        this(instances, FeatureWindow.DEFAULT_SIZE);
+    }
+
+    /**
+     * @param instances  instances with the header to be used, e.g. the training set. The rows are not copied.
+     * @param windowSize the number of scans aggregated if the header has aggregates, should be the same as for the training set (0 for the default)
+     */
+    public InstanceBuilder(Instances instances, int windowSize) {
+        header = new Instances(instances, 0);
+        header.setClassIndex(0);
+        values = new double[header.numAttributes()];
+        sparse = WekaHelper.isSparse(header);
+        window = WekaHelper.hasAggregates(header) ? new FeatureWindow(windowSize > 0 ? windowSize : FeatureWindow.DEFAULT_SIZE) : null;
+        // the instance keeps a reference to the buffer, so filling the buffer changes the instance
+        instance = new DenseInstance(1.0, values);
+        instance.setDataset(header);
+    }
+
+    /**
+     * Fills the reusable instance with the values of the given data point.
+     *
+     * @param dataPoint
+     * @return the reusable instance (a new one if the header is sparse), valid until the next call
+     * @throws InvalidRoomException
+     */
+    public Instance build(DataPoint dataPoint) throws InvalidRoomException {
+        if (window != null)
+            window.add(dataPoint);
+        WekaHelper.fillInstanceValues(header, dataPoint, window, values);
+        return getInstance();
+    }
+
+    /**
+     * Fills the reusable instance with the values of the given data point and the given aggregates.
+     * Unlike build without aggregates, the data point is not added to the feature window of the builder.
+     *
+     * @param dataPoint
+     * @param aggregates the aggregates of a window created by newFeatureWindow (see WekaHelper.fillAggregateValues),
+     *                   null to aggregate the data points built
+     * @return the reusable instance (a new one if the header is sparse), valid until the next call
+     * @throws InvalidRoomException
+     */
+    public Instance build(DataPoint dataPoint, double[] aggregates) throws InvalidRoomException {
+        if (window == null || aggregates == null)
+            return build(dataPoint);
+        WekaHelper.fillInstanceValues(header, dataPoint, values);
+        System.arraycopy(aggregates, 0, values, WekaHelper.FIRST_RSS_INDEX + dataPoint.getRssData().size(), aggregates.length);
+        return getInstance();
+    }
+
+    private Instance getInstance() {
+        if (sparse) {
+            Instance sparseInstance = WekaHelper.createInstance(header, values);
+            sparseInstance.setDataset(header);
+            return sparseInstance;
+        }
+        return instance;
+    }
+
+    /**
+     * Checks if the room of the data point is one of the rooms of the header. Unlike build, the data point is not
+     * added to the feature window.
+     *
+     * @param dataPoint
+     * @throws InvalidRoomException
+     */
+    public void checkRoom(DataPoint dataPoint) throws InvalidRoomException {
+        if (header.classAttribute().indexOfValue(dataPoint.getRoom()) == -1)
+            throw new InvalidRoomException("Invalid Room name");
+    }
+
+    /**
+     * Creates a feature window of the same size as the one of the builder, so the aggregates can be computed separately.
+     *
+     * @return null if the header has no aggregates
+     */
+    public FeatureWindow newFeatureWindow() {
+        return window == null ? null : new FeatureWindow(window.getSize());
+    }
+
+    /**
+     * Gets the header without any rows.
+     *
+     * @return
+     */
+    public Instances getHeader() {
+        return header;
+    }
+}
@@ -0,0 +1,68 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe counter which collects the latencies of one stage of a processing pipeline.
+ * Can be written by a worker thread while the ui thread reads it.
+ */
+public class LatencyCounter {
+
+    private final String name;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanoS = new AtomicLong();
+    private final AtomicLong maxNanoS = new AtomicLong();
+
+    public LatencyCounter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records one measurement of the stage.
+     *
+     * @param nanoS
+     */
+    public void record(long nanoS) {
+        count.incrementAndGet();
+        totalNanoS.addAndGet(nanoS);
+        long max = maxNanoS.get();
+        while (nanoS > max && !maxNanoS.compareAndSet(max, nanoS))
+            max = maxNanoS.get();
+    }
+
+    public void reset() {
+        count.set(0);
+        totalNanoS.set(0);
+        maxNanoS.set(0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMicroS() {
+        long n = count.get();
+        if (n == 0)
+            return 0.0;
+        return totalNanoS.get() / 1000.0 / n;
+    }
+
+    public double getMaxMicroS() {
+        return maxNanoS.get() / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyCounter{" +
+                "name='" + name + '\'' +
+                ", count=" + getCount() +
+                ", meanMicroS=" + getMeanMicroS() +
+                ", maxMicroS=" + getMaxMicroS() +
+                '}';
+    }
+}
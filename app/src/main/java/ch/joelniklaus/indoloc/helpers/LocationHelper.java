@@ -82,15 +82,29 @@ public class LocationHelper extends AbstractHelper {
     }
 
     public LocationData readLocationData() {
+        LocationData locationData = new LocationData(0, 0);
+        if (!readLocationData(locationData))
+            return null;
+        return locationData;
+    }
+
+    /**
+     * Reads the last known location into the given location data, so that no new objects have to be created for every reading.
+     *
+     * @param target
+     * @return false if the permission to access the gps data is missing, the target is not changed in this case
+     */
+    public boolean readLocationData(LocationData target) {
         if (!CollectDataActivity.checkLocationPermission(context)) {
             alert("Please grant permission to access gps data");
             System.out.println("Please grant permission to access gps data");
-            return null;
+            return false;
         }
         if (!locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER))
             showSettingsAlert();
         Location location = locationManager.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-        return new LocationData(location.getLatitude(), location.getLongitude());
+        target.set(location.getLatitude(), location.getLongitude());
+        return true;
     }
 
 
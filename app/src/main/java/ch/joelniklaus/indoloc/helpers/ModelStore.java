@@ -0,0 +1,235 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+
+/**
+ * Caches trained classifiers on the disk, so they only have to be trained again when the training data
+ * or the options of the classifier have changed.
+ * <p>
+ * Every model is stored in its own file named after its key. The key is a hash of the training data
+ * (header, values and weights of all the rows) followed by a hash of the class and the options of the classifier,
+ * so a changed dataset never returns an outdated model. Only the models of the training data saved last are kept:
+ * saving a model deletes the ones trained with other data. Models are written to a temporary file first,
+ * so a model file is either complete or missing. The models are stored in the format of the CompactModelSerializer
+ * and the model files are memory mapped when they are loaded.
+ */
+public class ModelStore {
+
+    public static final String FILE_EXTENSION = ".model";
+
+    /**
+     * Part of every key, so the models of older versions of the app are not used anymore.
+     */
+    private static final int VERSION = 2;
+    private static final String KEY_SEPARATOR = "-";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    /**
+     * @param directory the directory the models are stored in, is created when the first model is saved
+     */
+    public ModelStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the hash of the training data. Only depends on the header, the values and the weights of the rows.
+     *
+     * @param data
+     * @return
+     */
+    public static String hashData(Instances data) {
+        MessageDigest digest = newDigest();
+        digest.update(new Instances(data, 0).toString().getBytes(UTF_8));
+        ByteBuffer row = ByteBuffer.allocate(8 * (data.numAttributes() + 3));
+        row.putInt(data.classIndex()).putInt(data.numInstances());
+        digest.update(row.array(), 0, row.position());
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance instance = data.instance(i);
+            row.clear();
+            row.putDouble(instance.weight());
+            for (int j = 0; j < data.numAttributes(); j++)
+                row.putDouble(instance.value(j));
+            digest.update(row.array(), 0, row.position());
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the key of the given classifier trained with the data with the given hash.
+     *
+     * @param dataHash   see hashData
+     * @param classifier the untrained classifier with its options set
+     * @return the data hash followed by the hash of the classifier
+     */
+    public static String getKey(String dataHash, Classifier classifier) {
+        String options = classifier instanceof OptionHandler ? Utils.joinOptions(((OptionHandler) classifier).getOptions()) : "";
+        MessageDigest digest = newDigest();
+        digest.update((VERSION + "\n" + classifier.getClass().getName() + "\n" + options).getBytes(UTF_8));
+        return dataHash + KEY_SEPARATOR + toHex(digest.digest());
+    }
+
+    /**
+     * Loads the model with the given key. A model file which cannot be read anymore (e.g. because weka has been updated)
+     * is deleted.
+     *
+     * @param key
+     * @return the trained classifier or null if there is no model with this key
+     */
+    public Classifier load(String key) {
+        File file = getFile(key);
+        if (!file.exists())
+            return null;
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return CompactModelSerializer.read(new ByteBufferInputStream(mapped));
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException | ClassCastException | IllegalStateException e) {
+            e.printStackTrace();
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Saves the trained classifier under the given key. Replaces an existing model with the same key
+     * and deletes the models trained with other data.
+     *
+     * @param key
+     * @param classifier
+     * @throws IOException
+     */
+    public void save(String key, Classifier classifier) throws IOException {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        File file = getFile(key);
+        File temporaryFile = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+        try {
+            CompactModelSerializer.write(classifier, out, false);
+        } finally {
+            out.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Could not save the model to " + file);
+        }
+        deleteOtherData(key.substring(0, key.indexOf(KEY_SEPARATOR) + 1));
+    }
+
+    /**
+     * Deletes the models whose key does not start with the given prefix, including the ones of older versions of the app.
+     *
+     * @param prefix
+     */
+    private void deleteOtherData(String prefix) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.getName().endsWith(FILE_EXTENSION) && !file.getName().startsWith(prefix))
+                file.delete();
+    }
+
+    /**
+     * Checks if there is a model with the given key.
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(String key) {
+        return getFile(key).exists();
+    }
+
+    /**
+     * Deletes all the stored models.
+     */
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files)
+            if (file.getName().endsWith(FILE_EXTENSION))
+                file.delete();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + FILE_EXTENSION);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    /**
+     * Reads from a (memory mapped) buffer without copying it first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
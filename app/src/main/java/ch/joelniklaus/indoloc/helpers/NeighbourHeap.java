@@ -0,0 +1,121 @@
+package ch.joelniklaus.indoloc.helpers;
+
+/**
+ * A max heap of the k nearest neighbours in primitive arrays, with the same order as NearestNeighbourSearch.MyHeap,
+ * and the list of the neighbours with the same distance as the k-th nearest neighbour.
+ */
+class NeighbourHeap {
+
+    // 1-based like MyHeap
+    private int[] indices = new int[2];
+    private double[] distances = new double[2];
+    private int size;
+
+    private int[] kthIndices = new int[10];
+    private double[] kthDistances = new double[10];
+    private int kthSize;
+
+    void reset(int kNN) {
+        if (indices.length < kNN + 1) {
+            indices = new int[kNN + 1];
+            distances = new double[kNN + 1];
+        }
+        size = 0;
+        kthSize = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int noOfKthNearest() {
+        return kthSize;
+    }
+
+    double peekDistance() {
+        return distances[1];
+    }
+
+    void put(int index, double distance) {
+        size++;
+        indices[size] = index;
+        distances[size] = distance;
+        // up heap
+        for (int i = size; i > 1 && distances[i] > distances[i / 2]; i /= 2)
+            swap(i, i / 2);
+    }
+
+    /**
+     * Removes the head and returns its distance, its index is left at position 0.
+     *
+     * @return
+     */
+    private double removeHead() {
+        int headIndex = indices[1];
+        double headDistance = distances[1];
+        indices[1] = indices[size];
+        distances[1] = distances[size];
+        size--;
+        // down heap
+        int i = 1;
+        while ((2 * i <= size && distances[i] < distances[2 * i]) || (2 * i + 1 <= size && distances[i] < distances[2 * i + 1])) {
+            int child = 2 * i + 1 <= size && !(distances[2 * i] > distances[2 * i + 1]) ? 2 * i + 1 : 2 * i;
+            swap(i, child);
+            i = child;
+        }
+        indices[0] = headIndex;
+        return headDistance;
+    }
+
+    void putBySubstitute(int index, double distance) {
+        double headDistance = removeHead();
+        int headIndex = indices[0];
+        put(index, distance);
+        if (headDistance == distances[1])
+            putKthNearest(headIndex, headDistance);
+        else if (headDistance > distances[1])
+            kthSize = 0;
+    }
+
+    void putKthNearest(int index, double distance) {
+        if (kthSize == kthIndices.length) {
+            int[] grownIndices = new int[2 * kthSize];
+            double[] grownDistances = new double[2 * kthSize];
+            System.arraycopy(kthIndices, 0, grownIndices, 0, kthSize);
+            System.arraycopy(kthDistances, 0, grownDistances, 0, kthSize);
+            kthIndices = grownIndices;
+            kthDistances = grownDistances;
+        }
+        kthIndices[kthSize] = index;
+        kthDistances[kthSize] = distance;
+        kthSize++;
+    }
+
+    /**
+     * Writes the neighbours from the farthest (at the end) to the nearest (at the start) and empties the heap.
+     *
+     * @param resultIndices
+     * @param resultDistances
+     */
+    void drain(int[] resultIndices, double[] resultDistances) {
+        int i = resultIndices.length - 1;
+        while (kthSize > 0) {
+            kthSize--;
+            resultIndices[i] = kthIndices[kthSize];
+            resultDistances[i--] = kthDistances[kthSize];
+        }
+        while (size > 0) {
+            resultDistances[i] = removeHead();
+            resultIndices[i--] = indices[0];
+        }
+    }
+
+    private void swap(int i, int j) {
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+    }
+}
@@ -0,0 +1,450 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.Arrays;
+
+import weka.core.Attribute;
+import weka.core.DistanceFunction;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+import weka.core.Range;
+
+/**
+ * The training data of a nearest neighbour search normalized into one contiguous row major array
+ * (see FlatLinearNNSearch, HnswNNSearch and IncrementalKDTree).
+ * <p>
+ * There is one column per attribute used by the distance function. The values are normalized like
+ * NormalizableDistance.norm, missing values are NaN and nominal values are not normalized.
+ * The squared euclidean distance between a row and a query normalized the same way is computed like
+ * NormalizableDistance.distance.
+ * <p>
+ * If the training data has too many access points for dense rows (see WekaHelper.isSparse), only the values
+ * which are not 0 are stored per row together with their columns, like in a SparseInstance. The distance to a query
+ * then only visits the columns in which the row or the query is not 0 (see getQueryColumns), like
+ * NormalizableDistance.distance does for sparse instances, so the distances are still the same.
+ */
+class NormalizedMatrix {
+
+    private final Instances instances;
+    private final NormalizableDistance distanceFunction;
+
+    private final int[] columns;
+    private final boolean[] nominalColumns;
+    private final boolean hasNominalColumns;
+    private final double[] minimums, maximums, widths;
+
+    private final boolean sparse;
+    private final int[] columnsOfAttributes; // the column of every attribute, -1 if it is not used
+    private final double[] zeros; // the normalized 0 of every column, which is left out of the sparse rows
+    private int[] rowStarts = new int[1]; // the values of the sparse row r are the ones from rowStarts[r] to rowStarts[r + 1]
+    private int[] valueColumns = new int[0];
+
+    private double[] values = new double[0];
+    private boolean[] rowHasMissing = new boolean[0];
+    private int numberOfRows = 0;
+
+    /**
+     * @param instances        the training data, the matrix grows with it (see update)
+     * @param distanceFunction
+     */
+    NormalizedMatrix(Instances instances, NormalizableDistance distanceFunction) {
+        this.instances = instances;
+        this.distanceFunction = distanceFunction;
+
+        Range range = new Range(distanceFunction.getAttributeIndices());
+        range.setInvert(distanceFunction.getInvertSelection());
+        range.setUpper(instances.numAttributes() - 1);
+
+        int numberOfColumns = 0;
+        int[] used = new int[instances.numAttributes()];
+        for (int i = 0; i < instances.numAttributes(); i++)
+            // the distance of the other types of attributes is always 0
+            if (i != instances.classIndex() && range.isInRange(i) && (instances.attribute(i).type() == Attribute.NUMERIC || instances.attribute(i).isNominal()))
+                used[numberOfColumns++] = i;
+        columns = new int[numberOfColumns];
+        System.arraycopy(used, 0, columns, 0, numberOfColumns);
+
+        nominalColumns = new boolean[numberOfColumns];
+        boolean nominal = false;
+        for (int c = 0; c < numberOfColumns; c++) {
+            nominalColumns[c] = instances.attribute(columns[c]).isNominal();
+            nominal |= nominalColumns[c];
+        }
+        hasNominalColumns = nominal;
+        minimums = new double[numberOfColumns];
+        maximums = new double[numberOfColumns];
+        widths = new double[numberOfColumns];
+
+        sparse = WekaHelper.isSparse(instances);
+        columnsOfAttributes = new int[instances.numAttributes()];
+        Arrays.fill(columnsOfAttributes, -1);
+        for (int c = 0; c < numberOfColumns; c++)
+            columnsOfAttributes[columns[c]] = c;
+        zeros = new double[numberOfColumns];
+    }
+
+    /**
+     * Normalizes the matrix again if the ranges of the distance function changed
+     * and appends the rows of the instances added to the training data.
+     *
+     * @throws Exception
+     */
+    void update() throws Exception {
+        if (rangesChanged()) {
+            numberOfRows = 0;
+            for (int c = 0; c < zeros.length; c++)
+                zeros[c] = nominalColumns[c] ? 0 : normalize(c, 0);
+        }
+        if (numberOfRows < instances.numInstances())
+            appendRows();
+    }
+
+    /**
+     * Copies the current ranges of the distance function.
+     *
+     * @return true if they differ from the ones the matrix was normalized with
+     * @throws Exception
+     */
+    private boolean rangesChanged() throws Exception {
+        double[][] ranges = distanceFunction.getRanges();
+        boolean changed = false;
+        for (int c = 0; c < columns.length; c++) {
+            double[] range = ranges[columns[c]];
+            if (!same(minimums[c], range[NormalizableDistance.R_MIN]) || !same(maximums[c], range[NormalizableDistance.R_MAX])
+                    || !same(widths[c], range[NormalizableDistance.R_WIDTH])) {
+                minimums[c] = range[NormalizableDistance.R_MIN];
+                maximums[c] = range[NormalizableDistance.R_MAX];
+                widths[c] = range[NormalizableDistance.R_WIDTH];
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean same(double first, double second) {
+        return first == second || (Double.isNaN(first) && Double.isNaN(second));
+    }
+
+    private void appendRows() {
+        if (sparse) {
+            appendSparseRows();
+            return;
+        }
+        int stride = columns.length;
+        int rows = instances.numInstances();
+        if (rowHasMissing.length < rows) {
+            // grown with room for the instances added later on
+            int capacity = Math.max(rows, 2 * numberOfRows);
+            double[] grown = new double[capacity * stride];
+            System.arraycopy(values, 0, grown, 0, numberOfRows * stride);
+            values = grown;
+            boolean[] grownMissing = new boolean[capacity];
+            System.arraycopy(rowHasMissing, 0, grownMissing, 0, numberOfRows);
+            rowHasMissing = grownMissing;
+        }
+        for (int row = numberOfRows; row < rows; row++) {
+            normalize(instances.instance(row), values, row * stride);
+            rowHasMissing[row] = hasMissing(values, row * stride);
+        }
+        numberOfRows = rows;
+    }
+
+    /**
+     * Appends the values of the rows which are not 0 and their columns.
+     */
+    private void appendSparseRows() {
+        int rows = instances.numInstances();
+        if (rowHasMissing.length < rows) {
+            int capacity = Math.max(rows, 2 * numberOfRows);
+            int[] grownStarts = new int[capacity + 1];
+            System.arraycopy(rowStarts, 0, grownStarts, 0, numberOfRows + 1);
+            rowStarts = grownStarts;
+            boolean[] grownMissing = new boolean[capacity];
+            System.arraycopy(rowHasMissing, 0, grownMissing, 0, numberOfRows);
+            rowHasMissing = grownMissing;
+        }
+        int length = rowStarts[numberOfRows];
+        for (int row = numberOfRows; row < rows; row++) {
+            Instance instance = instances.instance(row);
+            if (values.length < length + instance.numValues()) {
+                int capacity = Math.max(length + instance.numValues(), 2 * values.length);
+                double[] grownValues = new double[capacity];
+                System.arraycopy(values, 0, grownValues, 0, length);
+                values = grownValues;
+                int[] grownColumns = new int[capacity];
+                System.arraycopy(valueColumns, 0, grownColumns, 0, length);
+                valueColumns = grownColumns;
+            }
+            boolean missing = false;
+            // the values of a sparse instance are ordered by their attribute, so are the columns
+            for (int p = 0; p < instance.numValues(); p++) {
+                int c = columnsOfAttributes[instance.index(p)];
+                double value = instance.valueSparse(p);
+                if (c == -1 || value == 0)
+                    continue;
+                valueColumns[length] = c;
+                values[length++] = nominalColumns[c] ? value : normalize(c, value);
+                missing |= Double.isNaN(value);
+            }
+            rowStarts[row + 1] = length;
+            rowHasMissing[row] = missing;
+        }
+        numberOfRows = rows;
+    }
+
+    /**
+     * Writes the values of the used attributes of the instance, normalized like NormalizableDistance.norm.
+     * Missing values are NaN, nominal values are not normalized.
+     *
+     * @param instance
+     * @param values
+     * @param offset
+     */
+    void normalize(Instance instance, double[] values, int offset) {
+        for (int c = 0; c < columns.length; c++) {
+            double value = instance.value(columns[c]);
+            values[offset + c] = nominalColumns[c] ? value : normalize(c, value);
+        }
+    }
+
+    /**
+     * Normalizes a value of a numeric column like the rows. The rounding is monotonic, so the normalized values
+     * keep the order of the values.
+     *
+     * @param c
+     * @param value
+     * @return the normalized value, NaN if the value is missing
+     */
+    double normalize(int c, double value) {
+        if (distanceFunction.getDontNormalize() || Double.isNaN(value))
+            return value;
+        if (Double.isNaN(minimums[c]) || maximums[c] == minimums[c])
+            return 0;
+        return (value - minimums[c]) / widths[c];
+    }
+
+    boolean hasMissing(double[] values, int offset) {
+        for (int c = 0; c < columns.length; c++)
+            if (Double.isNaN(values[offset + c]))
+                return true;
+        return false;
+    }
+
+    /**
+     * Computes the squared euclidean distance between two rows.
+     *
+     * @param first
+     * @param second
+     * @param cutOffValue
+     * @return the squared distance or infinity as soon as the distance exceeds the cut off value
+     */
+    double distance(int first, int second, double cutOffValue) {
+        if (sparse)
+            return sparseDistance(first, second, cutOffValue);
+        return distance(values, first * columns.length, rowHasMissing[first], second, cutOffValue);
+    }
+
+    /**
+     * Computes the squared euclidean distance between two sparse rows, visiting only their values which are not 0.
+     */
+    private double sparseDistance(int first, int second, double cutOffValue) {
+        boolean dontNormalize = distanceFunction.getDontNormalize();
+        int i = rowStarts[first], firstEnd = rowStarts[first + 1];
+        int j = rowStarts[second], secondEnd = rowStarts[second + 1];
+        double distance = 0;
+        while (i < firstEnd || j < secondEnd) {
+            int firstColumn = i < firstEnd ? valueColumns[i] : Integer.MAX_VALUE;
+            int secondColumn = j < secondEnd ? valueColumns[j] : Integer.MAX_VALUE;
+            int c = Math.min(firstColumn, secondColumn);
+            double firstValue = firstColumn == c ? values[i++] : zeros[c];
+            double secondValue = secondColumn == c ? values[j++] : zeros[c];
+            double difference = difference(c, firstValue, secondValue, dontNormalize);
+            distance += difference * difference;
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * Gets the columns in which the normalized query is not 0, in ascending order. Together with the ones of a sparse row,
+     * these are the only columns which add to the distance between the query and the row.
+     *
+     * @param queryValues  the normalized query (see normalize)
+     * @param queryOffset
+     * @param queryColumns the array the columns are written to, from the query offset on
+     * @return the number of columns
+     */
+    int getQueryColumns(double[] queryValues, int queryOffset, int[] queryColumns) {
+        int length = 0;
+        for (int c = 0; c < columns.length; c++)
+            // a missing value is never equal
+            if (!(queryValues[queryOffset + c] == zeros[c]))
+                queryColumns[queryOffset + length++] = c;
+        return length;
+    }
+
+    /**
+     * Computes the squared euclidean distance between the query and the sparse row, visiting only the columns
+     * in which the query or the row is not 0.
+     *
+     * @param queryValues           the normalized query (see normalize)
+     * @param queryColumns          the columns of the query which are not 0 (see getQueryColumns)
+     * @param queryOffset           the offset of the query in both arrays
+     * @param numberOfQueryColumns
+     * @param row
+     * @param cutOffValue
+     * @return the squared distance or infinity as soon as the distance exceeds the cut off value
+     */
+    double sparseDistance(double[] queryValues, int[] queryColumns, int queryOffset, int numberOfQueryColumns, int row, double cutOffValue) {
+        boolean dontNormalize = distanceFunction.getDontNormalize();
+        int i = 0, j = rowStarts[row], end = rowStarts[row + 1];
+        double distance = 0;
+        while (i < numberOfQueryColumns || j < end) {
+            int queryColumn = i < numberOfQueryColumns ? queryColumns[queryOffset + i] : Integer.MAX_VALUE;
+            int rowColumn = j < end ? valueColumns[j] : Integer.MAX_VALUE;
+            int c = Math.min(queryColumn, rowColumn);
+            if (queryColumn == c)
+                i++;
+            double second = rowColumn == c ? values[j++] : zeros[c];
+            double difference = difference(c, queryValues[queryOffset + c], second, dontNormalize);
+            distance += difference * difference;
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * Computes the squared euclidean distance between the query and the row, like NormalizableDistance.distance.
+     *
+     * @param queryValues     the normalized query (see normalize)
+     * @param queryOffset
+     * @param queryHasMissing
+     * @param row
+     * @param cutOffValue
+     * @return the squared distance or infinity as soon as the distance exceeds the cut off value
+     */
+    double distance(double[] queryValues, int queryOffset, boolean queryHasMissing, int row, double cutOffValue) {
+        if (sparse)
+            return sparseDistance(queryValues, queryOffset, row, cutOffValue);
+        final double[] values = this.values;
+        final int stride = columns.length;
+        final int base = row * stride;
+        double distance = 0;
+        if (!queryHasMissing && !rowHasMissing[row] && !hasNominalColumns) {
+            for (int c = 0; c < stride; c++) {
+                double difference = queryValues[queryOffset + c] - values[base + c];
+                distance += difference * difference;
+                if (distance > cutOffValue)
+                    return Double.POSITIVE_INFINITY;
+            }
+            return distance;
+        }
+
+        boolean dontNormalize = distanceFunction.getDontNormalize();
+        for (int c = 0; c < stride; c++) {
+            double difference = difference(c, queryValues[queryOffset + c], values[base + c], dontNormalize);
+            distance += difference * difference;
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * Computes the squared euclidean distance between the query and the sparse row, visiting every column.
+     * Used if the columns of the query which are not 0 are not known.
+     */
+    private double sparseDistance(double[] queryValues, int queryOffset, int row, double cutOffValue) {
+        boolean dontNormalize = distanceFunction.getDontNormalize();
+        int j = rowStarts[row], end = rowStarts[row + 1];
+        double distance = 0;
+        for (int c = 0; c < columns.length; c++) {
+            double second = j < end && valueColumns[j] == c ? values[j++] : zeros[c];
+            double difference = difference(c, queryValues[queryOffset + c], second, dontNormalize);
+            distance += difference * difference;
+            if (distance > cutOffValue)
+                return Double.POSITIVE_INFINITY;
+        }
+        return distance;
+    }
+
+    /**
+     * Computes the difference of two normalized values of a column, like NormalizableDistance.difference.
+     */
+    private double difference(int c, double first, double second, boolean dontNormalize) {
+        if (nominalColumns[c])
+            return Double.isNaN(first) || Double.isNaN(second) || (int) first != (int) second ? 1 : 0;
+        if (Double.isNaN(first) && Double.isNaN(second))
+            return dontNormalize ? widths[c] : 1;
+        if (Double.isNaN(first) || Double.isNaN(second)) {
+            // the distance to the farther end of the range
+            double value = Double.isNaN(second) ? first : second;
+            if (!dontNormalize)
+                return value < 0.5 ? 1.0 - value : value;
+            return maximums[c] - value > value - minimums[c] ? maximums[c] - value : value - minimums[c];
+        }
+        return first - second;
+    }
+
+    /**
+     * Checks if the distance function is the euclidean distance computed by the matrix.
+     *
+     * @param distanceFunction
+     * @return
+     */
+    static boolean isEuclidean(DistanceFunction distanceFunction) {
+        return distanceFunction.getClass() == EuclideanDistance.class || distanceFunction.getClass() == CompiledEuclideanDistance.class;
+    }
+
+    /**
+     * @param instances
+     * @param distanceFunction
+     * @return true if the matrix was built for the given training data and distance function
+     */
+    boolean isFor(Instances instances, NormalizableDistance distanceFunction) {
+        return this.instances == instances && this.distanceFunction == distanceFunction;
+    }
+
+    int getNumberOfColumns() {
+        return columns.length;
+    }
+
+    /**
+     * @param c
+     * @return the index of the attribute of the column
+     */
+    int getAttribute(int c) {
+        return columns[c];
+    }
+
+    boolean isNominal(int c) {
+        return nominalColumns[c];
+    }
+
+    /**
+     * @param c
+     * @return the factor from a difference of the values of the column to the difference of the normalized values,
+     * with the ranges of the last update
+     */
+    double getScale(int c) {
+        if (distanceFunction.getDontNormalize())
+            return 1;
+        if (Double.isNaN(minimums[c]) || maximums[c] == minimums[c])
+            return 0;
+        return 1 / widths[c];
+    }
+
+    /**
+     * @return true if only the values of the rows which are not 0 are stored
+     */
+    boolean isSparse() {
+        return sparse;
+    }
+
+    int getNumberOfRows() {
+        return numberOfRows;
+    }
+}
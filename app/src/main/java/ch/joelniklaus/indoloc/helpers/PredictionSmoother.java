@@ -0,0 +1,99 @@
+package ch.joelniklaus.indoloc.helpers;
+
+/**
+ * Smooths the live predictions of one classifier over time, so the predicted room does not flicker.
+ * <p>
+ * The class distributions (see Classifier.distributionForInstance) of the samples are accumulated
+ * with exponentially decreasing weights. The weight depends on the time between the samples and not on their number:
+ * after one half life a sample only counts half. So the output stays equally stable if the sampling rate is lowered.
+ * Adding a sample takes O(number of classes) and does not allocate anything. Not thread safe.
+ */
+public class PredictionSmoother {
+
+    public static final double DEFAULT_HALF_LIFE_MILLI_S = 1000;
+
+    private final double[] distribution;
+    private final double halfLifeNanoS;
+    private boolean empty = true;
+    private long lastTime;
+    private int prediction = -1;
+
+    /**
+     * @param numberOfClasses
+     * @param halfLifeMilliS  the time after which a sample only counts half, 0 disables the smoothing
+     */
+    public PredictionSmoother(int numberOfClasses, double halfLifeMilliS) {
+        distribution = new double[numberOfClasses];
+        halfLifeNanoS = halfLifeMilliS * 1000000;
+    }
+
+    /**
+     * Adds the class distribution of a new sample.
+     *
+     * @param sample one probability per class
+     * @param time   the time of the sample in nanoseconds (e.g. System.nanoTime())
+     * @return the index of the most probable class after adding the sample
+     */
+    public int add(double[] sample, long time) {
+        if (sample.length != distribution.length)
+            throw new IllegalArgumentException("Expected " + distribution.length + " classes but got " + sample.length);
+
+        // the weight of the new sample, the older ones together get the rest
+        double weight = 1;
+        if (!empty && halfLifeNanoS > 0)
+            weight = 1 - Math.pow(0.5, Math.max(0, time - lastTime) / halfLifeNanoS);
+        empty = false;
+        lastTime = time;
+
+        int best = 0;
+        for (int i = 0; i < distribution.length; i++) {
+            distribution[i] += weight * (sample[i] - distribution[i]);
+            if (distribution[i] > distribution[best])
+                best = i;
+        }
+        prediction = best;
+        return best;
+    }
+
+    /**
+     * Forgets all the samples.
+     */
+    public void reset() {
+        empty = true;
+        prediction = -1;
+        for (int i = 0; i < distribution.length; i++)
+            distribution[i] = 0;
+    }
+
+    /**
+     * Gets the index of the most probable class.
+     *
+     * @return -1 if no sample has been added yet
+     */
+    public int getPrediction() {
+        return prediction;
+    }
+
+    /**
+     * Gets the smoothed probability of the most probable class.
+     *
+     * @return
+     */
+    public double getConfidence() {
+        return prediction == -1 ? 0 : distribution[prediction];
+    }
+
+    /**
+     * Gets the smoothed probability of the given class.
+     *
+     * @param index
+     * @return
+     */
+    public double getProbability(int index) {
+        return distribution[index];
+    }
+
+    public int getNumberOfClasses() {
+        return distribution.length;
+    }
+}
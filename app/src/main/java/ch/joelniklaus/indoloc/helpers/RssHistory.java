@@ -0,0 +1,142 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent rss readings of every access point in one ring buffer per access point.
+ * <p>
+ * There must be only one writer (the thread receiving the scan results). Readers on other threads never block it:
+ * the writer stores a reading and only then increments the counter of the access point, and a reader checks
+ * after copying that none of the copied readings has been overwritten in the meantime, otherwise it copies again.
+ * The ring has one spare entry, which the writer may be overwriting while the others are read.
+ */
+public class RssHistory {
+
+    private final int numberOfSlots;
+    private final int capacity;
+    private final int ringSize;
+    private final AtomicIntegerArray values;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray lastScans;
+    private volatile long numberOfScans = 0;
+
+    /**
+     * @param numberOfSlots the number of access points
+     * @param capacity      the number of readings kept per access point
+     */
+    public RssHistory(int numberOfSlots, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        this.numberOfSlots = numberOfSlots;
+        this.capacity = capacity;
+        this.ringSize = capacity + 1;
+        values = new AtomicIntegerArray(numberOfSlots * ringSize);
+        counts = new AtomicLongArray(numberOfSlots);
+        lastScans = new AtomicLongArray(numberOfSlots);
+    }
+
+    /**
+     * Adds a reading of the access point. Must only be called by the writer thread.
+     *
+     * @param slot
+     * @param rss
+     */
+    public void add(int slot, int rss) {
+        long count = counts.get(slot);
+        values.set(position(slot, count), rss);
+        lastScans.set(slot, numberOfScans);
+        // publishes the reading
+        counts.set(slot, count + 1);
+    }
+
+    /**
+     * Gets the latest reading of the access point.
+     *
+     * @param slot
+     * @param defaultValue returned if the access point has not been seen yet
+     * @return
+     */
+    public int getLatest(int slot, int defaultValue) {
+        while (true) {
+            long count = counts.get(slot);
+            if (count == 0)
+                return defaultValue;
+            int value = values.get(position(slot, count - 1));
+            if (counts.get(slot) - (count - 1) < ringSize)
+                return value;
+        }
+    }
+
+    /**
+     * Gets the latest reading of the access point unless the access point has been missing in the last scans.
+     *
+     * @param slot
+     * @param defaultValue returned if the access point has not been seen in the last scans
+     * @param scans        the number of ended scans in a row without the access point after which its reading is dropped
+     * @return
+     */
+    public int getLatest(int slot, int defaultValue, int scans) {
+        int value = getLatest(slot, defaultValue);
+        if (counts.get(slot) == 0 || numberOfScans - lastScans.get(slot) > scans)
+            return defaultValue;
+        return value;
+    }
+
+    /**
+     * Marks the end of a scan, the readings added afterwards belong to the next scan. Must only be called by the writer thread.
+     */
+    public void endScan() {
+        numberOfScans++;
+    }
+
+    /**
+     * Gets the number of scans ended since the start.
+     *
+     * @return
+     */
+    public long getNumberOfScans() {
+        return numberOfScans;
+    }
+
+    /**
+     * Copies the most recent readings of the access point into the target, the latest one first.
+     *
+     * @param slot
+     * @param target
+     * @return the number of readings copied, at most the capacity and the length of the target
+     */
+    public int getRecent(int slot, int[] target) {
+        while (true) {
+            long count = counts.get(slot);
+            int n = (int) Math.min(Math.min(count, capacity), target.length);
+            for (int i = 0; i < n; i++)
+                target[i] = values.get(position(slot, count - 1 - i));
+            // the oldest reading copied is only overwritten once the writer has wrapped around the ring
+            if (counts.get(slot) - (count - n) < ringSize)
+                return n;
+        }
+    }
+
+    /**
+     * Gets the number of readings added for the access point since the start.
+     *
+     * @param slot
+     * @return
+     */
+    public long getCount(int slot) {
+        return counts.get(slot);
+    }
+
+    public int getNumberOfSlots() {
+        return numberOfSlots;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int position(int slot, long reading) {
+        return slot * ringSize + (int) (reading % ringSize);
+    }
+}
@@ -108,6 +108,18 @@ public class SensorHelper extends AbstractHelper {
      * @return
      */
     public SensorData readSensorData(SensorEvent event) {
+        SensorData sensorData = new SensorData();
+        readSensorData(event, sensorData);
+        return sensorData;
+    }
+
+    /**
+     * Reads the sensor data like readSensorData(event), but overwrites the given sensor data instead of creating a new one.
+     *
+     * @param event
+     * @param target
+     */
+    public void readSensorData(SensorEvent event, SensorData target) {
         if (event.sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
             ambientTemperature = lowPass(event.values[0], ambientTemperature);
         }
@@ -139,7 +151,8 @@ public class SensorHelper extends AbstractHelper {
             //magnetic[2] = alpha * magnetic[2] + (1 - alpha) * event.values[2];
         }
 
-        return new SensorData(ambientTemperature, light, pressure, relativeHumidity, gravity, magnetic);
+        // the target copies the arrays, so the data point does not change when the filtered values are updated
+        target.set(ambientTemperature, light, pressure, relativeHumidity, gravity, magnetic);
     }
 
     /**
@@ -0,0 +1,95 @@
+package ch.joelniklaus.indoloc.helpers;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+/**
+ * Reads and writes the protected and private fields of weka classes which have no accessors,
+ * e.g. the nodes of a random tree. Only used to export and import trained models, never on the prediction path.
+ * The fields are looked up once per class and name.
+ */
+final class WekaFields {
+
+    private static final HashMap<String, Field> FIELDS = new HashMap<>();
+    private static final HashMap<String, Constructor<?>> CONSTRUCTORS = new HashMap<>();
+
+    private WekaFields() {
+    }
+
+    static Object get(Object object, String name) {
+        try {
+            return field(object.getClass(), name).get(object);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot read " + name + " of " + object.getClass().getName(), e);
+        }
+    }
+
+    static int getInt(Object object, String name) {
+        return (Integer) get(object, name);
+    }
+
+    static double getDouble(Object object, String name) {
+        return (Double) get(object, name);
+    }
+
+    static void set(Object object, String name, Object value) {
+        try {
+            field(object.getClass(), name).set(object, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot write " + name + " of " + object.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Creates an object with a constructor which is not public. The constructor is looked up once per class.
+     *
+     * @param className
+     * @param parameterTypes
+     * @param arguments
+     * @return
+     */
+    static Object newInstance(String className, Class<?>[] parameterTypes, Object... arguments) {
+        try {
+            Constructor<?> constructor;
+            synchronized (CONSTRUCTORS) {
+                constructor = CONSTRUCTORS.get(className);
+                if (constructor == null) {
+                    constructor = Class.forName(className).getDeclaredConstructor(parameterTypes);
+                    constructor.setAccessible(true);
+                    CONSTRUCTORS.put(className, constructor);
+                }
+            }
+            return constructor.newInstance(arguments);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    /**
+     * Looks up the field in the class and its super classes.
+     *
+     * @param type
+     * @param name
+     * @return
+     */
+    private static Field field(Class<?> type, String name) {
+        String key = type.getName() + "#" + name;
+        synchronized (FIELDS) {
+            Field field = FIELDS.get(key);
+            if (field != null)
+                return field;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    field = c.getDeclaredField(name);
+                    field.setAccessible(true);
+                    FIELDS.put(key, field);
+                    return field;
+                } catch (NoSuchFieldException e) {
+                    // declared in a super class
+                }
+            }
+        }
+        throw new IllegalStateException("No field " + name + " in " + type.getName() + ", the weka version is not supported");
+    }
+}
@@ -12,6 +12,7 @@ import ch.joelniklaus.indoloc.exceptions.DifferentHeaderException;
 import ch.joelniklaus.indoloc.exceptions.InvalidRoomException;
 import ch.joelniklaus.indoloc.models.DataPoint;
 import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
 import ch.joelniklaus.indoloc.models.SensorData;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
@@ -23,10 +24,13 @@ import weka.classifiers.meta.Bagging;
 import weka.classifiers.meta.LogitBoost;
 import weka.classifiers.trees.RandomForest;
 import weka.core.Attribute;
+import weka.core.BatchPredictor;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.InstanceComparator;
 import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
 import weka.filters.Filter;
 import weka.filters.supervised.instance.StratifiedRemoveFolds;
 import weka.filters.unsupervised.attribute.Remove;
@@ -49,6 +53,44 @@ public class WekaHelper {
 
     public static final String TRAINING_SET_PERCENTAGE = "70";
 
+    /**
+     * The index of the first rss attribute, before are the room, the sensors and the gps location.
+     */
+    public static final int FIRST_RSS_INDEX = 17;
+
+    /**
+     * With more access points most of the rss values of a row are missing (0),
+     * so the rows are stored as sparse instances which only contain the access points seen.
+     */
+    public static final int MAX_DENSE_RSS_VALUES = 32;
+
+    /**
+     * The number of sensor features, they are followed by the location features.
+     */
+    private static final int NUMBER_OF_SENSOR_FEATURES = 14;
+    private static final int NUMBER_OF_LOCATION_FEATURES = 2;
+
+    /**
+     * The suffixes of the attributes aggregating the sensor and rss features over the last scans (see FeatureWindow).
+     */
+    private static final String[] AGGREGATES = {"Mean", "Variance", "Min", "Max"};
+
+    /**
+     * The width of the cells the values are rounded to before hashing, wider than the tolerance of the InstanceComparator.
+     */
+    private static final double HASH_CELL = 10 * Utils.SMALL;
+
+    /**
+     * A value further than this from the center of its cell (in cells) may be equal to a value of the neighbouring cell.
+     * It is a bit less than 0.5 - Utils.SMALL / HASH_CELL to allow for the rounding of the division.
+     */
+    private static final double CELL_BORDER = 0.35;
+
+    /**
+     * With more values near the border of a cell the duplicates of a row are searched by comparing it with every kept row.
+     */
+    private static final int MAX_VALUES_NEAR_CELL_BORDER = 8;
+
 
     public WekaHelper() {
 
@@ -119,6 +161,54 @@ public class WekaHelper {
             classifier.classifyInstance(test.instance(i));
     }
 
+    /**
+     * Classifies the whole test set at once using the batch prediction (see BatchClassifier).
+     * Much faster than test, but the time taken is not the prediction time per instance.
+     *
+     * @param test
+     * @param classifier a trained classifier
+     * @return the class distribution of every instance
+     * @throws Exception
+     */
+    public static double[][] testBatch(Instances test, Classifier classifier) throws Exception {
+        return toBatchPredictor(classifier).distributionsForInstances(test);
+    }
+
+    /**
+     * Evaluates a given not yet trained classifier using a separate train and test set.
+     * The test set is classified at once using the batch prediction (see testBatch).
+     *
+     * @param train
+     * @param test
+     * @param classifier
+     * @return
+     * @throws Exception
+     */
+    public static Evaluation evaluateBatch(Instances train, Instances test, Classifier classifier) throws Exception {
+        classifier.buildClassifier(train);
+        Evaluation evaluation = new Evaluation(train);
+        evaluation.evaluateModel(toBatchClassifier(classifier), test);
+
+        return evaluation;
+    }
+
+    /**
+     * Wraps the given trained classifier in a BatchClassifier unless it already has an efficient batch prediction.
+     * Evaluation.evaluateModel uses the batch prediction of the returned classifier.
+     *
+     * @param classifier
+     * @return
+     */
+    public static Classifier toBatchClassifier(Classifier classifier) {
+        if (classifier instanceof BatchPredictor && ((BatchPredictor) classifier).implementsMoreEfficientBatchPrediction())
+            return classifier;
+        return new BatchClassifier(classifier);
+    }
+
+    private static BatchPredictor toBatchPredictor(Classifier classifier) {
+        return (BatchPredictor) toBatchClassifier(classifier);
+    }
+
     public static Classifier train(Instances train, Classifier classifier) throws Exception {
         classifier.buildClassifier(train);
         return classifier;
@@ -155,10 +245,14 @@ public class WekaHelper {
     }
 
     public static String predictInstance(Classifier classifier, Instances test) throws Exception {
+        return predictInstance(classifier, test.instance(0));
+    }
+
+    public static String predictInstance(Classifier classifier, Instance instance) throws Exception {
         Timer timer = new Timer();
 
-        double predictedClass = classifier.classifyInstance(test.instance(0));
-        String predicted = test.classAttribute().value((int) predictedClass);
+        double predictedClass = classifier.classifyInstance(instance);
+        String predicted = instance.classAttribute().value((int) predictedClass);
 
         return timer.timeElapsed() + "ms -> " + predicted;
     }
@@ -372,23 +466,147 @@ public class WekaHelper {
     /**
      * Removes all the exactly duplicate rows in the given instances so that each row is unique.
      * This often leads to a better result using the classifiers.
+     * The first occurrence of every row is kept and the order of the rows is preserved.
      *
      * @param data
      * @return
      */
     public static Instances removeDuplicates(Instances data) {
-        Instances newData = new Instances(data);
+        return removeDuplicates(data, false);
+    }
+
+    /**
+     * Removes all the duplicate rows in the given instances so that each row is unique.
+     * The first occurrence of every row is kept and the order of the rows is preserved.
+     * Like the InstanceComparator, numeric values which differ by less than Utils.SMALL are equal.
+     * <p>
+     * Runs in linear time: every row is hashed over its values and only rows with the same hash are compared.
+     *
+     * @param data
+     * @param accumulateWeights if true the weight of every kept row is the sum of the weights of all its duplicates,
+     *                          so with unit weights the weight is the number of times the row occurred
+     * @return
+     */
+    public static Instances removeDuplicates(Instances data, boolean accumulateWeights) {
+        int numInstances = data.numInstances();
+        Instances newData = new Instances(data, numInstances);
         InstanceComparator comparator = new InstanceComparator();
-        for (int i = 0; i < newData.numInstances() - 1; i++) {
-            for (int j = i + 1; j < newData.numInstances(); j++)
-                if (comparator.compare(newData.instance(i), newData.instance(j)) == 0) {
-                    newData.delete(j);
-                    j--;
+
+        // open addressing hash table storing the index of the kept row + 1 (0 = empty slot)
+        int capacity = Integer.highestOneBit(Math.max(2, numInstances) * 2 - 1) << 1;
+        int mask = capacity - 1;
+        int[] table = new int[capacity];
+        int[] hashes = new int[capacity];
+        double[] weights = new double[numInstances];
+        int[] candidates = new int[1 << MAX_VALUES_NEAR_CELL_BORDER];
+
+        for (int i = 0; i < numInstances; i++) {
+            Instance instance = data.instance(i);
+            int numberOfCandidates = hashValues(instance, candidates);
+            // the first kept row which is equal, like the former pairwise comparison
+            int duplicateOf = -1;
+            if (numberOfCandidates == 0) {
+                // too many values near the border of a cell to look up all the hashes
+                for (int kept = 0; kept < newData.numInstances() && duplicateOf == -1; kept++)
+                    if (comparator.compare(newData.instance(kept), instance) == 0)
+                        duplicateOf = kept;
+            }
+            for (int c = 0; c < numberOfCandidates; c++)
+                for (int slot = mix(candidates[c]) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                    int kept = table[slot] - 1;
+                    if (hashes[slot] == candidates[c] && (duplicateOf == -1 || kept < duplicateOf)
+                            && comparator.compare(newData.instance(kept), instance) == 0)
+                        duplicateOf = kept;
                 }
+
+            if (duplicateOf != -1) {
+                weights[duplicateOf] += instance.weight();
+            } else {
+                newData.add(instance);
+                weights[newData.numInstances() - 1] = instance.weight();
+                int slot = mix(candidates[0]) & mask;
+                while (table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = newData.numInstances();
+                hashes[slot] = candidates[0];
+            }
         }
+
+        if (accumulateWeights)
+            for (int i = 0; i < newData.numInstances(); i++)
+                newData.instance(i).setWeight(weights[i]);
         return newData;
     }
 
+    /**
+     * Computes the hashes of all the rows which may be equal to the instance according to the InstanceComparator.
+     * The numeric values are rounded to cells of HASH_CELL, so equal values are in the same cell unless one of them
+     * is near the border, in which case the hash with the neighbouring cell is added as well.
+     *
+     * @param instance
+     * @param candidates the hashes, the first one is the hash of the instance itself
+     * @return the number of hashes, 0 if there are too many values near the border of a cell
+     */
+    private static int hashValues(Instance instance, int[] candidates) {
+        int numAttributes = instance.numAttributes();
+        int hash = 1;
+        int numberOfCandidates = 1;
+        candidates[0] = 1;
+        for (int i = 0; i < numAttributes; i++) {
+            int valueHash, neighbourHash = 0;
+            boolean nearBorder = false;
+            if (instance.isMissing(i))
+                valueHash = 0;
+            else if (instance.attribute(i).isString())
+                valueHash = instance.stringValue(i).hashCode();
+            else if (instance.attribute(i).type() == Attribute.RELATIONAL)
+                // left to the comparator
+                valueHash = 0;
+            else {
+                double scaled = instance.value(i) / HASH_CELL;
+                double cell = Math.rint(scaled);
+                valueHash = hashCell(cell);
+                if (scaled - cell > CELL_BORDER || cell - scaled > CELL_BORDER) {
+                    neighbourHash = hashCell(scaled > cell ? cell + 1 : cell - 1);
+                    nearBorder = true;
+                }
+            }
+            hash = 31 * hash + valueHash;
+            for (int c = 0; c < numberOfCandidates; c++)
+                candidates[c] = 31 * candidates[c] + valueHash;
+            if (nearBorder && numberOfCandidates < candidates.length) {
+                // the candidates so far with the neighbouring cell instead
+                int difference = neighbourHash - valueHash;
+                for (int c = 0; c < numberOfCandidates; c++)
+                    candidates[numberOfCandidates + c] = candidates[c] + difference;
+                numberOfCandidates *= 2;
+            } else if (nearBorder) {
+                numberOfCandidates = 0;
+            }
+        }
+        candidates[0] = hash;
+        return numberOfCandidates;
+    }
+
+    private static int hashCell(double cell) {
+        // 0.0 and -0.0 are the same cell
+        long bits = Double.doubleToLongBits(cell + 0.0);
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    /**
+     * Spreads the bits of a hash so that similar hashes do not end up in neighbouring slots.
+     *
+     * @param hash
+     * @return
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
 
     /**
      * Gets every n th instance of a given set of instances. Used to evaluate different dataset sizes.
@@ -432,6 +650,8 @@ public class WekaHelper {
     /**
      * Converts an Instances object containing an arbitrary amount of rows into one containing only one row.
      * Namely the one containing the data point provided.
+     * Only the header of the given instances is copied, not the rows.
+     * For repeated conversions with the same header use the InstanceBuilder.
      *
      * @param instances
      * @param dataPoint
@@ -439,15 +659,14 @@ public class WekaHelper {
      */
     @NonNull
     public static Instances convertToSingleInstance(Instances instances, DataPoint dataPoint) throws InvalidRoomException {
-        Instances newInstances = new Instances(instances);
-        newInstances.delete();
+        Instances newInstances = new Instances(instances, 1);
         newInstances.setClassIndex(0);
 
         assertion(newInstances.numInstances() == 0);
 
         ArrayList<DataPoint> dataPoints = new ArrayList<>();
         dataPoints.add(dataPoint);
-        addInstances(dataPoints, newInstances);
+        addInstances(dataPoints, newInstances, hasAggregates(newInstances) ? new FeatureWindow(1) : null);
 
         assertion(newInstances.numInstances() == 1);
         assertion(newInstances.classIndex() == 0);
@@ -463,13 +682,27 @@ public class WekaHelper {
      */
     @NonNull
     public static Instances buildInstances(ArrayList<DataPoint> dataPoints) {
-        ArrayList<Attribute> attributes = buildAttributes(dataPoints);
+        return buildInstances(dataPoints, 0);
+    }
+
+    /**
+     * Builds an Instances object out of the data points list. If the window size is positive, the sensor and rss features
+     * of the last scans in the same room are aggregated into additional attributes (see FeatureWindow).
+     * The data points have to be in the order they were collected.
+     *
+     * @param dataPoints
+     * @param windowSize the number of scans aggregated, 0 for no aggregates
+     * @return
+     */
+    @NonNull
+    public static Instances buildInstances(ArrayList<DataPoint> dataPoints, int windowSize) {
+        ArrayList<Attribute> attributes = buildAttributes(getRooms(dataPoints), dataPoints.get(0).getRssData().size(), windowSize > 0);
 
         Instances data = new Instances("TestInstances", attributes, dataPoints.size());
         data.setClassIndex(0);
 
         try {
-            addInstances(dataPoints, data);
+            addInstances(dataPoints, data, windowSize > 0 ? new FeatureWindow(windowSize) : null);
         } catch (InvalidRoomException e) {
             e.printStackTrace();
         }
@@ -486,35 +719,164 @@ public class WekaHelper {
      *
      * @param dataPoints
      * @param data
+     * @param window     aggregates the scans of the same room, null if the header has no aggregates
      */
-    private static void addInstances(ArrayList<DataPoint> dataPoints, Instances data) throws InvalidRoomException {
+    private static void addInstances(ArrayList<DataPoint> dataPoints, Instances data, FeatureWindow window) throws InvalidRoomException {
         double[] instanceValues;
+        String room = null;
         for (DataPoint dataPoint : dataPoints) {
-            instanceValues = getInstanceValues(data, dataPoint);
-            data.add(new DenseInstance(1.0, instanceValues));
+            if (window != null) {
+                // the scans of different rooms must not be mixed
+                if (!dataPoint.getRoom().equals(room))
+                    window.reset();
+                room = dataPoint.getRoom();
+                window.add(dataPoint);
+            }
+            instanceValues = fillInstanceValues(data, dataPoint, window, new double[data.numAttributes()]);
+            data.add(createInstance(data, instanceValues));
         }
     }
 
     /**
-     * Copies all the information from the datapoint to the instance values array and returns it.
+     * Checks if the given header contains the attributes aggregating the last scans (see FeatureWindow).
      *
-     * @param data
-     * @param dataPoint
+     * @param header
      * @return
-     * @throws InvalidRoomException
      */
-    private static double[] getInstanceValues(Instances data, DataPoint dataPoint) throws InvalidRoomException {
-        double[] instanceValues;
-        instanceValues = new double[data.numAttributes()];
-        int index = 0;
+    public static boolean hasAggregates(Instances header) {
+        return header.attribute("ambientTemperature" + AGGREGATES[0]) != null;
+    }
 
+    /**
+     * Gets the number of rss values of every row of the given header.
+     *
+     * @param header
+     * @return
+     */
+    public static int getNumberOfRssValues(Instances header) {
+        int numberOfFeatureAttributes = header.numAttributes() - FIRST_RSS_INDEX;
+        if (!hasAggregates(header))
+            return numberOfFeatureAttributes;
+        // every rss value has its aggregates, the sensors only have aggregates
+        return (numberOfFeatureAttributes - AGGREGATES.length * NUMBER_OF_SENSOR_FEATURES) / (1 + AGGREGATES.length);
+    }
+
+    /**
+     * Checks if the rows of the given header are stored as sparse instances.
+     *
+     * @param header
+     * @return
+     */
+    public static boolean isSparse(Instances header) {
+        return getNumberOfRssValues(header) > MAX_DENSE_RSS_VALUES;
+    }
+
+    /**
+     * Creates a row for the given header. Depending on the number of access points a sparse instance
+     * (without the missing rss values) or a dense instance is created. The instance keeps the values array if it is dense.
+     *
+     * @param header
+     * @param instanceValues one entry per attribute of the header
+     * @return
+     */
+    public static Instance createInstance(Instances header, double[] instanceValues) {
+        if (isSparse(header))
+            // only the values which are not 0 are stored
+            return new SparseInstance(1.0, instanceValues);
+        return new DenseInstance(1.0, instanceValues);
+    }
+
+    /**
+     * Copies all the information from the datapoint to the given instance values array without allocating anything.
+     *
+     * @param data           the header the values belong to
+     * @param dataPoint
+     * @param instanceValues array with one entry per attribute of the header
+     * @return the given instance values array
+     * @throws InvalidRoomException
+     */
+    static double[] fillInstanceValues(Instances data, DataPoint dataPoint, double[] instanceValues) throws InvalidRoomException {
         // room
         int indexOfValue = data.classAttribute().indexOfValue(dataPoint.getRoom());
         if (indexOfValue == -1)
             throw new InvalidRoomException("Invalid Room name");
 
-        instanceValues[index] = indexOfValue;
-        index++;
+        instanceValues[0] = indexOfValue;
+
+        fillFeatureValues(dataPoint, instanceValues, 1);
+        return instanceValues;
+    }
+
+    /**
+     * Copies all the information from the datapoint and the aggregates of the window to the given instance values array
+     * without allocating anything.
+     *
+     * @param data           the header the values belong to
+     * @param dataPoint
+     * @param window         the window the data point has already been added to, null if the header has no aggregates
+     * @param instanceValues array with one entry per attribute of the header
+     * @return the given instance values array
+     * @throws InvalidRoomException
+     */
+    static double[] fillInstanceValues(Instances data, DataPoint dataPoint, FeatureWindow window, double[] instanceValues) throws InvalidRoomException {
+        fillInstanceValues(data, dataPoint, instanceValues);
+        if (window != null)
+            fillAggregateValues(window, instanceValues, FIRST_RSS_INDEX + dataPoint.getRssData().size());
+        return instanceValues;
+    }
+
+    /**
+     * Copies the aggregates of the sensor and rss features of the window to the given array without allocating anything.
+     * The location features are not aggregated. The aggregates are in the same order as the aggregate attributes.
+     *
+     * @param window
+     * @param instanceValues
+     * @param offset         the index of the first aggregate in the array
+     */
+    static void fillAggregateValues(FeatureWindow window, double[] instanceValues, int offset) {
+        int index = offset;
+        for (int channel = 0; channel < window.getNumberOfChannels(); channel++) {
+            if (isLocationFeature(channel))
+                continue;
+            instanceValues[index++] = window.getMean(channel);
+            instanceValues[index++] = window.getVariance(channel);
+            instanceValues[index++] = window.getMin(channel);
+            instanceValues[index++] = window.getMax(channel);
+        }
+    }
+
+    /**
+     * Gets the number of aggregates filled by fillAggregateValues for the given window.
+     *
+     * @param window
+     * @return
+     */
+    static int getNumberOfAggregateValues(FeatureWindow window) {
+        if (window.getNumberOfChannels() <= 0)
+            return 0;
+        return AGGREGATES.length * (window.getNumberOfChannels() - NUMBER_OF_LOCATION_FEATURES);
+    }
+
+    /**
+     * Gets the number of features (all the attributes except the room) of the data point.
+     *
+     * @param dataPoint
+     * @return
+     */
+    static int getNumberOfFeatures(DataPoint dataPoint) {
+        return FIRST_RSS_INDEX - 1 + dataPoint.getRssData().size();
+    }
+
+    /**
+     * Copies the features of the data point (everything except the room) to the given array without allocating anything.
+     * The features are in the same order as the attributes after the room.
+     *
+     * @param dataPoint
+     * @param instanceValues
+     * @param offset         the index of the first feature in the array
+     */
+    static void fillFeatureValues(DataPoint dataPoint, double[] instanceValues, int offset) {
+        int index = offset;
 
 
         // sensors
@@ -556,38 +918,43 @@ public class WekaHelper {
         index++;
 
         // rss values
-        ArrayList<Integer> values = dataPoint.getRssData().getValues();
-        for (int i = 0; i < values.size(); i++) {
-            instanceValues[index] = values.get(i);
+        RSSData rssData = dataPoint.getRssData();
+        for (int i = 0; i < rssData.size(); i++) {
+            instanceValues[index] = rssData.getValue(i);
             index++;
         }
+    }
 
-            /*
-            // rss mean
-            instanceValues[index] = dataPoint.getRssData().getMean();
-            index++;
+    private static boolean isLocationFeature(int feature) {
+        return feature >= NUMBER_OF_SENSOR_FEATURES && feature < NUMBER_OF_SENSOR_FEATURES + NUMBER_OF_LOCATION_FEATURES;
+    }
 
-            // rss variances
-            for (int i = 0; i < dataPoint.getRssData().getVariances().size(); i++) {
-                instanceValues[index] = dataPoint.getRssData().getVariances().get(i);
-                index++;
-            }
-            */
-        return instanceValues;
+    /**
+     * Builds the header of the arff file for the given rooms and number of rss values.
+     * The order of the attributes is the same as the order of the values in fillInstanceValues.
+     *
+     * @param rooms
+     * @param numberOfRssValues
+     * @return
+     */
+    @NonNull
+    public static ArrayList<Attribute> buildAttributes(ArrayList<String> rooms, int numberOfRssValues) {
+        return buildAttributes(rooms, numberOfRssValues, false);
     }
 
     /**
      * Builds the header of the arff file later used as training or testing data.
      * For each feature an attribute is added. The final arff file has as many columns as it has attributes.
-     * The class attribute is the first attribute.
+     * The class attribute is the first attribute. Optionally every sensor and rss feature gets the attributes
+     * aggregating it over the last scans (mean, variance, min and max) at the end.
      *
-     * @param dataPoints
+     * @param rooms
+     * @param numberOfRssValues
+     * @param aggregates
      * @return
      */
     @NonNull
-    private static ArrayList<Attribute> buildAttributes(ArrayList<DataPoint> dataPoints) {
-        ArrayList<String> rooms = getRooms(dataPoints);
-
+    public static ArrayList<Attribute> buildAttributes(ArrayList<String> rooms, int numberOfRssValues, boolean aggregates) {
         // rooms + number of rss + number of sensors
         //int numberOfAttributes = 1 + CollectDataActivity.NUMBER_OF_ACCESS_POINTS + CollectDataActivity.NUMBER_OF_SENSORS;
         ArrayList<Attribute> attributes = new ArrayList<>();
@@ -618,17 +985,19 @@ public class WekaHelper {
         attributes.add(new Attribute("longitude", Attribute.NUMERIC));
 
         // rss values
-        for (int i = 0; i < dataPoints.get(0).getRssData().getValues().size(); i++)
+        for (int i = 0; i < numberOfRssValues; i++)
             attributes.add(new Attribute("rssValue" + i, Attribute.NUMERIC));
 
-        /*
-        // rss mean
-        attributes.add(new Attribute("mean", Attribute.NUMERIC));
-
-        // rss variances
-        for (int i = 0; i < dataPoints.get(0).getRssData().getVariances().size(); i++)
-            attributes.add(new Attribute("rssVariance" + i, Attribute.NUMERIC));
-        */
+        // aggregates of the sensors and the rss values
+        if (aggregates) {
+            int numberOfFeatures = attributes.size();
+            for (int i = 1; i < numberOfFeatures; i++) {
+                if (isLocationFeature(i - 1))
+                    continue;
+                for (String aggregate : AGGREGATES)
+                    attributes.add(new Attribute(attributes.get(i).name() + aggregate, Attribute.NUMERIC));
+            }
+        }
 
         return attributes;
     }
@@ -6,9 +6,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
-import android.util.Log;
+import android.os.Handler;
+import android.os.HandlerThread;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.List;
 
 import ch.joelniklaus.indoloc.models.RSSData;
@@ -18,242 +19,220 @@ import static android.content.Context.WIFI_SERVICE;
 /**
  * Reads and prepares rss values from specified nearby access points.
  * <p>
+ * The scanning is driven by the scan results broadcast only: the receiver runs on its own thread,
+ * adds the rss values of the access points of the site to the rss history and starts the next scan.
+ * If a scan cannot be started or its results never arrive, a watchdog on the scan thread starts it again,
+ * so the scanning never stops while the listeners are registered.
+ * Reading the wifi data only samples the latest values from the history, so it never waits for a scan.
+ * An access point which has not been seen in the last scans is missing again (0), so the readings do not keep
+ * the values of access points which are out of reach.
+ * The access points of the site are configured in a file in the assets (see AccessPointIndex).
+ * A dynamic site adds every new access point to the index and saves the index on the scan thread right away,
+ * so the slots of the data points collected so far are kept even if the app is killed.
+ * <p>
  * Created by joelniklaus on 19.12.16.
  */
 public class WifiHelper extends AbstractHelper {
 
+    /**
+     * The number of access points if the site config does not specify it.
+     */
+    public static final int NUMBER_OF_ACCESS_POINTS = 10;
+    public static final int HISTORY_SIZE = 16;
+    /**
+     * The number of scans in a row without an access point after which its rss value is missing (0).
+     */
+    public static final int SCANS_UNTIL_MISSING = 2;
+    /**
+     * The time after which a scan is started again if starting it failed.
+     */
+    public static final long SCAN_RETRY_MILLIS = 1000;
+    /**
+     * The time after which a scan is started again if its results have not arrived.
+     */
+    public static final long SCAN_TIMEOUT_MILLIS = 10000;
+    public static final String SITE_CONFIG = "sites/rickenbach.txt";
+
     private final Context context;
+    private final FileHelper fileHelper;
 
     private WifiReceiver wifiReceiver;
     private WifiManager wifiManager;
+    private HandlerThread scanThread;
+    private Handler scanHandler;
+    private volatile boolean scanning = false;
+
+    private final Runnable scanWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            startScan();
+        }
+    };
 
-    private ArrayList<Integer> rssList = new ArrayList<>(NUMBER_OF_ACCESS_POINTS);
-    public static final int NUMBER_OF_ACCESS_POINTS = 10;
+    private AccessPointIndex accessPointIndex = new AccessPointIndex(NUMBER_OF_ACCESS_POINTS);
+    private RssHistory rssHistory = new RssHistory(NUMBER_OF_ACCESS_POINTS, HISTORY_SIZE);
 
     public WifiHelper(Context context) {
         this.context = context;
+        this.fileHelper = new FileHelper(context);
     }
 
     /**
-     * Sets up the wifi manager and the wifi receiver. Has to be called before reading data.
+     * Sets up the wifi manager, the wifi receiver and its thread and loads the access points of the site. Has to be called before reading data.
      */
     public void setUp() {
         wifiManager = (WifiManager) context.getApplicationContext().getSystemService(WIFI_SERVICE);
         wifiReceiver = new WifiReceiver();
-        for (int i = 0; i < NUMBER_OF_ACCESS_POINTS; i++)
-            rssList.add(i, 0);
+        // the thread is kept for the lifetime of the helper, so the index is never used by two threads
+        scanThread = new HandlerThread("WifiScan");
+        scanThread.start();
+        scanHandler = new Handler(scanThread.getLooper());
+        try {
+            accessPointIndex = fileHelper.loadAccessPointIndex(SITE_CONFIG, NUMBER_OF_ACCESS_POINTS);
+        } catch (IOException e) {
+            e.printStackTrace();
+            alert("Could not load the access points of the site from " + SITE_CONFIG + ", the access points are added as they are seen");
+            accessPointIndex = new AccessPointIndex(NUMBER_OF_ACCESS_POINTS, true);
+        }
+        rssHistory = new RssHistory(accessPointIndex.getNumberOfSlots(), HISTORY_SIZE);
+    }
+
+    /**
+     * Stops the scan thread after it has handled the pending work (e.g. saving the dynamic index).
+     * The helper cannot be used anymore afterwards.
+     */
+    public void shutDown() {
+        if (scanThread != null)
+            scanThread.quitSafely();
     }
 
     /**
-     * Registers the receiver. Has to be called before reading data.
+     * Gets the number of rss values of every reading. Only valid after setUp.
+     *
+     * @return
+     */
+    public int getNumberOfAccessPoints() {
+        return accessPointIndex.getNumberOfSlots();
+    }
+
+    /**
+     * Registers the receiver on the scan thread and starts the first scan. Has to be called before reading data.
      */
     public void registerListeners() {
-        context.registerReceiver(wifiReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        context.registerReceiver(wifiReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, scanHandler);
+        scanning = true;
+        scanHandler.post(scanWatchdog);
     }
 
     /**
-     * Unregisters the receiver. Should be called after reading data.
+     * Unregisters the receiver and stops the scanning. Should be called after reading data.
+     * A dynamic index is saved again on the scan thread, which is the only one using it, in case saving it failed before.
      */
     public void unRegisterListeners() {
         context.unregisterReceiver(wifiReceiver);
+        scanning = false;
+        scanHandler.removeCallbacks(scanWatchdog);
+        if (accessPointIndex.isDynamic())
+            scanHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    saveAccessPointIndex(accessPointIndex);
+                }
+            });
     }
 
     /**
-     * Reads the wifi signals and returns a list with one rss value per access point which has been registered.
+     * Starts the next scan and posts the watchdog, which starts it again soon if starting failed
+     * (e.g. the wifi is busy or the scans are throttled) or later if the results never arrive.
+     * Must only be called on the scan thread.
+     */
+    private void startScan() {
+        scanHandler.removeCallbacks(scanWatchdog);
+        if (!scanning)
+            return;
+        boolean started = wifiManager.startScan();
+        scanHandler.postDelayed(scanWatchdog, started ? SCAN_TIMEOUT_MILLIS : SCAN_RETRY_MILLIS);
+    }
+
+    /**
+     * Saves the dynamic index. Must only be called on the scan thread.
      *
-     * @param intent
-     * @return
+     * @param accessPointIndex
      */
-    public RSSData readWifiData(Intent intent) {
-        wifiManager.startScan();
-        wifiReceiver.onReceive(context, intent);
-        //System.out.println(Arrays.toString(rssList.toArray()));
-        if (rssList == null) {
-            Log.w(getTag(), "Rss list is null");
+    private void saveAccessPointIndex(AccessPointIndex accessPointIndex) {
+        try {
+            fileHelper.saveAccessPointIndex(SITE_CONFIG, accessPointIndex);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return new RSSData(rssList);
     }
 
     /**
-     * Inner class used to scan the network. Receives the rss signals.
-     * In the switch statement the access points which matter can be specified.
+     * Returns a list with the latest rss value per access point which has been registered
+     * (0 if it has not been seen in the last SCANS_UNTIL_MISSING scans).
+     *
+     * @return
+     */
+    public RSSData readWifiData() {
+        RSSData rssData = new RSSData(getNumberOfAccessPoints());
+        readWifiData(rssData);
+        return rssData;
+    }
+
+    /**
+     * Writes the latest rss value per access point into the given rss data (0 if it has not been seen in the last SCANS_UNTIL_MISSING scans),
+     * so that no new objects have to be created for every reading.
+     * Never blocks the scan thread.
+     *
+     * @param target has to have getNumberOfAccessPoints values
+     */
+    public void readWifiData(RSSData target) {
+        RssHistory rssHistory = this.rssHistory;
+        for (int i = 0; i < rssHistory.getNumberOfSlots(); i++)
+            target.setValue(i, rssHistory.getLatest(i, 0, SCANS_UNTIL_MISSING));
+    }
+
+    /**
+     * Gets the recent rss values of every access point.
+     *
+     * @return
+     */
+    public RssHistory getRssHistory() {
+        return rssHistory;
+    }
+
+    /**
+     * Gets the number of scan results received since the start.
+     *
+     * @return
+     */
+    public long getNumberOfScans() {
+        return rssHistory.getNumberOfScans();
+    }
+
+    /**
+     * Inner class used to scan the network. Receives the rss signals of the access points of the site
+     * and starts the next scan right away (see startScan).
      */
     public class WifiReceiver extends BroadcastReceiver {
 
         public void onReceive(Context c, Intent intent) {
             List<ScanResult> scanResults = wifiManager.getScanResults();
+            AccessPointIndex accessPointIndex = WifiHelper.this.accessPointIndex;
+            int usedSlots = accessPointIndex.getNumberOfUsedSlots();
 
-            // search by MAC address or Network Name
             for (int i = 0; i < scanResults.size(); i++) {
                 ScanResult scanResult = scanResults.get(i);
-                int level = scanResult.level;
-
-/* Eigerstrasse
-                switch (scanResult.BSSID) {
-                    case "38:10:d5:0e:1f:25":
-                        rssList.set(0, level);
-                        break;
-                    case "b4:ee:b4:60:fa:60":
-                        rssList.set(1, level);
-                        break;
-                    case "0e:18:d6:97:0c:8e":
-                        rssList.set(2, level);
-                        break;
-                    case "82:2a:a8:17:34:b3":
-                        rssList.set(3, level);
-                        break;
-                    case "14:49:e0:c9:ef:80":
-                        rssList.set(4, level);
-                        break;
-                    case "56:67:51:ea.91:85":
-                        rssList.set(5, level);
-                        break;
-                    case "c4:27:95:89:f3:5a":
-                        rssList.set(6, level);
-                        break;
-                    case "14:49:e0:c9:ef:88":
-                        rssList.set(7, level);
-                        break;
-                }
- */
-
- /* CDS
-                switch (scanResult.SSID) {
-                    case "ap1":
-                        rssList.set(0, level);
-                        break;
-                    case "ap2":
-                        rssList.set(1, level);
-                        break;
-                    case "ap3":
-                        rssList.set(2, level);
-                        break;
-                    case "ap4":
-                        rssList.set(3, level);
-                        break;
-                    case "ap5":
-                        rssList.set(4, level);
-                        break;
-                    case "APL1":
-                        rssList.set(5, level);
-                        break;
-                    case "APL3":
-                        rssList.set(6, level);
-                        break;
-                    case "Swisscom_Auto_Login":
-                        rssList.set(7, level);
-                        break;
-                    case "eduroam":
-                        rssList.set(8, level);
-                        break;
-                    case "public-unibe":
-                        rssList.set(9, level);
-                        break;
-                }
-*/
-
- /* Rickenbach*/
-                switch (scanResult.SSID) {
-                    case "jxx-10375":
-                        rssList.set(0, level);
-                        break;
-                    case "Phone not found":
-                        rssList.set(1, level);
-                        break;
-                    case "2":
-                        rssList.set(2, level);
-                        break;
-                    case "3":
-                        rssList.set(3, level);
-                        break;
-                    case "4":
-                        rssList.set(4, level);
-                        break;
-                    case "5":
-                        rssList.set(5, level);
-                        break;
-                    case "6":
-                        rssList.set(6, level);
-                        break;
-                    case "7":
-                        rssList.set(7, level);
-                        break;
-                    case "8":
-                        rssList.set(8, level);
-                        break;
-                    case "9":
-                        rssList.set(9, level);
-                        break;
-                }
-
-                 /* Exeter James Owen Court
-                switch (scanResult.BSSID) {
-                    case "00:c0:49:d8:db:e6": // University of Exeter
-                        rssList.set(0, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "00:18:e7:c7:cb:88": // Graphene Centre
-                        rssList.set(1, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "04:da:d2:9d:0a:c0": // Studentcom
-                        rssList.set(2, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "04:da:d2:9d:0a:cf": // Studentcom
-                        rssList.set(3, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "b4:e9:b0:a6:40:50": // Studentcom
-                        rssList.set(4, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "04:da:d2:9c:a9:d0": // Studentcom
-                        rssList.set(5, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "04:da:d2:9c:a9:d2": // eduroam
-                        rssList.set(6, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                    case "b4:e9:b0:a6:40:52": // eduroam
-                        rssList.set(7, level);
-                        //System.out.println(i + " Name: "+scanResult.SSID +", MAC: "+ scanResult.BSSID +", Level: "+ level);
-                        break;
-                }
-*/
-
-                /* Exeter University Campus
-
-                switch (scanResult.SSID) {
-                    case "eduroam":
-                        rssList.set(0, level);
-                        break;
-                    case "UoE_Open":
-                        rssList.set(1, level);
-                        break;
-                    case "UoE_Guest":
-                        rssList.set(2, level);
-                        break;
-                    case "3":
-                        rssList.set(3, level);
-                        break;
-                    case "4":
-                        rssList.set(4, level);
-                        break;
-                    case "5":
-                        rssList.set(5, level);
-                        break;
-                    case "6":
-                        rssList.set(6, level);
-                        break;
-                    case "7":
-                        rssList.set(7, level);
-                        break;
-                }
-                */
+                int slot = accessPointIndex.getOrAddSlot(scanResult.BSSID, scanResult.SSID);
+                if (slot != AccessPointIndex.NO_SLOT)
+                    rssHistory.add(slot, scanResult.level);
             }
+            rssHistory.endScan();
+            // the rows collected from now on depend on the new slots
+            if (accessPointIndex.getNumberOfUsedSlots() != usedSlots)
+                saveAccessPointIndex(accessPointIndex);
+
+            startScan();
         }
     }
 }
-
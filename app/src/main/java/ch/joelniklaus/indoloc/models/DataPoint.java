@@ -10,6 +10,9 @@ import java.io.Serializable;
 
 public class DataPoint implements Serializable {
 
+    // the same as the older versions, so saved data points can still be loaded
+    private static final long serialVersionUID = 5713162115360556889L;
+
     private String room;
     private RSSData rssData;
     private SensorData sensorData;
@@ -22,6 +25,19 @@ public class DataPoint implements Serializable {
         this.locationData = locationData;
     }
 
+    /**
+     * Copies all the values of the given data point into this one without allocating (the room string is shared).
+     * Used to reuse data points instead of creating new ones for every sensor event.
+     *
+     * @param other
+     */
+    public void copyFrom(DataPoint other) {
+        room = other.room;
+        sensorData.copyFrom(other.sensorData);
+        rssData.copyFrom(other.rssData);
+        locationData.copyFrom(other.locationData);
+    }
+
     public String getRoom() {
         return room;
     }
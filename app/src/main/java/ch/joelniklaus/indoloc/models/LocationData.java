@@ -10,6 +10,9 @@ import java.io.Serializable;
 
 public class LocationData implements Serializable {
 
+    // the same as the older versions, so saved data points can still be loaded
+    private static final long serialVersionUID = -992976118184955460L;
+
     private double latitude, longitude;
 
     public LocationData(double latitude, double longitude) {
@@ -17,6 +20,21 @@ public class LocationData implements Serializable {
         this.longitude = longitude;
     }
 
+    /**
+     * Overwrites the location.
+     *
+     * @param latitude
+     * @param longitude
+     */
+    public void set(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public void copyFrom(LocationData other) {
+        set(other.latitude, other.longitude);
+    }
+
     public double getLatitude() {
         return latitude;
     }
@@ -1,7 +1,13 @@
 package ch.joelniklaus.indoloc.models;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -11,12 +17,17 @@ import java.util.List;
 /**
  * Data object containing all the received signal strengths of the scanned access points of one data point.
  * Upon initialization also computes the mean and the variances of the received values.
+ * The values are kept in a primitive array which can be overwritten, so the objects can be reused without creating garbage.
  * <p>
  * Created by joelniklaus on 11.11.16.
  */
 public class RSSData implements Serializable {
 
-    private ArrayList<Integer> values;
+    // the serialized form of the older versions storing the values in an ArrayList, so saved data points can still be loaded
+    private static final long serialVersionUID = -6367284378223054297L;
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("values", ArrayList.class)};
+
+    private int[] values;
 
     //private double mean;
 
@@ -24,22 +35,77 @@ public class RSSData implements Serializable {
 
 
     public RSSData() {
+        this(0);
+    }
 
+    /**
+     * Creates rss data with the given number of values, all set to 0.
+     *
+     * @param size
+     */
+    public RSSData(int size) {
+        this.values = new int[size];
+    }
+
+    public RSSData(int[] values) {
+        this.values = values.clone();
     }
 
     public RSSData(ArrayList<Integer> values) {
-        this.values = new ArrayList<>(values);
+        this.values = new int[values.size()];
+        for (int i = 0; i < values.size(); i++)
+            this.values[i] = values.get(i);
         /*this.values = computeRelativeRSSValues(values); // should solve hardware differences
         this.mean = mean(values);
         this.variances = variances(mean, values);*/
     }
 
+    /**
+     * Gets a copy of the values as a list. Boxes every value, so use size and getValue where possible.
+     *
+     * @return
+     */
     public ArrayList<Integer> getValues() {
-        return values;
+        ArrayList<Integer> list = new ArrayList<>(values.length);
+        for (int value : values)
+            list.add(value);
+        return list;
     }
 
     public void setValues(ArrayList<Integer> values) {
-        this.values = values;
+        this.values = new RSSData(values).values;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    public void setValue(int index, int value) {
+        values[index] = value;
+    }
+
+    /**
+     * Copies the given values into this object. Only allocates if the number of values has changed.
+     *
+     * @param source
+     */
+    public void setValues(int[] source) {
+        if (values.length != source.length)
+            values = new int[source.length];
+        System.arraycopy(source, 0, values, 0, source.length);
+    }
+
+    /**
+     * Copies the values of the given rss data into this object.
+     *
+     * @param other
+     */
+    public void copyFrom(RSSData other) {
+        setValues(other.values);
     }
 
     /*
@@ -113,19 +179,35 @@ public class RSSData implements Serializable {
 
         RSSData rssData = (RSSData) o;
 
-        return values.equals(rssData.values);
+        return Arrays.equals(values, rssData.values);
 
     }
 
     @Override
     public int hashCode() {
-        return values.hashCode();
+        // the same as the hash code of the list of the values
+        return Arrays.hashCode(values);
     }
 
     @Override
     public String toString() {
         return "RSSData{" +
-                "values=" + values +
+                "values=" + Arrays.toString(values) +
                 '}';
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.putFields().put("values", getValues());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ArrayList<?> list = (ArrayList<?>) in.readFields().get("values", null);
+        values = new int[list == null ? 0 : list.size()];
+        for (int i = 0; i < values.length; i++) {
+            if (!(list.get(i) instanceof Integer))
+                throw new InvalidObjectException("The rss values have to be integers");
+            values[i] = (Integer) list.get(i);
+        }
+    }
 }
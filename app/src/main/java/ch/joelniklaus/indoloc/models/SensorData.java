@@ -8,12 +8,17 @@ import java.util.Arrays;
 /**
  * Data object containing all the measured sensor data of one data point.
  * At the moment only the magnetic field is measured.
+ * The objects can be overwritten with new measurements using set, which reuses all the arrays,
+ * so the sensor callbacks do not create any garbage.
  * <p>
  * Created by joelniklaus on 11.11.16.
  */
 
 public class SensorData implements Serializable {
 
+    // the same as the older versions, so saved data points can still be loaded
+    private static final long serialVersionUID = 3745460441154422282L;
+
     private float ambientTemperature, light, pressure, relativeHumidity;
     private float geomagneticMagnitude, gravityMagnitude, magneticYProcessedOld, magneticZProcessedOld;
     private float[] gravity, magnetic;
@@ -44,25 +49,80 @@ public class SensorData implements Serializable {
     }
 
     public SensorData(float ambientTemperature, float light, float pressure, float relativeHumidity, float[] gravity, float[] magnetic) {
+        set(ambientTemperature, light, pressure, relativeHumidity, gravity, magnetic);
+    }
+
+    /**
+     * Overwrites this object with new measurements and computes the derived values again.
+     * The gravity and magnetic values are copied, so the given arrays can be changed afterwards.
+     *
+     * @param ambientTemperature
+     * @param light
+     * @param pressure
+     * @param relativeHumidity
+     * @param gravity
+     * @param magnetic
+     */
+    public void set(float ambientTemperature, float light, float pressure, float relativeHumidity, float[] gravity, float[] magnetic) {
         this.ambientTemperature = ambientTemperature;
         this.light = light;
         this.pressure = pressure;
         this.relativeHumidity = relativeHumidity;
-        this.gravity = gravity;
-        this.magnetic = magnetic;
+        this.gravity = copy(gravity, this.gravity);
+        this.magnetic = copy(magnetic, this.magnetic);
+        gravity = this.gravity;
+        magnetic = this.magnetic;
         if (!SensorManager.getRotationMatrix(rotation, inclination, gravity, magnetic))
             System.out.println("Could not compute inclination and rotation matrices.");
         computeMagneticProcessedOld(magnetic);
         this.gravityMagnitude = rotation[6] * gravity[0] + rotation[7] * gravity[1] + rotation[8] * gravity[2]; // Z-Direction
-        float[] rotInc = multiplyMatrix(inclination, rotation);
-        this.geomagneticMagnitude = rotInc[3] * magnetic[0] + rotInc[4] * magnetic[1] + rotInc[5] * magnetic[2]; // Y-Direction (To Magnetic North Pole)
+        // only the second row of inclination * rotation is needed
+        float rotInc3 = inclination[3] * rotation[0] + inclination[4] * rotation[3] + inclination[5] * rotation[6];
+        float rotInc4 = inclination[3] * rotation[1] + inclination[4] * rotation[4] + inclination[5] * rotation[7];
+        float rotInc5 = inclination[3] * rotation[2] + inclination[4] * rotation[5] + inclination[5] * rotation[8];
+        this.geomagneticMagnitude = rotInc3 * magnetic[0] + rotInc4 * magnetic[1] + rotInc5 * magnetic[2]; // Y-Direction (To Magnetic North Pole)
+    }
+
+    /**
+     * Copies all the values of the given sensor data into this object without allocating.
+     *
+     * @param other
+     */
+    public void copyFrom(SensorData other) {
+        ambientTemperature = other.ambientTemperature;
+        light = other.light;
+        pressure = other.pressure;
+        relativeHumidity = other.relativeHumidity;
+        geomagneticMagnitude = other.geomagneticMagnitude;
+        gravityMagnitude = other.gravityMagnitude;
+        magneticYProcessedOld = other.magneticYProcessedOld;
+        magneticZProcessedOld = other.magneticZProcessedOld;
+        gravity = copy(other.gravity, gravity);
+        magnetic = copy(other.magnetic, magnetic);
+        rotation = copy(other.rotation, rotation);
+        inclination = copy(other.inclination, inclination);
+    }
+
+    /**
+     * Copies the source into the target. Only allocates if the target does not have the right size.
+     *
+     * @param source
+     * @param target
+     * @return the target or the new array
+     */
+    private static float[] copy(float[] source, float[] target) {
+        if (source == null)
+            return null;
+        if (target == null || target.length != source.length)
+            target = new float[source.length];
+        System.arraycopy(source, 0, target, 0, source.length);
+        return target;
     }
 
     private void computeMagneticProcessedOld(float[] magnetic) {
-        float[] magneticFingerprint = new float[3];
-        magneticFingerprint[0] = rotation[0] * magnetic[0] + rotation[1] * magnetic[1] + rotation[2] * magnetic[2];
-        magneticFingerprint[1] = rotation[3] * magnetic[0] + rotation[4] * magnetic[1] + rotation[5] * magnetic[2];
-        magneticFingerprint[2] = rotation[6] * magnetic[0] + rotation[7] * magnetic[1] + rotation[8] * magnetic[2];
+        // the x-value of the magnetic fingerprint should always be 0, so only y and z are computed
+        float magneticY = rotation[3] * magnetic[0] + rotation[4] * magnetic[1] + rotation[5] * magnetic[2];
+        float magneticZ = rotation[6] * magnetic[0] + rotation[7] * magnetic[1] + rotation[8] * magnetic[2];
 
         // round the values to the sensors accuracy.
         // Does not work like this because this reports the accuracy level the sensor is working with between -1 and 3.
@@ -73,14 +133,12 @@ public class SensorData implements Serializable {
         // TODO Round as an analysing tool.
        /*
         float accuracy = 0.2f;
-        magneticFingerprint[0] = round(magneticFingerprint[0], accuracy); // x-value: should always be 0
-        //assertion(magneticFingerprint[0] == 0.0);
-        magneticFingerprint[1] = round(magneticFingerprint[1], accuracy); // y-value
-        magneticFingerprint[2] = round(magneticFingerprint[2], accuracy); // z-value
+        magneticY = round(magneticY, accuracy); // y-value
+        magneticZ = round(magneticZ, accuracy); // z-value
         */
         // set values
-        this.magneticYProcessedOld = magneticFingerprint[1];
-        this.magneticZProcessedOld = magneticFingerprint[2];
+        this.magneticYProcessedOld = magneticY;
+        this.magneticZProcessedOld = magneticZ;
     }
 
     /**
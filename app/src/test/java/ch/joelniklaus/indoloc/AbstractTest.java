@@ -4,6 +4,7 @@ import android.support.annotation.NonNull;
 
 import org.junit.Before;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Random;
 
@@ -59,6 +60,7 @@ public abstract class AbstractTest {
 
     public static final String ASSETS_PATH = "/Users/joelniklaus/Google Drive/Studium/Bachelor/Informatik/Bachelorarbeit/Code/IndoLoc/app/src/main/assets/";
     public static final String ENDING = ".arff";
+    public static final File CACHE_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "indoloc");
 
     @Before
     public void setUp() throws Exception, CouldNotLoadArffException {
@@ -105,7 +107,8 @@ public abstract class AbstractTest {
      * @throws CouldNotLoadArffException
      */
     protected Instances loadFile(String fileName) throws Exception, CouldNotLoadArffException {
-        Instances data = fileHelper.loadArff(getFilePath(fileName));
+        // the binary copy in the cache directory is loaded much faster than the arff file
+        Instances data = fileHelper.loadArffCached(getFilePath(fileName), CACHE_DIRECTORY);
         //data = WekaHelper.removeDuplicates(data);
         // prepare data
         int seed = 0;       // the seed for randomizing the data
@@ -126,11 +129,24 @@ public abstract class AbstractTest {
     }
 
     /**
-     * Here the classifiers to be tested can be specified. The parametrization of the classifiers also happens here.
+     * Adds the classifiers to be tested.
      *
      * @throws Exception
      */
     private void addClassifiers() throws Exception {
+        classifiers.addAll(createClassifiers());
+    }
+
+    /**
+     * Here the classifiers to be tested can be specified. The parametrization of the classifiers also happens here.
+     * Also used by the benchmarks, so they measure the same configurations.
+     *
+     * @return the untrained classifiers
+     * @throws Exception
+     */
+    public static ArrayList<Classifier> createClassifiers() throws Exception {
+        ArrayList<Classifier> classifiers = new ArrayList<>();
+
         /* ==============================
         Functions
         ============================== */
@@ -249,6 +265,8 @@ public abstract class AbstractTest {
         mlp.setTrainingTime(50);
         mlp.setHiddenLayers("3");
         classifiers.add(mlp);
+
+        return classifiers;
     }
 
     /**
@@ -299,11 +317,7 @@ public abstract class AbstractTest {
      * @throws Exception
      */
     protected Evaluation trainTestClassifier(Classifier classifier, Instances train, Instances test) throws Exception {
-        classifier.buildClassifier(train);
-        Evaluation evaluation = new Evaluation(train);
-        evaluation.evaluateModel(classifier, test);
-
-        return evaluation;
+        return WekaHelper.evaluateBatch(train, test, classifier);
     }
 
     /**
@@ -328,7 +342,7 @@ public abstract class AbstractTest {
 
             // build and evaluate classifier
             classifier.buildClassifier(train);
-            evaluation.evaluateModel(classifier, test);
+            evaluation.evaluateModel(WekaHelper.toBatchClassifier(classifier), test);
         }
 
         /*
@@ -414,8 +428,8 @@ public abstract class AbstractTest {
             // mean testing time per instance
             testTimeSum += timer.timeElapsedMicroS() / test.numInstances();
         }
-        // Evaluation
-        Evaluation evaluation = WekaHelper.evaluate(train, test, classifier);
+        // Evaluation, not timed
+        Evaluation evaluation = WekaHelper.evaluateBatch(train, test, classifier);
 
         double meanTrainTime = trainTimeSum / NUMBER_OF_TEST_ROUNDS;
         double meanTestTime = testTimeSum / NUMBER_OF_TEST_ROUNDS;
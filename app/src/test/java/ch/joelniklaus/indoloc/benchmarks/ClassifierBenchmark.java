@@ -0,0 +1,131 @@
+package ch.joelniklaus.indoloc.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.BatchClassifier;
+import ch.joelniklaus.indoloc.helpers.CompiledForest;
+import ch.joelniklaus.indoloc.helpers.FileHelper;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Measures the training and the prediction of every classifier configured in AbstractTest on the bundled datasets.
+ * <p>
+ * In contrast to the performance experiments, the classifiers are warmed up first and measured several times in a separate jvm.
+ * Training is measured per model, prediction per instance: the throughput, the latency percentiles (sample time mode)
+ * and with the gc profiler the allocation rate.
+ * The batch prediction is measured per test set.
+ *
+ * @author joelniklaus
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ClassifierBenchmark {
+
+    /**
+     * The directory in the assets containing train.arff and test.arff.
+     */
+    @Param({"thesis/bern/room", "thesis/bern/landmark", "thesis/exeter/landmark", "cds"})
+    public String dataset;
+
+    /**
+     * The simple class name of a classifier created in AbstractTest.createClassifiers.
+     * CompiledForest compiles the RandomForest created there.
+     */
+    @Param({"Logistic", "SMO", "IBk", "NaiveBayes", "J48", "RandomForest", "CompiledForest", "MultilayerPerceptron"})
+    public String classifierName;
+
+    private Instances train;
+    private Instances test;
+    private Classifier untrained;
+    private Classifier trained;
+    private BatchClassifier batchClassifier;
+    private int nextInstance = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception, CouldNotLoadArffException {
+        FileHelper fileHelper = new FileHelper();
+        train = fileHelper.loadArffCached(AbstractTest.ASSETS_PATH + dataset + "/train" + AbstractTest.ENDING, AbstractTest.CACHE_DIRECTORY);
+        test = fileHelper.loadArffCached(AbstractTest.ASSETS_PATH + dataset + "/test" + AbstractTest.ENDING, AbstractTest.CACHE_DIRECTORY);
+
+        boolean compiled = classifierName.equals("CompiledForest");
+        String name = compiled ? "RandomForest" : classifierName;
+        for (Classifier classifier : AbstractTest.createClassifiers())
+            if (classifier.getClass().getSimpleName().equals(name))
+                untrained = classifier;
+        if (untrained == null)
+            throw new IllegalArgumentException("No classifier called " + name + " in AbstractTest.createClassifiers");
+        if (compiled)
+            untrained = new CompiledForest(untrained);
+
+        trained = AbstractClassifier.makeCopy(untrained);
+        trained.buildClassifier(train);
+        batchClassifier = new BatchClassifier(trained);
+    }
+
+    /**
+     * Trains a fresh copy of the classifier on the whole training set.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Classifier train() throws Exception {
+        Classifier classifier = AbstractClassifier.makeCopy(untrained);
+        classifier.buildClassifier(train);
+        return classifier;
+    }
+
+    /**
+     * Classifies the next instance of the test set with the trained classifier.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public double predict() throws Exception {
+        Instance instance = test.instance(nextInstance);
+        nextInstance = (nextInstance + 1) % test.numInstances();
+        return trained.classifyInstance(instance);
+    }
+
+    /**
+     * Classifies the whole test set at once with the batch prediction in parallel chunks.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public double[][] predictBatch() throws Exception {
+        return batchClassifier.distributionsForInstances(test);
+    }
+}
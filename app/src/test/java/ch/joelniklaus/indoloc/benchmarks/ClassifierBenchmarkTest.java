@@ -0,0 +1,76 @@
+package ch.joelniklaus.indoloc.benchmarks;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+
+/**
+ * Runs the classifier, the model loading and the nearest neighbour search benchmarks with JMH. The results are printed and saved as csv to the cache directory.
+ * Single datasets or classifiers can be chosen with the system properties benchmark.dataset and benchmark.classifier,
+ * e.g. -Dbenchmark.dataset=cds -Dbenchmark.classifier=RandomForest.
+ *
+ * @author joelniklaus
+ */
+public class ClassifierBenchmarkTest {
+
+    @Test
+    public void benchmarkPrediction() throws RunnerException {
+        run("predict");
+    }
+
+    @Test
+    public void benchmarkBatchPrediction() throws RunnerException {
+        run("predictBatch");
+    }
+
+    @Test
+    public void benchmarkTraining() throws RunnerException {
+        run("train");
+    }
+
+    @Test
+    public void benchmarkModelLoading() throws RunnerException {
+        run(ModelSerializationBenchmark.class.getName() + ".load$", "load");
+    }
+
+    @Test
+    public void benchmarkNearestNeighbourSearch() throws RunnerException {
+        run(NearestNeighbourBenchmark.class.getName() + ".*", "nearestNeighbours");
+    }
+
+    private void run(String benchmark) throws RunnerException {
+        run(ClassifierBenchmark.class.getName() + "." + benchmark + "$", benchmark);
+    }
+
+    /**
+     * @param include the regular expression of the benchmarks to run
+     * @param name    the name of the result file
+     * @throws RunnerException
+     */
+    private void run(String include, String name) throws RunnerException {
+        AbstractTest.CACHE_DIRECTORY.mkdirs();
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                // the allocation rate per operation
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.CSV)
+                .result(new File(AbstractTest.CACHE_DIRECTORY, "benchmark_" + name + ".csv").getAbsolutePath());
+
+        String dataset = System.getProperty("benchmark.dataset");
+        if (dataset != null)
+            options.param("dataset", dataset);
+        String classifier = System.getProperty("benchmark.classifier");
+        if (classifier != null)
+            options.param("classifierName", classifier);
+
+        new Runner(options.build()).run();
+    }
+}
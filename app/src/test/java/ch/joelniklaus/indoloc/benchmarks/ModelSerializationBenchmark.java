@@ -0,0 +1,109 @@
+package ch.joelniklaus.indoloc.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.CompactModelSerializer;
+import ch.joelniklaus.indoloc.helpers.FileHelper;
+import weka.classifiers.Classifier;
+import weka.core.SerializationHelper;
+
+/**
+ * Compares loading the trained classifiers with java serialization (SerializationHelper)
+ * and with the CompactModelSerializer, uncompressed and compressed.
+ * The models are loaded from memory, so only the decoding is measured. The size of every model is reported
+ * as the secondary result load:modelBytes (see ModelSize).
+ *
+ * @author joelniklaus
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ModelSerializationBenchmark {
+
+    public static final String JAVA = "java";
+    public static final String COMPACT = "compact";
+    public static final String COMPRESSED = "compressed";
+
+    /**
+     * The directory in the assets containing train.arff.
+     */
+    @Param({"thesis/bern/room", "cds"})
+    public String dataset;
+
+    /**
+     * The simple class name of a classifier created in AbstractTest.createClassifiers.
+     */
+    @Param({"RandomForest", "J48", "NaiveBayes", "Logistic", "IBk"})
+    public String classifierName;
+
+    @Param({JAVA, COMPACT, COMPRESSED})
+    public String format;
+
+    private byte[] model;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception, CouldNotLoadArffException {
+        FileHelper fileHelper = new FileHelper();
+        Classifier classifier = null;
+        for (Classifier candidate : AbstractTest.createClassifiers())
+            if (candidate.getClass().getSimpleName().equals(classifierName))
+                classifier = candidate;
+        if (classifier == null)
+            throw new IllegalArgumentException("No classifier called " + classifierName + " in AbstractTest.createClassifiers");
+        classifier.buildClassifier(fileHelper.loadArffCached(AbstractTest.ASSETS_PATH + dataset + "/train" + AbstractTest.ENDING, AbstractTest.CACHE_DIRECTORY));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (format.equals(JAVA))
+            SerializationHelper.write(bytes, classifier);
+        else
+            CompactModelSerializer.write(classifier, bytes, format.equals(COMPRESSED));
+        model = bytes.toByteArray();
+    }
+
+    /**
+     * Reports the size of the serialized model together with the time taken to load it.
+     * The counters are reset before every iteration, so the size is set by the benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ModelSize {
+        public long modelBytes;
+    }
+
+    /**
+     * Loads the trained classifier from its serialized form.
+     *
+     * @param modelSize
+     * @return
+     * @throws Exception
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Classifier load(ModelSize modelSize) throws Exception {
+        modelSize.modelBytes = model.length;
+        ByteArrayInputStream input = new ByteArrayInputStream(model);
+        if (format.equals(JAVA))
+            return (Classifier) SerializationHelper.read(input);
+        return CompactModelSerializer.read(input);
+    }
+}
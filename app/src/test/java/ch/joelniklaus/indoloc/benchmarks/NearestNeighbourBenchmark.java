@@ -0,0 +1,144 @@
+package ch.joelniklaus.indoloc.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.CompiledEuclideanDistance;
+import ch.joelniklaus.indoloc.helpers.FileHelper;
+import ch.joelniklaus.indoloc.helpers.FlatLinearNNSearch;
+import ch.joelniklaus.indoloc.helpers.HnswNNSearch;
+import ch.joelniklaus.indoloc.helpers.IncrementalKDTree;
+import weka.core.Instances;
+import weka.core.neighboursearch.LinearNNSearch;
+
+/**
+ * Measures the k nearest neighbour search of all the instances of the test set in the training set:
+ * one query after the other with LinearNNSearch (with the distance of weka and the CompiledEuclideanDistance)
+ * and FlatLinearNNSearch and all the queries at once
+ * with the parallel batch search of FlatLinearNNSearch. The approximate search of HnswNNSearch is measured
+ * with different beam widths. The insertion of the test set into an IncrementalKDTree is measured as well.
+ *
+ * @author joelniklaus
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NearestNeighbourBenchmark {
+
+    /**
+     * The directory in the assets containing train.arff and test.arff.
+     */
+    @Param({"thesis/bern/room", "cds"})
+    public String dataset;
+
+    @Param({"4"})
+    public int kNN;
+
+    private Instances test;
+    private LinearNNSearch linearSearch;
+    private LinearNNSearch compiledSearch;
+    private FlatLinearNNSearch flatSearch;
+    private HnswNNSearch hnswSearch;
+    private IncrementalKDTree kdTree;
+    private Instances train;
+
+    /**
+     * The beam width of the approximate search.
+     */
+    @Param({"16", "64"})
+    public int efSearch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception, CouldNotLoadArffException {
+        FileHelper fileHelper = new FileHelper();
+        train = fileHelper.loadArffCached(AbstractTest.ASSETS_PATH + dataset + "/train" + AbstractTest.ENDING, AbstractTest.CACHE_DIRECTORY);
+        test = fileHelper.loadArffCached(AbstractTest.ASSETS_PATH + dataset + "/test" + AbstractTest.ENDING, AbstractTest.CACHE_DIRECTORY);
+        linearSearch = new LinearNNSearch(train);
+        compiledSearch = new LinearNNSearch();
+        compiledSearch.setDistanceFunction(new CompiledEuclideanDistance());
+        compiledSearch.setInstances(train);
+        flatSearch = new FlatLinearNNSearch(train);
+        hnswSearch = new HnswNNSearch(train);
+        hnswSearch.setEfSearch(efSearch);
+        kdTree = new IncrementalKDTree(train);
+    }
+
+    @Benchmark
+    public int linear() throws Exception {
+        int neighbours = 0;
+        for (int i = 0; i < test.numInstances(); i++)
+            neighbours += linearSearch.kNearestNeighbours(test.instance(i), kNN).numInstances();
+        return neighbours;
+    }
+
+    @Benchmark
+    public int linearCompiled() throws Exception {
+        int neighbours = 0;
+        for (int i = 0; i < test.numInstances(); i++)
+            neighbours += compiledSearch.kNearestNeighbours(test.instance(i), kNN).numInstances();
+        return neighbours;
+    }
+
+    @Benchmark
+    public int flat() throws Exception {
+        int neighbours = 0;
+        for (int i = 0; i < test.numInstances(); i++)
+            neighbours += flatSearch.kNearestNeighbours(test.instance(i), kNN).numInstances();
+        return neighbours;
+    }
+
+    @Benchmark
+    public FlatLinearNNSearch.Neighbours flatBatch() throws Exception {
+        return flatSearch.kNearestNeighbourIndices(test, kNN);
+    }
+
+    @Benchmark
+    public int hnsw() throws Exception {
+        int neighbours = 0;
+        for (int i = 0; i < test.numInstances(); i++)
+            neighbours += hnswSearch.kNearestNeighbours(test.instance(i), kNN).numInstances();
+        return neighbours;
+    }
+
+    @Benchmark
+    public int kdTree() throws Exception {
+        int neighbours = 0;
+        for (int i = 0; i < test.numInstances(); i++)
+            neighbours += kdTree.kNearestNeighbours(test.instance(i), kNN).numInstances();
+        return neighbours;
+    }
+
+    /**
+     * Builds a tree of the training data and inserts the test set one instance after the other.
+     *
+     * @return
+     * @throws Exception
+     */
+    @Benchmark
+    public IncrementalKDTree kdTreeInsert() throws Exception {
+        Instances data = new Instances(train);
+        IncrementalKDTree tree = new IncrementalKDTree(data);
+        for (int i = 0; i < test.numInstances(); i++) {
+            data.add(test.instance(i));
+            tree.update(data.lastInstance());
+        }
+        return tree;
+    }
+}
@@ -5,6 +5,10 @@ import org.junit.Test;
 import ch.joelniklaus.indoloc.AbstractTest;
 import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
 import ch.joelniklaus.indoloc.helpers.WekaHelper;
+import weka.core.InstanceComparator;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
 
 /**
  * Tests if there is an increase in the accuracy if duplicate datapoints are removed.
@@ -31,4 +35,49 @@ public class DuplicatesTest extends AbstractTest {
         conductPerformanceExperiment(train, test, true);
     }
 
+    /**
+     * Compares the hash based removal of duplicates with the former pairwise comparison on growing datasets.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void compareRemoveDuplicatesPerformance() throws Exception {
+        System.out.println("Instances, Pairwise Time, Hash Time, Unique Instances");
+        for (int copies = 1; copies <= 4; copies *= 2) {
+            Instances data = new Instances(train, train.numInstances() * copies);
+            for (int i = 0; i < copies; i++)
+                data.addAll(train);
+
+            timer.reset();
+            Instances expected = removeDuplicatesPairwise(data);
+            long pairwiseTime = timer.timeElapsedMilliS();
+
+            timer.reset();
+            Instances actual = WekaHelper.removeDuplicates(data);
+            long hashTime = timer.timeElapsedMilliS();
+
+            assertEquals(expected.numInstances(), actual.numInstances());
+            System.out.println(data.numInstances() + ", " + pairwiseTime + " ms, " + hashTime + " ms, " + actual.numInstances());
+        }
+    }
+
+    /**
+     * The former implementation of WekaHelper.removeDuplicates, kept as a reference.
+     *
+     * @param data
+     * @return
+     */
+    private static Instances removeDuplicatesPairwise(Instances data) {
+        Instances newData = new Instances(data);
+        InstanceComparator comparator = new InstanceComparator();
+        for (int i = 0; i < newData.numInstances() - 1; i++) {
+            for (int j = i + 1; j < newData.numInstances(); j++)
+                if (comparator.compare(newData.instance(i), newData.instance(j)) == 0) {
+                    newData.delete(j);
+                    j--;
+                }
+        }
+        return newData;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.FileHelper;
+import ch.joelniklaus.indoloc.models.DataPoint;
+import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
+import ch.joelniklaus.indoloc.models.SensorData;
+import weka.core.Instance;
+import weka.core.InstanceComparator;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Provides the fixtures and helpers which are shared by the unit tests.
+ */
+public abstract class AbstractUnitTest {
+
+    private final InstanceComparator comparator = new InstanceComparator();
+    protected final FileHelper fileHelper = new FileHelper();
+
+    protected Instances loadFile(String fileName) throws Exception, CouldNotLoadArffException {
+        return fileHelper.loadArff(AbstractTest.ASSETS_PATH + fileName + AbstractTest.ENDING);
+    }
+
+    /**
+     * Copies the instances and sets every value but the one of the first attribute missing with a chance of one in missingOneIn.
+     *
+     * @param instances
+     * @param missingOneIn
+     * @return
+     */
+    protected Instances withMissingValues(Instances instances, int missingOneIn) {
+        return withMissingValues(instances, missingOneIn, 0);
+    }
+
+    /**
+     * Copies the instances and sets every value but the one of the first attribute missing with a chance of one in missingOneIn.
+     * If doubledOneIn is positive, the values which are not missing are doubled with a chance of one in doubledOneIn,
+     * so that they can lie outside of the ranges of the original instances.
+     *
+     * @param instances
+     * @param missingOneIn
+     * @param doubledOneIn
+     * @return
+     */
+    protected Instances withMissingValues(Instances instances, int missingOneIn, int doubledOneIn) {
+        Instances missing = new Instances(instances);
+        Random random = new Random(1);
+        for (int i = 0; i < missing.numInstances(); i++)
+            for (int j = 1; j < missing.numAttributes(); j++)
+                if (random.nextInt(missingOneIn) == 0)
+                    missing.instance(i).setMissing(j);
+                else if (doubledOneIn > 0 && random.nextInt(doubledOneIn) == 0)
+                    missing.instance(i).setValue(j, missing.instance(i).value(j) * 2);
+        return missing;
+    }
+
+    @NonNull
+    protected ArrayList<DataPoint> getDataPoints() {
+        ArrayList<DataPoint> dataPoints = new ArrayList<>();
+
+        RSSData rssData1 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
+        float[] gravity1 = {8.1111f, 11.1111f, 8.111f};
+        float[] magnetic1 = {3.41111f, 11.4111f, 6.16341f};
+        SensorData sensorData1 = SensorData.getSensorDataTest(0, 121, 12, 0, gravity1, magnetic1, 23.23f, 32.122f, 56.677f, 5.96f);
+        LocationData locationData1 = new LocationData(7.12094, 8.38923);
+        dataPoints.add(new DataPoint("stube", sensorData1, rssData1, locationData1));
+
+        RSSData rssData2 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
+        float[] gravity2 = {8.2222f, 22.2222f, 8.222f};
+        float[] magnetic2 = {3.42222f, 22.4222f, 6.26342f};
+        SensorData sensorData2 = SensorData.getSensorDataTest(0, 222, 22, 0, gravity2, magnetic2, 23.23f, 32.222f, 56.677f, 5.96f);
+        LocationData locationData2 = new LocationData(7.22094, 8.38923);
+        dataPoints.add(new DataPoint("kueche", sensorData2, rssData2, locationData2));
+
+        RSSData rssData3 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
+        float[] gravity3 = {8.3232f, 32.3222f, 8.233f};
+        float[] magnetic3 = {3.43232f, 22.4222f, 6.26343f};
+        SensorData sensorData3 = SensorData.getSensorDataTest(0, 323, 32, 0, gravity3, magnetic3, 23.23f, 32.322f, 56.677f, 5.96f);
+        LocationData locationData3 = new LocationData(7.32094, 8.38923);
+        dataPoints.add(new DataPoint("badgross", sensorData3, rssData3, locationData3));
+
+        RSSData rssData4 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
+        float[] gravity4 = {8.4242f, 42.4222f, 8.244f};
+        float[] magnetic4 = {3.44242f, 22.4222f, 6.26344f};
+        SensorData sensorData4 = SensorData.getSensorDataTest(0, 424, 42, 0, gravity4, magnetic4, 23.23f, 32.422f, 56.677f, 5.96f);
+        LocationData locationData4 = new LocationData(7.42094, 8.38923);
+        dataPoints.add(new DataPoint("badklein", sensorData4, rssData4, locationData4));
+
+        RSSData rssData5 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
+        float[] gravity5 = {8.5252f, 52.5222f, 8.255f};
+        float[] magnetic5 = {3.45252f, 22.4222f, 6.26345f};
+        SensorData sensorData5 = SensorData.getSensorDataTest(0, 525, 52, 0, gravity5, magnetic5, 23.23f, 32.522f, 56.677f, 5.96f);
+        LocationData locationData5 = new LocationData(7.52094, 8.38923);
+        dataPoints.add(new DataPoint("gang", sensorData5, rssData5, locationData5));
+
+        return dataPoints;
+    }
+
+    protected boolean instancesContainInstance(Instances haystick, Instance needle) {
+        for (Instance instance : haystick)
+            if (areInstancesEqual(instance, needle))
+                return true;
+        return false;
+    }
+
+    protected boolean areInstancesEqual(Instance first, Instance second) {
+        return comparator.compare(first, second) == 0;
+    }
+
+    protected void testInstancesEqual(Instances expected, Instances actual) {
+        assertTrue(actual.equalHeaders(expected));
+        for (int i = 0; i < expected.numInstances(); i++)
+            assertTrue(areInstancesEqual(expected.instance(i), actual.instance(i)));
+    }
+
+}
@@ -0,0 +1,63 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.helpers.AccessPointIndex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the AccessPointIndex class.
+ */
+public class AccessPointIndexUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testAccessPointIndex() throws Exception {
+        AccessPointIndex index = AccessPointIndex.load(new FileInputStream(AbstractTest.ASSETS_PATH + "sites/rickenbach.txt"), 10);
+        assertEquals(10, index.size());
+        assertEquals(0, index.getSlot("00:11:22:33:44:55", "jxx-10375"));
+        assertEquals(1, index.getSlot("00:11:22:33:44:55", "Phone not found"));
+        assertEquals(AccessPointIndex.NO_SLOT, index.getSlot("00:11:22:33:44:55", "unknown"));
+
+        // the bssid is matched first
+        index = AccessPointIndex.parse(new BufferedReader(new StringReader("# comment\n3 bssid 38:10:D5:0E:1F:25\n\n4 ssid eduroam\n")), 10);
+        assertEquals(3, index.getSlot("38:10:d5:0e:1f:25", "eduroam"));
+        assertEquals(4, index.getSlot("38:10:d5:0e:1f:26", "eduroam"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testAccessPointIndexInvalidSlot() throws Exception {
+        AccessPointIndex.parse(new BufferedReader(new StringReader("10 ssid eduroam\n")), 10);
+    }
+
+    @Test
+    public void testDynamicAccessPointIndex() throws Exception {
+        AccessPointIndex index = AccessPointIndex.parse(new BufferedReader(new StringReader("slots 3\ndynamic\n0 ssid eduroam\n")), 10);
+        assertTrue(index.isDynamic());
+        assertEquals(3, index.getNumberOfSlots());
+        assertEquals(0, index.getOrAddSlot("00:00:00:00:00:01", "eduroam"));
+        assertEquals(1, index.getOrAddSlot("00:00:00:00:00:02", "other"));
+        assertEquals(2, index.getOrAddSlot("00:00:00:00:00:03", "other"));
+        assertEquals(1, index.getOrAddSlot("00:00:00:00:00:02", "other"));
+        // all the slots are used
+        assertEquals(AccessPointIndex.NO_SLOT, index.getOrAddSlot("00:00:00:00:00:04", "other"));
+
+        // the added access points keep their slots after saving
+        StringWriter writer = new StringWriter();
+        index.save(writer);
+        AccessPointIndex loaded = AccessPointIndex.parse(new BufferedReader(new StringReader(writer.toString())), 10);
+        assertTrue(loaded.isDynamic());
+        assertEquals(3, loaded.getNumberOfSlots());
+        assertEquals(2, loaded.getSlot("00:00:00:00:00:03", "other"));
+        assertEquals(0, loaded.getSlot("00:00:00:00:00:05", "eduroam"));
+    }
+
+}
@@ -0,0 +1,48 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.ArffStreamWriter;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comprises unit tests for the functionality provided in the ArffStreamWriter class.
+ */
+public class ArffStreamWriterUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testArffStreamWriter() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/remove");
+        data.instance(1).setWeight(2.5);
+        File file = File.createTempFile("stream", ".arff");
+
+        ArffStreamWriter writer = new ArffStreamWriter(file, data);
+        writer.writeInstances(data);
+        writer.close();
+        assertEquals(data.numInstances(), writer.getRowsWritten());
+        assertEquals(file.length(), writer.getBytesWritten());
+        // the same content as written by weka, apart from the new line at the end
+        assertEquals(data.toString() + "\n", new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+
+        // append the rows in two parts
+        int half = data.numInstances() / 2;
+        writer = new ArffStreamWriter(file, data);
+        for (int i = 0; i < half; i++)
+            writer.writeInstance(data.instance(i));
+        writer.close();
+        writer = new ArffStreamWriter(file, data, true);
+        for (int i = half; i < data.numInstances(); i++)
+            writer.writeInstance(data.instance(i));
+        writer.close();
+        testInstancesEqual(data, fileHelper.loadArff(file.getAbsolutePath()));
+
+        file.delete();
+    }
+
+}
@@ -0,0 +1,64 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.BatchClassifier;
+import ch.joelniklaus.indoloc.helpers.CompiledForest;
+import ch.joelniklaus.indoloc.helpers.WekaHelper;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.functions.Logistic;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the BatchClassifier class.
+ */
+public class BatchClassifierUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testBatchClassifier() throws Exception, CouldNotLoadArffException {
+        Instances train = loadFile("unittests/train_landmark");
+        // large enough to be split into chunks
+        Instances test = new Instances(train);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < train.numInstances(); j++)
+                test.add(train.instance(j));
+
+        for (Classifier classifier : new Classifier[]{new NaiveBayes(), new IBk(3), new Logistic(), new CompiledForest(new RandomForest())}) {
+            BatchClassifier batchClassifier = new BatchClassifier(classifier);
+            batchClassifier.setNumberOfThreads(4);
+            batchClassifier.buildClassifier(train);
+            for (int k = 0; k < 2; k++) {
+                double[][] distributions = batchClassifier.distributionsForInstances(test);
+                assertEquals(test.numInstances(), distributions.length);
+                for (int i = 0; i < test.numInstances(); i++)
+                    assertTrue(Arrays.equals(classifier.distributionForInstance(test.instance(i)), distributions[i]));
+            }
+
+            // the evaluation uses the batch prediction
+            Evaluation evaluation = new Evaluation(train);
+            evaluation.evaluateModel(batchClassifier, test);
+            Evaluation expected = new Evaluation(train);
+            expected.evaluateModel(classifier, test);
+            assertEquals(expected.correct(), evaluation.correct(), 0.0);
+
+            // the explicit batch path of the experiments
+            double[][] distributions = WekaHelper.testBatch(test, classifier);
+            for (int i = 0; i < test.numInstances(); i++)
+                assertTrue(Arrays.equals(classifier.distributionForInstance(test.instance(i)), distributions[i]));
+        }
+
+        Evaluation evaluation = WekaHelper.evaluateBatch(train, test, new NaiveBayes());
+        assertEquals(WekaHelper.evaluate(train, test, new NaiveBayes()).correct(), evaluation.correct(), 0.0);
+    }
+
+}
@@ -0,0 +1,48 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.BinaryInstancesLoader;
+import ch.joelniklaus.indoloc.helpers.BinaryInstancesSaver;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comprises unit tests for the functionality provided in the BinaryInstancesSaver and BinaryInstancesLoader classes.
+ */
+public class BinaryInstancesUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testBinaryInstances() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/train_landmark");
+        data.instance(0).setMissing(1);
+        data.instance(2).setWeight(0.5);
+        File file = File.createTempFile("instances", BinaryInstancesLoader.FILE_EXTENSION);
+
+        BinaryInstancesSaver.save(data, file);
+        Instances loaded = fileHelper.loadBinary(file);
+        assertEquals(data.relationName(), loaded.relationName());
+        assertEquals(data.numInstances(), loaded.numInstances());
+        testInstancesEqual(data, loaded);
+        for (int i = 0; i < data.numInstances(); i++)
+            assertEquals(data.instance(i).weight(), loaded.instance(i).weight(), 0);
+
+        // the arff file is only loaded the first time, afterwards the binary copy is used
+        File cacheDirectory = new File(file.getParentFile(), "indoloc-test-cache");
+        String filePath = AbstractTest.ASSETS_PATH + "unittests/remove" + AbstractTest.ENDING;
+        Instances expected = fileHelper.loadArffCached(filePath, cacheDirectory);
+        assertEquals(1, cacheDirectory.listFiles().length);
+        testInstancesEqual(expected, fileHelper.loadArffCached(filePath, cacheDirectory));
+
+        for (File cached : cacheDirectory.listFiles())
+            cached.delete();
+        cacheDirectory.delete();
+        file.delete();
+    }
+
+}
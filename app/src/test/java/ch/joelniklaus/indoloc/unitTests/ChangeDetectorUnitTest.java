@@ -0,0 +1,59 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import ch.joelniklaus.indoloc.helpers.ChangeDetector;
+import ch.joelniklaus.indoloc.models.DataPoint;
+import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
+import ch.joelniklaus.indoloc.models.SensorData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the ChangeDetector class.
+ */
+public class ChangeDetectorUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testChangeDetector() throws Exception {
+        ArrayList<DataPoint> dataPoints = getDataPoints();
+        DataPoint dataPoint = new DataPoint("stube", new SensorData(), new RSSData(10), new LocationData(0, 0));
+        dataPoint.copyFrom(dataPoints.get(0));
+        ChangeDetector detector = new ChangeDetector();
+        long ms = 1000000L;
+
+        // the first data point is always accepted
+        assertTrue(detector.accept(dataPoint, 0));
+        // sensor noise below the thresholds
+        dataPoint.getSensorData().setMagneticYProcessedOld(dataPoint.getSensorData().getMagneticYProcessedOld() + 0.5f);
+        dataPoint.getRssData().setValue(1, dataPoint.getRssData().getValue(1) - 1);
+        assertFalse(detector.accept(dataPoint, 500 * ms));
+        // a noticeable change
+        dataPoint.getRssData().setValue(2, dataPoint.getRssData().getValue(2) - 10);
+        assertTrue(detector.accept(dataPoint, 600 * ms));
+        // the next change is within the debounce time, it is only accepted afterwards
+        dataPoint.getRssData().setValue(2, dataPoint.getRssData().getValue(2) - 10);
+        assertFalse(detector.accept(dataPoint, 700 * ms));
+        assertTrue(detector.accept(dataPoint, 850 * ms));
+        assertFalse(detector.accept(dataPoint, 1000 * ms));
+        // a new room is accepted right away
+        dataPoint.setRoom("kueche");
+        assertTrue(detector.accept(dataPoint, 1001 * ms));
+        // the staleness is bounded
+        assertFalse(detector.accept(dataPoint, 2000 * ms));
+        assertTrue(detector.accept(dataPoint, 3001 * ms));
+        assertEquals(5, detector.getAcceptedCount());
+        assertEquals(4, detector.getSuppressedCount());
+
+        // the thresholds are configurable per feature
+        detector.setThreshold(1, 0);
+        dataPoint.getSensorData().setLight(dataPoint.getSensorData().getLight() + 1);
+        assertTrue(detector.accept(dataPoint, 3500 * ms));
+    }
+
+}
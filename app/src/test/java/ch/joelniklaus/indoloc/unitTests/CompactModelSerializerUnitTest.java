@@ -0,0 +1,64 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.CompactModelSerializer;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.classifiers.lazy.IBk;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the CompactModelSerializer class.
+ */
+public class CompactModelSerializerUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testCompactModelSerializer() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/train_landmark");
+        NaiveBayes kernelNaiveBayes = new NaiveBayes();
+        kernelNaiveBayes.setUseKernelEstimator(true);
+        for (Classifier classifier : new Classifier[]{new RandomForest(), new RandomTree(), new NaiveBayes(), kernelNaiveBayes, new IBk(3), new J48()}) {
+            classifier.buildClassifier(data);
+            for (boolean compress : new boolean[]{false, true}) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                CompactModelSerializer.write(classifier, bytes, compress);
+                Classifier loaded = CompactModelSerializer.read(new ByteArrayInputStream(bytes.toByteArray()));
+                assertEquals(classifier.getClass(), loaded.getClass());
+                for (int i = 0; i < data.numInstances(); i++)
+                    assertTrue(Arrays.equals(classifier.distributionForInstance(data.instance(i)), loaded.distributionForInstance(data.instance(i))));
+            }
+        }
+
+        // trees trained without any attributes but the class only have a ZeroR model and are serialized
+        Instances classOnly = new Instances(data);
+        while (classOnly.numAttributes() > 1)
+            classOnly.deleteAttributeAt(1);
+        for (Classifier classifier : new Classifier[]{new RandomForest(), new RandomTree()}) {
+            classifier.buildClassifier(classOnly);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CompactModelSerializer.write(classifier, bytes, false);
+            Classifier loaded = CompactModelSerializer.read(new ByteArrayInputStream(bytes.toByteArray()));
+            assertArrayEquals(classifier.distributionForInstance(classOnly.instance(0)), loaded.distributionForInstance(classOnly.instance(0)), 0);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCompactModelSerializerInvalidFile() throws Exception {
+        CompactModelSerializer.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+}
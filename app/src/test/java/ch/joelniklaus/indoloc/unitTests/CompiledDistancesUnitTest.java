@@ -0,0 +1,74 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.CompiledChebyshevDistance;
+import ch.joelniklaus.indoloc.helpers.CompiledEuclideanDistance;
+import ch.joelniklaus.indoloc.helpers.CompiledManhattanDistance;
+import weka.classifiers.lazy.IBk;
+import weka.clusterers.SimpleKMeans;
+import weka.core.ChebyshevDistance;
+import weka.core.EuclideanDistance;
+import weka.core.Instances;
+import weka.core.ManhattanDistance;
+import weka.core.NormalizableDistance;
+import weka.core.Utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comprises unit tests for the functionality provided in the CompiledEuclideanDistance, CompiledManhattanDistance and CompiledChebyshevDistance classes.
+ */
+public class CompiledDistancesUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testCompiledDistances() throws Exception, CouldNotLoadArffException {
+        Instances train = loadFile("unittests/train_landmark");
+        Instances test = loadFile("unittests/test_landmark");
+        Instances missing = withMissingValues(test, 4);
+
+        NormalizableDistance[][] distances = {{new EuclideanDistance(), new CompiledEuclideanDistance()},
+                {new ManhattanDistance(), new CompiledManhattanDistance()}, {new ChebyshevDistance(), new CompiledChebyshevDistance()}};
+        for (NormalizableDistance[] distance : distances)
+            for (String options : new String[]{"-R first-last", "-D -R first-last", "-R 2-5,9"}) {
+                for (NormalizableDistance function : distance) {
+                    function.setOptions(Utils.splitOptions(options));
+                    function.setInstances(train);
+                }
+                for (Instances queries : new Instances[]{test, missing})
+                    for (int i = 0; i < queries.numInstances(); i++) {
+                        // the ranges change with the queries
+                        distance[0].update(queries.instance(i));
+                        distance[1].update(queries.instance(i));
+                        for (int j = 0; j < train.numInstances(); j++) {
+                            assertEquals(distance[0].distance(queries.instance(i), train.instance(j)), distance[1].distance(queries.instance(i), train.instance(j)), 0);
+                            assertEquals(distance[0].distance(queries.instance(i), train.instance(j), 0.5), distance[1].distance(queries.instance(i), train.instance(j), 0.5), 0);
+                        }
+                    }
+            }
+
+        IBk expected = new IBk(3);
+        expected.buildClassifier(train);
+        IBk compiled = new IBk(3);
+        compiled.getNearestNeighbourSearchAlgorithm().setDistanceFunction(new CompiledEuclideanDistance());
+        compiled.buildClassifier(train);
+        for (Instances queries : new Instances[]{test, missing})
+            for (int i = 0; i < queries.numInstances(); i++)
+                assertArrayEquals(expected.distributionForInstance(queries.instance(i)), compiled.distributionForInstance(queries.instance(i)), 0);
+
+        Instances data = new Instances(train);
+        data.setClassIndex(-1);
+        data.deleteAttributeAt(0);
+        SimpleKMeans kMeans = new SimpleKMeans();
+        kMeans.setOptions(Utils.splitOptions("-O -N 4"));
+        kMeans.buildClusterer(data);
+        SimpleKMeans compiledKMeans = new SimpleKMeans();
+        compiledKMeans.setOptions(Utils.splitOptions("-O -N 4"));
+        compiledKMeans.setDistanceFunction(new CompiledEuclideanDistance());
+        compiledKMeans.buildClusterer(data);
+        assertArrayEquals(kMeans.getAssignments(), compiledKMeans.getAssignments());
+    }
+
+}
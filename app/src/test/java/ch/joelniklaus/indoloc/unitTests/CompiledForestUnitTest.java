@@ -0,0 +1,56 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.CompactModelSerializer;
+import ch.joelniklaus.indoloc.helpers.CompiledForest;
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the CompiledForest class.
+ */
+public class CompiledForestUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testCompiledForest() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/train_landmark");
+        RandomTree unclassifiedTree = new RandomTree();
+        unclassifiedTree.setAllowUnclassifiedInstances(true);
+        for (Classifier classifier : new Classifier[]{new RandomForest(), new RandomTree(), unclassifiedTree}) {
+            classifier.buildClassifier(data);
+            CompiledForest compiled = CompiledForest.compile(classifier);
+            double[] distribution = new double[data.numClasses()];
+            for (int i = 0; i < data.numInstances(); i++) {
+                assertTrue(Arrays.equals(classifier.distributionForInstance(data.instance(i)), compiled.distributionForInstance(data.instance(i))));
+                compiled.distributionForInstance(data.instance(i), distribution);
+                assertTrue(Arrays.equals(classifier.distributionForInstance(data.instance(i)), distribution));
+            }
+
+            // the children of a split on a missing value are weighted
+            Instances missing = withMissingValues(data, 3);
+            for (int i = 0; i < missing.numInstances(); i++)
+                assertArrayEquals(classifier.distributionForInstance(missing.instance(i)), compiled.distributionForInstance(missing.instance(i)), 1e-12);
+        }
+
+        // trained as a classifier and stored with the models
+        CompiledForest compiledForest = new CompiledForest(new RandomForest());
+        compiledForest.buildClassifier(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompactModelSerializer.write(compiledForest, bytes, false);
+        Classifier loaded = CompactModelSerializer.read(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < data.numInstances(); i++)
+            assertTrue(Arrays.equals(compiledForest.distributionForInstance(data.instance(i)), loaded.distributionForInstance(data.instance(i))));
+    }
+
+}
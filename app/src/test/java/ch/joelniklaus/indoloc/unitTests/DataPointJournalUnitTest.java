@@ -0,0 +1,92 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.helpers.DataPointJournal;
+import ch.joelniklaus.indoloc.helpers.WekaHelper;
+import ch.joelniklaus.indoloc.models.DataPoint;
+import ch.joelniklaus.indoloc.models.LocationData;
+import ch.joelniklaus.indoloc.models.RSSData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Comprises unit tests for the functionality provided in the DataPointJournal class.
+ */
+public class DataPointJournalUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testDataPointJournal() throws Exception {
+        ArrayList<DataPoint> dataPoints = getDataPoints();
+        File file = File.createTempFile("dataPoints", ".journal");
+        file.delete();
+
+        DataPointJournal journal = new DataPointJournal(file);
+        journal.open();
+        assertTrue(journal.isEmpty());
+        for (DataPoint dataPoint : dataPoints)
+            journal.append(dataPoint);
+        journal.close();
+
+        // the data points are recovered after opening the journal again
+        journal = new DataPointJournal(file);
+        journal.open();
+        assertEquals(dataPoints.size(), journal.size());
+        testInstancesEqual(WekaHelper.buildInstances(dataPoints), journal.toInstances());
+        testInstancesEqual(WekaHelper.buildInstances(dataPoints), WekaHelper.buildInstances(journal.readDataPoints()));
+
+        // the number of rss values is fixed until the journal is cleared
+        DataPoint wider = new DataPoint("stube", dataPoints.get(0).getSensorData(), new RSSData(12), new LocationData(0, 0));
+        try {
+            journal.append(wider);
+            fail();
+        } catch (IOException e) {
+            assertEquals(dataPoints.size(), journal.size());
+        }
+        // a room name which does not fit into a record is rejected instead of being cut off
+        char[] longName = new char[200];
+        Arrays.fill(longName, 'a');
+        DataPoint longRoom = new DataPoint(new String(longName), dataPoints.get(0).getSensorData(), dataPoints.get(0).getRssData(), new LocationData(0, 0));
+        try {
+            journal.append(longRoom);
+            fail();
+        } catch (IOException e) {
+            assertEquals(dataPoints.size(), journal.size());
+            testInstancesEqual(WekaHelper.buildInstances(dataPoints), journal.toInstances());
+        }
+
+        journal.clear();
+        assertTrue(journal.isEmpty());
+        assertFalse(file.exists());
+        journal.append(wider);
+        assertEquals(1, journal.size());
+        journal.clear();
+    }
+
+    @Test
+    public void testDataPointJournalInvalidFile() throws Exception {
+        File file = File.createTempFile("dataPoints", ".journal");
+        Files.write(file.toPath(), new byte[32]);
+        DataPointJournal journal = new DataPointJournal(file);
+        // the file is closed again after the check, so opening it again checks it again
+        for (int i = 0; i < 2; i++)
+            try {
+                journal.open();
+                fail();
+            } catch (IOException e) {
+                assertTrue(journal.isEmpty());
+            }
+        journal.clear();
+        assertFalse(file.exists());
+    }
+
+}
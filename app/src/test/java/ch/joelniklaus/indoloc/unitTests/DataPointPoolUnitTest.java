@@ -0,0 +1,47 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.helpers.DataPointPool;
+import ch.joelniklaus.indoloc.models.DataPoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the DataPointPool class.
+ */
+public class DataPointPoolUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testDataPointCopy() throws Exception {
+        ArrayList<DataPoint> dataPoints = getDataPoints();
+        DataPointPool pool = new DataPointPool(2, 10);
+        DataPoint first = pool.next();
+        DataPoint second = pool.next();
+        assertTrue(first != second);
+        assertTrue(first == pool.next());
+
+        first.copyFrom(dataPoints.get(0));
+        second.copyFrom(dataPoints.get(1));
+        assertEquals(dataPoints.get(0), first);
+        assertEquals(dataPoints.get(0).hashCode(), first.hashCode());
+        assertEquals(dataPoints.get(1), second);
+        assertNotEquals(first, second);
+        // the copies do not share the arrays
+        first.getRssData().setValue(0, -50);
+        assertNotEquals(dataPoints.get(0), first);
+        assertEquals(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0), dataPoints.get(0).getRssData().getValues());
+
+        // the serialized form still contains the rss values as a list
+        DataPoint copy = SerializationUtils.clone(dataPoints.get(2));
+        assertEquals(dataPoints.get(2), copy);
+        assertEquals(dataPoints.get(2).getRssData().getValues(), copy.getRssData().getValues());
+    }
+
+}
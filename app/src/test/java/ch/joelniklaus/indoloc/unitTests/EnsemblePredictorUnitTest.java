@@ -0,0 +1,62 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.EnsemblePredictor;
+import weka.classifiers.Classifier;
+import weka.classifiers.bayes.NaiveBayes;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the EnsemblePredictor class.
+ */
+public class EnsemblePredictorUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testEnsemblePredictorReprobe() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/train_landmark");
+        final AtomicBoolean slow = new AtomicBoolean(true);
+        NaiveBayes naiveBayes = new NaiveBayes() {
+            @Override
+            public double[] distributionForInstance(Instance instance) throws Exception {
+                if (slow.get())
+                    Thread.sleep(100);
+                return super.distributionForInstance(instance);
+            }
+        };
+        naiveBayes.buildClassifier(data);
+        ArrayList<Classifier> classifiers = new ArrayList<>();
+        classifiers.add(naiveBayes);
+        EnsemblePredictor predictor = new EnsemblePredictor(classifiers, 20, 1, 200);
+
+        try {
+            // dropped after missing the deadline once
+            assertEquals(null, predictor.distributionsForInstance(data.instance(0)).get(0));
+            assertFalse(predictor.isLive(0));
+
+            // not asked again before the re-probe interval has passed
+            slow.set(false);
+            assertEquals(null, predictor.distributionsForInstance(data.instance(0)).get(0));
+            assertFalse(predictor.isLive(0));
+
+            // live again as soon as it delivers in time
+            Thread.sleep(250);
+            assertArrayEquals(naiveBayes.distributionForInstance(data.instance(0)),
+                    predictor.distributionsForInstance(data.instance(0)).get(0), 1e-9);
+            assertTrue(predictor.isLive(0));
+        } finally {
+            predictor.shutDown();
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import ch.joelniklaus.indoloc.AbstractTest;
+import ch.joelniklaus.indoloc.helpers.FastArffLoader;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comprises unit tests for the functionality provided in the FastArffLoader class.
+ */
+public class FastArffLoaderUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testFastArffLoader() throws Exception {
+        for (String fileName : new String[]{"buildInstances", "duplicates", "remove", "train_landmark"}) {
+            File file = new File(AbstractTest.ASSETS_PATH + "unittests/" + fileName + AbstractTest.ENDING);
+            Instances expected = new ConverterUtils.DataSource(file.getAbsolutePath()).getDataSet();
+            testInstancesEqual(expected, FastArffLoader.load(file, 1));
+            testInstancesEqual(expected, FastArffLoader.load(file, 4));
+        }
+
+        // comments, quotes, missing values, weights, exponents and windows line ends
+        File file = File.createTempFile("fast", ".arff");
+        String content = "% comment\r\n@relation test\r\n@attribute room {'living room',kitchen}\r\n"
+                + "@attribute rss numeric\r\n@attribute magnetic real\r\n\r\n@DATA\r\n"
+                + "'living room', -51, 1.5e-3\r\n% comment\r\nkitchen,?,-0.25,{2.5}\r\n\r\n"
+                + "? , 12345678901234567890, .125";
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+        Instances expected = new ConverterUtils.DataSource(file.getAbsolutePath()).getDataSet();
+        Instances actual = FastArffLoader.load(file);
+        assertEquals(3, actual.numInstances());
+        testInstancesEqual(expected, actual);
+        for (int i = 0; i < expected.numInstances(); i++)
+            assertEquals(expected.instance(i).weight(), actual.instance(i).weight(), 0);
+
+        // sparse rows are left to the weka loader
+        Files.write(file.toPath(), "@relation test\n@attribute rss numeric\n@data\n{0 -51}\n".getBytes("UTF-8"));
+        assertEquals(null, FastArffLoader.load(file));
+        file.delete();
+    }
+
+}
@@ -0,0 +1,51 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ch.joelniklaus.indoloc.helpers.FeatureWindow;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comprises unit tests for the functionality provided in the FeatureWindow class.
+ */
+public class FeatureWindowUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testFeatureWindow() throws Exception {
+        FeatureWindow window = new FeatureWindow(4);
+        Random random = new Random(42);
+        double[] history = new double[20];
+        for (int i = 0; i < history.length; i++) {
+            history[i] = random.nextInt(20) - 10;
+            window.add(history, i, 1);
+
+            // compare with the aggregates computed from scratch
+            int from = Math.max(0, i - 3), n = i - from + 1;
+            double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int j = from; j <= i; j++) {
+                sum += history[j];
+                min = Math.min(min, history[j]);
+                max = Math.max(max, history[j]);
+            }
+            double mean = sum / n, squares = 0;
+            for (int j = from; j <= i; j++)
+                squares += (history[j] - mean) * (history[j] - mean);
+
+            assertEquals(n, window.getCount());
+            assertEquals(mean, window.getMean(0), 1e-9);
+            assertEquals(squares / n, window.getVariance(0), 1e-9);
+            assertEquals(min, window.getMin(0), 0.0);
+            assertEquals(max, window.getMax(0), 0.0);
+        }
+
+        window.reset();
+        assertEquals(0, window.getCount());
+        window.add(new double[]{3}, 0, 1);
+        assertEquals(3, window.getMin(0), 0.0);
+        assertEquals(0, window.getVariance(0), 0.0);
+    }
+
+}
@@ -0,0 +1,147 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.FlatLinearNNSearch;
+import ch.joelniklaus.indoloc.helpers.IncrementalKDTree;
+import ch.joelniklaus.indoloc.helpers.WekaHelper;
+import weka.classifiers.lazy.IBk;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.DistanceFunction;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.ManhattanDistance;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.core.neighboursearch.LinearNNSearch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the FlatLinearNNSearch class.
+ */
+public class FlatLinearNNSearchUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testFlatLinearNNSearch() throws Exception, CouldNotLoadArffException {
+        Instances train = loadFile("unittests/train_landmark");
+        Instances test = loadFile("unittests/test_landmark");
+        // missing values and values outside of the ranges of the training data
+        Instances missing = withMissingValues(test, 4, 10);
+
+        String searchOptions = " -A \"%s -A \\\"weka.core.EuclideanDistance %s-R first-last\\\"\"";
+        for (String options : new String[]{"-K 1", "-K 4 -I", "-K 3 -F", "-K 5 -D"}) {
+            String distanceOptions = options.endsWith("-D") ? "-D " : "";
+            String classifierOptions = options.replace(" -D", "");
+            IBk expected = new IBk();
+            expected.setOptions(Utils.splitOptions(classifierOptions + String.format(searchOptions, LinearNNSearch.class.getName(), distanceOptions)));
+            expected.buildClassifier(train);
+            IBk flat = new IBk();
+            flat.setOptions(Utils.splitOptions(classifierOptions + String.format(searchOptions, FlatLinearNNSearch.class.getName(), distanceOptions)));
+            assertTrue(flat.getNearestNeighbourSearchAlgorithm() instanceof FlatLinearNNSearch);
+            flat.buildClassifier(train);
+            for (Instances queries : new Instances[]{test, missing, train})
+                for (int i = 0; i < queries.numInstances(); i++)
+                    assertArrayEquals(expected.distributionForInstance(queries.instance(i)), flat.distributionForInstance(queries.instance(i)), 1e-12);
+        }
+
+        // one scan for several queries finds the same neighbours
+        FlatLinearNNSearch search = new FlatLinearNNSearch(train);
+        LinearNNSearch linear = new LinearNNSearch(train);
+        Instances[] neighbours = search.kNearestNeighbours(missing, 3);
+        for (int i = 0; i < missing.numInstances(); i++)
+            linear.addInstanceInfo(missing.instance(i));
+        for (int i = 0; i < missing.numInstances(); i++) {
+            testInstancesEqual(linear.kNearestNeighbours(missing.instance(i), 3), neighbours[i]);
+            assertTrue(Arrays.equals(linear.getDistances(), search.getBatchDistances()[i]));
+        }
+
+        // enough queries to be searched in parallel, also with the distance function of weka
+        Instances queries = new Instances(missing);
+        for (int i = 0; i < train.numInstances(); i++)
+            queries.add(train.instance(i));
+        for (Class<? extends DistanceFunction> distanceFunction : Arrays.asList(EuclideanDistance.class, ManhattanDistance.class)) {
+            FlatLinearNNSearch parallel = new FlatLinearNNSearch();
+            parallel.setDistanceFunction(distanceFunction.newInstance());
+            parallel.setInstances(train);
+            linear = new LinearNNSearch();
+            linear.setDistanceFunction(distanceFunction.newInstance());
+            linear.setInstances(train);
+            FlatLinearNNSearch.Neighbours result = parallel.kNearestNeighbourIndices(queries, 4);
+            for (int i = 0; i < queries.numInstances(); i++)
+                linear.addInstanceInfo(queries.instance(i));
+            for (int i = 0; i < queries.numInstances(); i++) {
+                Instances expected = linear.kNearestNeighbours(queries.instance(i), 4);
+                assertEquals(expected.numInstances(), result.indices[i].length);
+                for (int j = 0; j < expected.numInstances(); j++)
+                    assertTrue(areInstancesEqual(expected.instance(j), train.instance(result.indices[i][j])));
+                assertTrue(Arrays.equals(linear.getDistances(), result.distances[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testFlatLinearNNSearchSparse() throws Exception, CouldNotLoadArffException {
+        Instances dense = loadFile("unittests/train_landmark");
+        // many access points which are mostly not seen (0), some missing values
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j = 0; j < dense.numAttributes(); j++)
+            attributes.add((Attribute) dense.attribute(j).copy());
+        for (int j = 0; j < 40; j++)
+            attributes.add(new Attribute("rss" + j));
+        Instances data = new Instances("sparse", attributes, dense.numInstances());
+        data.setClassIndex(0);
+        Random random = new Random(1);
+        for (Instance instance : dense) {
+            double[] values = new double[data.numAttributes()];
+            System.arraycopy(instance.toDoubleArray(), 0, values, 0, dense.numAttributes());
+            for (int j = dense.numAttributes(); j < values.length; j++)
+                if (random.nextInt(5) == 0)
+                    values[j] = random.nextInt(10) == 0 ? Utils.missingValue() : -40 - random.nextInt(50);
+            data.add(random.nextBoolean() ? new SparseInstance(1.0, values) : new DenseInstance(1.0, values));
+        }
+        assertTrue(WekaHelper.isSparse(data));
+        Instances train = new Instances(data, 0, data.numInstances() / 2);
+        Instances test = new Instances(data, data.numInstances() / 2, data.numInstances() - data.numInstances() / 2);
+
+        for (String options : new String[]{"", "-D"}) {
+            FlatLinearNNSearch flat = new FlatLinearNNSearch();
+            flat.getDistanceFunction().setOptions(Utils.splitOptions(options));
+            flat.setInstances(train);
+            LinearNNSearch linear = new LinearNNSearch();
+            linear.getDistanceFunction().setOptions(Utils.splitOptions(options));
+            linear.setInstances(train);
+            for (int i = 0; i < test.numInstances(); i++) {
+                testInstancesEqual(linear.kNearestNeighbours(test.instance(i), 3), flat.kNearestNeighbours(test.instance(i), 3));
+                assertTrue(Arrays.equals(linear.getDistances(), flat.getDistances()));
+            }
+
+            // the same in a batch, which adds the queries to the ranges first
+            Instances[] neighbours = flat.kNearestNeighbours(test, 3);
+            for (int i = 0; i < test.numInstances(); i++)
+                linear.addInstanceInfo(test.instance(i));
+            for (int i = 0; i < test.numInstances(); i++) {
+                testInstancesEqual(linear.kNearestNeighbours(test.instance(i), 3), neighbours[i]);
+                assertTrue(Arrays.equals(linear.getDistances(), flat.getBatchDistances()[i]));
+            }
+        }
+
+        // the other searches on the matrix visit every column of the sparse rows
+        IncrementalKDTree tree = new IncrementalKDTree(train);
+        LinearNNSearch linear = new LinearNNSearch(train);
+        for (int i = 0; i < test.numInstances(); i++) {
+            testInstancesEqual(linear.kNearestNeighbours(test.instance(i), 3), tree.kNearestNeighbours(test.instance(i), 3));
+            assertTrue(Arrays.equals(linear.getDistances(), tree.getDistances()));
+        }
+    }
+
+}
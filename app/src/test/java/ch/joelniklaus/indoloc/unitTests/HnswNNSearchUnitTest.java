@@ -0,0 +1,62 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.HnswNNSearch;
+import weka.classifiers.lazy.IBk;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.neighboursearch.LinearNNSearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the HnswNNSearch class.
+ */
+public class HnswNNSearchUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testHnswNNSearch() throws Exception, CouldNotLoadArffException {
+        Instances train = loadFile("unittests/train_landmark");
+        Instances test = loadFile("unittests/test_landmark");
+
+        // a beam as wide as the training data finds the exact neighbours
+        HnswNNSearch search = new HnswNNSearch();
+        search.setEfSearch(train.numInstances());
+        search.setInstances(train);
+        LinearNNSearch linear = new LinearNNSearch(train);
+        for (int i = 0; i < test.numInstances(); i++) {
+            search.addInstanceInfo(test.instance(i));
+            linear.addInstanceInfo(test.instance(i));
+            testInstancesEqual(linear.kNearestNeighbours(test.instance(i), 4), search.kNearestNeighbours(test.instance(i), 4));
+            assertTrue(Arrays.equals(linear.getDistances(), search.getDistances()));
+        }
+
+        // the instances added to the training data are inserted into the graph
+        Instances half = new Instances(train, 0, train.numInstances() / 2);
+        IBk ibk = new IBk(3);
+        ibk.setOptions(Utils.splitOptions("-K 3 -A \"" + HnswNNSearch.class.getName() + " -M 8 -C 50 -E 32 -S 2\""));
+        assertEquals(8, ((HnswNNSearch) ibk.getNearestNeighbourSearchAlgorithm()).getNumberOfConnections());
+        ibk.buildClassifier(half);
+        for (int i = half.numInstances(); i < train.numInstances(); i++)
+            ibk.updateClassifier(train.instance(i));
+        IBk expected = new IBk(3);
+        expected.buildClassifier(train);
+        int found = 0;
+        for (int i = 0; i < test.numInstances(); i++) {
+            expected.getNearestNeighbourSearchAlgorithm().kNearestNeighbours(test.instance(i), 3);
+            ibk.getNearestNeighbourSearchAlgorithm().kNearestNeighbours(test.instance(i), 3);
+            double[] expectedDistances = expected.getNearestNeighbourSearchAlgorithm().getDistances();
+            double[] distances = ibk.getNearestNeighbourSearchAlgorithm().getDistances();
+            for (int j = 0; j < Math.min(3, distances.length); j++)
+                if (distances[j] <= expectedDistances[2] + 1e-12)
+                    found++;
+        }
+        assertTrue(found >= 0.95 * 3 * test.numInstances());
+    }
+
+}
@@ -0,0 +1,81 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.IncrementalKDTree;
+import weka.classifiers.lazy.IBk;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.neighboursearch.LinearNNSearch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the IncrementalKDTree class.
+ */
+public class IncrementalKDTreeUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testIncrementalKDTree() throws Exception, CouldNotLoadArffException {
+        Instances train = loadFile("unittests/train_landmark");
+        Instances test = loadFile("unittests/test_landmark");
+        Instances missing = withMissingValues(test, 4);
+        train.addAll(missing);
+
+        // small leaves and buffer, so the added instances are merged into several trees
+        Instances start = new Instances(train, 0, train.numInstances() / 3);
+        IBk incremental = new IBk();
+        incremental.setOptions(Utils.splitOptions("-K 4 -A \"" + IncrementalKDTree.class.getName() + " -L 4 -B 8\""));
+        incremental.buildClassifier(start);
+        IBk updated = new IBk(4);
+        updated.buildClassifier(start);
+        for (int i = start.numInstances(); i < train.numInstances(); i++) {
+            incremental.updateClassifier(train.instance(i));
+            updated.updateClassifier(train.instance(i));
+            // the trees which are still being built are searched as well
+            Instance query = test.instance(i % test.numInstances());
+            assertArrayEquals(updated.distributionForInstance(query), incremental.distributionForInstance(query), 1e-12);
+        }
+        IBk expected = new IBk(4);
+        expected.buildClassifier(train);
+        for (Instances queries : new Instances[]{test, missing, train})
+            for (int i = 0; i < queries.numInstances(); i++) {
+                assertArrayEquals(expected.distributionForInstance(queries.instance(i)), incremental.distributionForInstance(queries.instance(i)), 1e-12);
+                assertTrue(Arrays.equals(expected.getNearestNeighbourSearchAlgorithm().getDistances(), incremental.getNearestNeighbourSearchAlgorithm().getDistances()));
+            }
+    }
+
+    @Test
+    public void testIncrementalKDTreeDuplicates() throws Exception, CouldNotLoadArffException {
+        Instances train = loadFile("unittests/train_landmark");
+        Instances test = loadFile("unittests/test_landmark");
+        // coarse values and repeated instances, so many neighbours are tied with the k-th nearest one
+        for (Instances instances : new Instances[]{train, test})
+            for (int i = 0; i < instances.numInstances(); i++)
+                for (int j = 0; j < instances.numAttributes(); j++)
+                    if (j != instances.classIndex() && instances.attribute(j).isNumeric() && !instances.instance(i).isMissing(j))
+                        instances.instance(i).setValue(j, 7 * Math.round(instances.instance(i).value(j) / 7));
+        train.addAll(new Instances(train));
+
+        for (String options : new String[]{"-L 2", "-L 40"}) {
+            LinearNNSearch linear = new LinearNNSearch(train);
+            IncrementalKDTree tree = new IncrementalKDTree();
+            tree.setOptions(Utils.splitOptions(options));
+            tree.setInstances(train);
+            for (Instances queries : new Instances[]{test, train})
+                for (int i = 0; i < queries.numInstances(); i++) {
+                    Instances expected = linear.kNearestNeighbours(queries.instance(i), 5);
+                    Instances actual = tree.kNearestNeighbours(queries.instance(i), 5);
+                    assertEquals(expected.numInstances(), actual.numInstances());
+                    assertTrue(Arrays.equals(linear.getDistances(), tree.getDistances()));
+                }
+        }
+    }
+
+}
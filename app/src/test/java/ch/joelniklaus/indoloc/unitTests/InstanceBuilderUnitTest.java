@@ -0,0 +1,49 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.exceptions.InvalidRoomException;
+import ch.joelniklaus.indoloc.helpers.InstanceBuilder;
+import ch.joelniklaus.indoloc.helpers.WekaHelper;
+import ch.joelniklaus.indoloc.models.DataPoint;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the InstanceBuilder class.
+ */
+public class InstanceBuilderUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testInstanceBuilder() throws Exception, InvalidRoomException, CouldNotLoadArffException {
+        ArrayList<DataPoint> dataPoints = getDataPoints();
+        Instances data = loadFile("unittests/buildInstances");
+
+        InstanceBuilder instanceBuilder = new InstanceBuilder(data);
+        assertEquals(0, instanceBuilder.getHeader().numInstances());
+        assertTrue(instanceBuilder.getHeader().equalHeaders(data));
+
+        // the same instance is reused and always contains the values of the last data point
+        Instance first = instanceBuilder.build(dataPoints.get(1));
+        Instance second = instanceBuilder.build(dataPoints.get(3));
+        assertTrue(first == second);
+
+        Instances expected = WekaHelper.convertToSingleInstance(data, dataPoints.get(3));
+        assertTrue(areInstancesEqual(expected.instance(0), second));
+    }
+
+    @Test(expected = InvalidRoomException.class)
+    public void testInstanceBuilderCheckRoom() throws Exception, InvalidRoomException, CouldNotLoadArffException {
+        DataPoint dataPoint = getDataPoints().get(3);
+        dataPoint.setRoom("hallo");
+
+        new InstanceBuilder(loadFile("unittests/buildInstances")).checkRoom(dataPoint);
+    }
+
+}
@@ -0,0 +1,68 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
+import ch.joelniklaus.indoloc.helpers.ModelStore;
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the ModelStore class.
+ */
+public class ModelStoreUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testModelStore() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/train_landmark");
+        File directory = Files.createTempDirectory("models").toFile();
+        ModelStore store = new ModelStore(directory);
+
+        RandomForest randomForest = new RandomForest();
+        String dataHash = ModelStore.hashData(data);
+        String key = ModelStore.getKey(dataHash, randomForest);
+        assertEquals(null, store.load(key));
+
+        randomForest.buildClassifier(data);
+        store.save(key, randomForest);
+        assertTrue(store.contains(key));
+        Classifier loaded = store.load(key);
+        for (int i = 0; i < data.numInstances(); i++)
+            assertEquals(randomForest.classifyInstance(data.instance(i)), loaded.classifyInstance(data.instance(i)), 0.0);
+
+        // the same data and options give the same key
+        assertEquals(dataHash, ModelStore.hashData(new Instances(data)));
+        assertEquals(key, ModelStore.getKey(ModelStore.hashData(new Instances(data)), new RandomForest()));
+        // changed options or data give a new key
+        RandomForest otherOptions = new RandomForest();
+        otherOptions.setNumIterations(10);
+        assertNotEquals(key, ModelStore.getKey(dataHash, otherOptions));
+        Instances changed = new Instances(data);
+        changed.instance(0).setValue(1, changed.instance(0).value(1) + 1);
+        assertNotEquals(dataHash, ModelStore.hashData(changed));
+
+        // saving a model of other data deletes the models of the data before
+        String otherKey = ModelStore.getKey(dataHash, otherOptions);
+        store.save(otherKey, randomForest);
+        assertTrue(store.contains(key));
+        String changedKey = ModelStore.getKey(ModelStore.hashData(changed), new RandomForest());
+        store.save(changedKey, randomForest);
+        assertTrue(store.contains(changedKey));
+        assertFalse(store.contains(key));
+        assertFalse(store.contains(otherKey));
+
+        store.clear();
+        assertFalse(store.contains(changedKey));
+        directory.delete();
+    }
+
+}
@@ -0,0 +1,50 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import ch.joelniklaus.indoloc.helpers.PredictionSmoother;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Comprises unit tests for the functionality provided in the PredictionSmoother class.
+ */
+public class PredictionSmootherUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testPredictionSmoother() throws Exception {
+        long ms = 1000000L;
+        double[] first = {0.8, 0.2};
+        double[] second = {0.3, 0.7};
+
+        PredictionSmoother smoother = new PredictionSmoother(2, 1000);
+        assertEquals(-1, smoother.getPrediction());
+        assertEquals(0, smoother.add(first, 0));
+        assertEquals(0.8, smoother.getConfidence(), 1e-9);
+        // a single outlier does not flip the prediction
+        assertEquals(0, smoother.add(second, 200 * ms));
+        // after one half life the new sample counts half
+        assertEquals(0, smoother.add(second, 1200 * ms));
+        assertEquals(1, smoother.add(second, 2200 * ms));
+
+        // the weight only depends on the time, not on the number of samples
+        PredictionSmoother often = new PredictionSmoother(2, 1000);
+        PredictionSmoother rarely = new PredictionSmoother(2, 1000);
+        often.add(first, 0);
+        rarely.add(first, 0);
+        often.add(second, 500 * ms);
+        often.add(second, 1000 * ms);
+        rarely.add(second, 1000 * ms);
+        assertEquals(rarely.getProbability(0), often.getProbability(0), 1e-9);
+        assertEquals(0.55, rarely.getProbability(0), 1e-9);
+
+        // no smoothing with a half life of 0
+        PredictionSmoother none = new PredictionSmoother(2, 0);
+        none.add(first, 0);
+        assertEquals(1, none.add(second, 1));
+        assertEquals(0.7, none.getConfidence(), 1e-9);
+        none.reset();
+        assertEquals(-1, none.getPrediction());
+    }
+
+}
@@ -0,0 +1,72 @@
+package ch.joelniklaus.indoloc.unitTests;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import ch.joelniklaus.indoloc.helpers.RssHistory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comprises unit tests for the functionality provided in the RssHistory class.
+ */
+public class RssHistoryUnitTest extends AbstractUnitTest {
+
+    @Test
+    public void testRssHistory() throws Exception {
+        final RssHistory history = new RssHistory(2, 4);
+        assertEquals(0, history.getLatest(0, 0));
+        int[] recent = new int[8];
+        assertEquals(0, history.getRecent(0, recent));
+
+        for (int i = 1; i <= 6; i++)
+            history.add(0, -i);
+        assertEquals(-6, history.getLatest(0, 0));
+        assertEquals(4, history.getRecent(0, recent));
+        assertTrue(Arrays.equals(new int[]{-6, -5, -4, -3}, Arrays.copyOf(recent, 4)));
+        assertEquals(0, history.getCount(1));
+
+        // a reader never sees readings of different rounds mixed up while the writer keeps adding
+        final int rounds = 200000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= rounds; i++)
+                    history.add(1, i);
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            int n = history.getRecent(1, recent);
+            for (int i = 1; i < n; i++)
+                assertEquals(recent[i - 1] - 1, recent[i]);
+        }
+        writer.join();
+        assertEquals(rounds, history.getLatest(1, 0));
+    }
+
+    @Test
+    public void testRssHistoryScans() throws Exception {
+        RssHistory history = new RssHistory(2, 4);
+        assertEquals(0, history.getLatest(0, 0, 2));
+        history.add(0, -50);
+        history.add(1, -60);
+        // the current scan counts as well
+        assertEquals(-50, history.getLatest(0, 0, 2));
+        history.endScan();
+        history.add(1, -61);
+        history.endScan();
+        assertEquals(-50, history.getLatest(0, 0, 2));
+        history.endScan();
+        // missing in the last two scans
+        assertEquals(0, history.getLatest(0, 0, 2));
+        assertEquals(-50, history.getLatest(0, 0));
+        assertEquals(-61, history.getLatest(1, 0, 2));
+        assertEquals(3, history.getNumberOfScans());
+        history.add(0, -40);
+        assertEquals(-40, history.getLatest(0, 0, 2));
+    }
+
+}
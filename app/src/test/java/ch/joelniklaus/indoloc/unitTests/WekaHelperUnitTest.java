@@ -1,27 +1,30 @@
 package ch.joelniklaus.indoloc.unitTests;
 
-import android.support.annotation.NonNull;
-
 import org.apache.commons.lang3.SerializationUtils;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
 
-import ch.joelniklaus.indoloc.AbstractTest;
 import ch.joelniklaus.indoloc.exceptions.CouldNotLoadArffException;
 import ch.joelniklaus.indoloc.exceptions.DifferentHeaderException;
 import ch.joelniklaus.indoloc.exceptions.InvalidRoomException;
-import ch.joelniklaus.indoloc.helpers.FileHelper;
+import ch.joelniklaus.indoloc.helpers.BinaryInstancesLoader;
+import ch.joelniklaus.indoloc.helpers.BinaryInstancesSaver;
+import ch.joelniklaus.indoloc.helpers.DataPointJournal;
+import ch.joelniklaus.indoloc.helpers.FeatureWindow;
+import ch.joelniklaus.indoloc.helpers.InstanceBuilder;
 import ch.joelniklaus.indoloc.helpers.WekaHelper;
 import ch.joelniklaus.indoloc.models.DataPoint;
-import ch.joelniklaus.indoloc.models.LocationData;
 import ch.joelniklaus.indoloc.models.RSSData;
-import ch.joelniklaus.indoloc.models.SensorData;
 import weka.classifiers.trees.RandomForest;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instance;
-import weka.core.InstanceComparator;
 import weka.core.Instances;
+import weka.core.SparseInstance;
 import weka.filters.unsupervised.instance.RemovePercentage;
 
 import static org.junit.Assert.assertEquals;
@@ -34,14 +37,7 @@ import static org.junit.Assert.assertTrue;
  *
  * @author joelniklaus
  */
-public class WekaHelperUnitTest {
-
-    private final InstanceComparator comparator = new InstanceComparator();
-    private FileHelper fileHelper = new FileHelper();
-
-    protected Instances loadFile(String fileName) throws Exception, CouldNotLoadArffException {
-        return fileHelper.loadArff(AbstractTest.ASSETS_PATH + fileName + AbstractTest.ENDING);
-    }
+public class WekaHelperUnitTest extends AbstractUnitTest {
 
     @Test
     public void testMergeInstances() throws Exception, DifferentHeaderException, CouldNotLoadArffException {
@@ -126,6 +122,52 @@ public class WekaHelperUnitTest {
             assertTrue(instancesContainInstance(oldData, data.instance(i)));
     }
 
+    @Test
+    public void testRemoveDuplicatesAccumulateWeights() throws Exception, CouldNotLoadArffException {
+        Instances data = loadFile("unittests/duplicates");
+
+        Instances newData = WekaHelper.removeDuplicates(data, true);
+        assertEquals(4, newData.numInstances());
+
+        // order is preserved, the weight is the number of occurrences
+        assertTrue(areInstancesEqual(data.instance(0), newData.instance(0)));
+        assertTrue(areInstancesEqual(data.instance(3), newData.instance(1)));
+        assertTrue(areInstancesEqual(data.instance(4), newData.instance(2)));
+        assertTrue(areInstancesEqual(data.instance(7), newData.instance(3)));
+        assertEquals(3, newData.instance(0).weight(), 0.0);
+        assertEquals(1, newData.instance(1).weight(), 0.0);
+        assertEquals(3, newData.instance(2).weight(), 0.0);
+        assertEquals(2, newData.instance(3).weight(), 0.0);
+
+        // the original data is not changed
+        assertEquals(9, data.numInstances());
+        assertEquals(1, data.instance(0).weight(), 0.0);
+    }
+
+    @Test
+    public void testRemoveDuplicatesWithinTolerance() throws Exception {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("first"));
+        attributes.add(new Attribute("second"));
+        Instances data = new Instances("tolerance", attributes, 0);
+        // values differing by less than Utils.SMALL are equal according to the InstanceComparator
+        double[][] rows = {{-70, 1}, {-70 + 5e-7, 1 - 5e-7}, {-70 + 2e-6, 1},
+                {4.6e-6, 0}, {5.4e-6, 0}, {-5.4e-6, 4.6e-6}, {-4.6e-6, 5.4e-6}};
+        for (double[] row : rows)
+            data.add(new DenseInstance(1, row));
+
+        Instances newData = WekaHelper.removeDuplicates(data, true);
+        assertEquals(4, newData.numInstances());
+        assertTrue(areInstancesEqual(data.instance(0), newData.instance(0)));
+        assertTrue(areInstancesEqual(data.instance(2), newData.instance(1)));
+        assertTrue(areInstancesEqual(data.instance(3), newData.instance(2)));
+        assertTrue(areInstancesEqual(data.instance(5), newData.instance(3)));
+        assertEquals(2, newData.instance(0).weight(), 0.0);
+        assertEquals(1, newData.instance(1).weight(), 0.0);
+        assertEquals(2, newData.instance(2).weight(), 0.0);
+        assertEquals(2, newData.instance(3).weight(), 0.0);
+    }
+
     @Test
     public void testRoundAttribute() throws Exception, CouldNotLoadArffException {
         Instances data = loadFile("unittests/train_landmark");
@@ -263,6 +305,114 @@ public class WekaHelperUnitTest {
         testInstancesEqual(expected, actual);
     }
 
+    @Test
+    public void testAggregatedInstances() throws Exception, InvalidRoomException {
+        ArrayList<DataPoint> dataPoints = getDataPoints();
+        // the first four scans belong to the same room
+        for (int i = 1; i < 4; i++)
+            dataPoints.get(i).setRoom("stube");
+
+        Instances data = WekaHelper.buildInstances(dataPoints, 3);
+        assertTrue(WekaHelper.hasAggregates(data));
+        assertEquals(10, WekaHelper.getNumberOfRssValues(data));
+        assertEquals(WekaHelper.FIRST_RSS_INDEX + 10 + 4 * (14 + 10), data.numAttributes());
+        assertFalse(WekaHelper.hasAggregates(WekaHelper.buildInstances(dataPoints)));
+
+        // the light of the last three scans of the room
+        int lightMean = data.attribute("lightMean").index();
+        assertEquals((222 + 323 + 424) / 3.0, data.instance(3).value(lightMean), 1e-4);
+        assertEquals(222, data.instance(3).value(data.attribute("lightMin").index()), 1e-4);
+        // the window starts again in a new room
+        assertEquals(525, data.instance(4).value(lightMean), 1e-4);
+        assertEquals(0, data.instance(4).value(data.attribute("lightVariance").index()), 1e-4);
+        // the location is not aggregated
+        assertEquals(null, data.attribute("latitudeMean"));
+
+        // the same aggregates when built from the journal
+        File file = File.createTempFile("dataPoints", ".journal");
+        file.delete();
+        DataPointJournal journal = new DataPointJournal(file);
+        for (DataPoint dataPoint : dataPoints)
+            journal.append(dataPoint);
+        testInstancesEqual(data, journal.toInstances(3));
+        journal.clear();
+
+        // the live instances aggregate the data points built, checking the room does not add a data point
+        InstanceBuilder builder = new InstanceBuilder(data, 3);
+        builder.checkRoom(dataPoints.get(1));
+        Instance instance = null;
+        for (int i = 0; i < 4; i++)
+            instance = builder.build(dataPoints.get(i));
+        assertTrue(areInstancesEqual(data.instance(3), instance));
+
+        // the aggregates of a separate window cover the data points added to it, not the ones built
+        builder = new InstanceBuilder(data, 3);
+        FeatureWindow window = builder.newFeatureWindow();
+        for (int i = 0; i < 4; i++)
+            window.add(dataPoints.get(i));
+        double[] aggregates = new double[data.numAttributes() - WekaHelper.FIRST_RSS_INDEX - dataPoints.get(3).getRssData().size()];
+        int index = 0;
+        for (int channel = 0; channel < window.getNumberOfChannels(); channel++) {
+            if (channel == 14 || channel == 15)
+                continue; // the location is not aggregated
+            aggregates[index++] = window.getMean(channel);
+            aggregates[index++] = window.getVariance(channel);
+            aggregates[index++] = window.getMin(channel);
+            aggregates[index++] = window.getMax(channel);
+        }
+        assertEquals(aggregates.length, index);
+        assertTrue(areInstancesEqual(data.instance(3), builder.build(dataPoints.get(3), aggregates)));
+    }
+
+    @Test
+    public void testSparseInstances() throws Exception, InvalidRoomException {
+        // many access points, but only a few of them are seen per data point
+        ArrayList<DataPoint> dataPoints = getDataPoints();
+        for (int i = 0; i < dataPoints.size(); i++) {
+            RSSData rssData = new RSSData(200);
+            rssData.setValue(i, -40 - i);
+            rssData.setValue(100 + i, -70);
+            dataPoints.get(i).setRssData(rssData);
+        }
+        Instances data = WekaHelper.buildInstances(dataPoints);
+        assertTrue(WekaHelper.isSparse(data));
+        assertEquals(WekaHelper.FIRST_RSS_INDEX + 200, data.numAttributes());
+        for (Instance instance : data) {
+            assertTrue(instance instanceof SparseInstance);
+            assertTrue(instance.numValues() <= WekaHelper.FIRST_RSS_INDEX + 2);
+        }
+        assertEquals(-42, data.instance(2).value(WekaHelper.FIRST_RSS_INDEX + 2), 0);
+        assertEquals(0, data.instance(2).value(WekaHelper.FIRST_RSS_INDEX + 3), 0);
+
+        InstanceBuilder builder = new InstanceBuilder(data);
+        Instance built = builder.build(dataPoints.get(3));
+        assertTrue(built instanceof SparseInstance);
+        assertTrue(areInstancesEqual(data.instance(3), built));
+
+        // the binary format keeps the rows sparse
+        data.instance(1).setWeight(2);
+        File file = File.createTempFile("sparse", BinaryInstancesLoader.FILE_EXTENSION);
+        BinaryInstancesSaver.save(data, file);
+        Instances loaded = fileHelper.loadBinary(file);
+        testInstancesEqual(data, loaded);
+        for (int i = 0; i < data.numInstances(); i++) {
+            assertTrue(loaded.instance(i) instanceof SparseInstance);
+            assertEquals(data.instance(i).weight(), loaded.instance(i).weight(), 0);
+        }
+        file.delete();
+
+        // the journal builds the same sparse rows
+        file = File.createTempFile("sparse", ".journal");
+        file.delete();
+        DataPointJournal journal = new DataPointJournal(file);
+        journal.open();
+        for (DataPoint dataPoint : dataPoints)
+            journal.append(dataPoint);
+        Instances fromJournal = journal.toInstances();
+        assertTrue(fromJournal.instance(0) instanceof SparseInstance);
+        testInstancesEqual(WekaHelper.buildInstances(dataPoints), fromJournal);
+        journal.clear();
+    }
 
     @Test
     public void testRemoveAllOfSpecificClass() throws Exception, CouldNotLoadArffException {
@@ -362,65 +512,4 @@ public class WekaHelperUnitTest {
             assertFalse(instancesContainInstance(train, test.instance(i)));
     }
 
-
-    @NonNull
-    private ArrayList<DataPoint> getDataPoints() {
-        ArrayList<DataPoint> dataPoints = new ArrayList<>();
-
-        RSSData rssData1 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
-        float[] gravity1 = {8.1111f, 11.1111f, 8.111f};
-        float[] magnetic1 = {3.41111f, 11.4111f, 6.16341f};
-        SensorData sensorData1 = SensorData.getSensorDataTest(0, 121, 12, 0, gravity1, magnetic1, 23.23f, 32.122f, 56.677f, 5.96f);
-        LocationData locationData1 = new LocationData(7.12094, 8.38923);
-        dataPoints.add(new DataPoint("stube", sensorData1, rssData1, locationData1));
-
-        RSSData rssData2 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
-        float[] gravity2 = {8.2222f, 22.2222f, 8.222f};
-        float[] magnetic2 = {3.42222f, 22.4222f, 6.26342f};
-        SensorData sensorData2 = SensorData.getSensorDataTest(0, 222, 22, 0, gravity2, magnetic2, 23.23f, 32.222f, 56.677f, 5.96f);
-        LocationData locationData2 = new LocationData(7.22094, 8.38923);
-        dataPoints.add(new DataPoint("kueche", sensorData2, rssData2, locationData2));
-
-        RSSData rssData3 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
-        float[] gravity3 = {8.3232f, 32.3222f, 8.233f};
-        float[] magnetic3 = {3.43232f, 22.4222f, 6.26343f};
-        SensorData sensorData3 = SensorData.getSensorDataTest(0, 323, 32, 0, gravity3, magnetic3, 23.23f, 32.322f, 56.677f, 5.96f);
-        LocationData locationData3 = new LocationData(7.32094, 8.38923);
-        dataPoints.add(new DataPoint("badgross", sensorData3, rssData3, locationData3));
-
-        RSSData rssData4 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
-        float[] gravity4 = {8.4242f, 42.4222f, 8.244f};
-        float[] magnetic4 = {3.44242f, 22.4222f, 6.26344f};
-        SensorData sensorData4 = SensorData.getSensorDataTest(0, 424, 42, 0, gravity4, magnetic4, 23.23f, 32.422f, 56.677f, 5.96f);
-        LocationData locationData4 = new LocationData(7.42094, 8.38923);
-        dataPoints.add(new DataPoint("badklein", sensorData4, rssData4, locationData4));
-
-        RSSData rssData5 = new RSSData(new ArrayList<>(Arrays.asList(0, 23, 39, 39, 39, 39, 39, 39, 0, 0)));
-        float[] gravity5 = {8.5252f, 52.5222f, 8.255f};
-        float[] magnetic5 = {3.45252f, 22.4222f, 6.26345f};
-        SensorData sensorData5 = SensorData.getSensorDataTest(0, 525, 52, 0, gravity5, magnetic5, 23.23f, 32.522f, 56.677f, 5.96f);
-        LocationData locationData5 = new LocationData(7.52094, 8.38923);
-        dataPoints.add(new DataPoint("gang", sensorData5, rssData5, locationData5));
-
-        return dataPoints;
-    }
-
-
-    private boolean instancesContainInstance(Instances haystick, Instance needle) {
-        for (Instance instance : haystick)
-            if (areInstancesEqual(instance, needle))
-                return true;
-        return false;
-    }
-
-    private boolean areInstancesEqual(Instance first, Instance second) {
-        return comparator.compare(first, second) == 0;
-    }
-
-    private void testInstancesEqual(Instances expected, Instances actual) {
-        assertTrue(actual.equalHeaders(expected));
-        for (int i = 0; i < expected.numInstances(); i++)
-            assertTrue(areInstancesEqual(expected.instance(i), actual.instance(i)));
-    }
-
 }